@@ -0,0 +1,335 @@
+package com.andre.devtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of burn operations applied together to a disk. Each line of a
+ * manifest file holds one operation, written like the order it replaces:
+ * <pre>
+ * # Comments start with a hash
+ * burn boot.img -length 440
+ * burn core.img -dstOff 0x200
+ * burn-vbr vbr.img -partition 1
+ * burn-reserved-sectors head.img -partition 1
+ * copy bstrap.bin -at \ZKOS\BSTRAP.BIN -partition 1
+ * </pre>
+ * Relative input paths are resolved against the directory of the manifest.
+ * <br><br>
+ * Every operation is validated before anything is written, and operations
+ * writing over each other are rejected. Raw writes are then performed in disk
+ * offset order, followed by the file copies, all through a single disk session.
+ *
+ * @author Andre
+ */
+public class BurnManifest {
+	private final File file;
+	private final List<Operation> operations;
+	
+	private BurnManifest(File file, List<Operation> operations) {
+		this.file = file;
+		this.operations = operations;
+	}
+	
+	/**
+	 * Reads and parses a manifest file.
+	 *
+	 * @param file Manifest file.
+	 * @return The manifest.
+	 */
+	public static BurnManifest read(File file) {
+		if (!file.isFile()) throw new CLIException("Manifest '" + file + "' does not exist.");
+		
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(file.toPath());
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		
+		var baseDir = file.getAbsoluteFile().getParentFile();
+		var operations = new ArrayList<Operation>();
+		for (int i = 0; i < lines.size(); i++) {
+			var tokens = tokenize(lines.get(i));
+			if (tokens.isEmpty() || tokens.get(0).startsWith("#")) continue;
+			
+			try {
+				operations.add(Operation.parse(i + 1, tokens, baseDir));
+			} catch (CLIException ex) {
+				throw new CLIException(file.getName() + ":" + (i + 1) + ": " + ex.getMessage());
+			}
+		}
+		
+		return new BurnManifest(file, operations);
+	}
+	
+	public List<Operation> getOperations() {
+		return operations;
+	}
+	
+	/**
+	 * Validates every operation and applies them to a disk.
+	 *
+	 * @param disk Disk session. Its burn checks are honored by the raw writes.
+	 * @return How many bytes were written.
+	 */
+	public long apply(Disk disk) {
+		var partitions = disk.listPartitions();
+		var volumes = new HashMap<Integer, FATVolume>();
+		
+		// Reserved areas that must grow before anything is written into them
+		var expansions = new HashMap<Integer, Integer>();
+		for (var op : operations) {
+			if (op.kind() != Kind.BURN_RESERVED_SECTORS) continue;
+			
+			var volume = getVolume(op, partitions, volumes);
+			try {
+				volume.validateReservedBurn(op.inputLength());
+			} catch (CLIException ex) {
+				throw error(op, ex.getMessage());
+			}
+			
+			int required = volume.getRequiredReservedSectors(op.inputLength());
+			if (required > volume.getReservedSectors()) {
+				expansions.merge(op.partition(), required, Math::max);
+			}
+		}
+		
+		// Fail early if an expansion isn't possible
+		expansions.forEach((partition, sectors) -> volumes.get(partition).expandReservedSectors(sectors, true));
+		
+		// Work out the disk ranges touched by each operation
+		var writes = new ArrayList<Write>();
+		var claims = new ArrayList<Write>();
+		var copiedVolumes = new HashSet<Integer>();
+		for (var op : operations) {
+			long length = op.inputLength();
+			
+			switch (op.kind()) {
+				case BURN -> writes.add(new Write(op, op.srcOffset(), op.dstOffset(), length));
+				case BURN_VBR -> {
+					if (length > FATVolume.VBR_MAX_SIZE) throw error(op, "Input would overwrite data after the VBR.");
+					
+					var volume = getVolume(op, partitions, volumes);
+					long vbr = volume.getPartition().getOffset();
+					int code = volume.getVBRCodeOffset();
+					writes.add(new Write(op, op.srcOffset(), vbr, Math.min(length, FATVolume.VBR_JUMP_SIZE)));
+					writes.add(new Write(op, op.srcOffset() + code, vbr + code, length - code));
+				}
+				case BURN_RESERVED_SECTORS -> {
+					long vbr = getVolume(op, partitions, volumes).getPartition().getOffset();
+					writes.add(new Write(op, op.srcOffset(), vbr + disk.getSectorSize(), length));
+				}
+				case COPY -> {
+					// Catch bad names now rather than halfway through
+					try {
+						FATVolume.splitPath(op.path()).forEach(FATVolume::toShortName);
+					} catch (CLIException ex) {
+						throw error(op, ex.getMessage());
+					}
+					
+					// Copied files may land anywhere past the reserved area of the volume.
+					// Copies into the same volume share it, so it's only claimed once.
+					var volume = getVolume(op, partitions, volumes);
+					if (copiedVolumes.add(op.partition())) {
+						var part = volume.getPartition();
+						int reserved = expansions.getOrDefault(op.partition(), volume.getReservedSectors());
+						long start = part.getOffset() + (long)reserved * disk.getSectorSize();
+						long end = part.getOffset() + part.getSizeInBytes();
+						claims.add(new Write(op, 0, start, end - start));
+					}
+				}
+			}
+		}
+		writes.removeIf((w) -> w.length() <= 0);
+		
+		for (var w : writes) {
+			if (w.dstOffset() + w.length() > disk.size()) throw error(w.op(), "Input would write past the end of the disk.");
+		}
+		
+		claims.addAll(writes);
+		checkOverlaps(claims);
+		
+		// Everything is valid. Apply the expansions, then the writes in disk order, then the copies.
+		long written = 0;
+		for (var entry : expansions.entrySet()) {
+			volumes.get(entry.getKey()).expandReservedSectors(entry.getValue(), false);
+		}
+		
+		writes.sort(Comparator.comparingLong(Write::dstOffset));
+		for (var w : writes) {
+			written += disk.burn(w.op().input(), w.srcOffset(), w.dstOffset(), w.length());
+		}
+		
+		for (var op : operations) {
+			if (op.kind() != Kind.COPY) continue;
+			
+			var volume = volumes.get(op.partition());
+			volume.setAllocationPolicy(op.contiguous() ? FATVolume.AllocationPolicy.CONTIGUOUS : FATVolume.AllocationPolicy.FIRST_FIT);
+			try {
+				written += volume.writeFile(op.path(), Files.readAllBytes(op.input().toPath())).written();
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+		
+		for (var volume : volumes.values()) {
+			volume.flush();
+		}
+		
+		return written;
+	}
+	
+	/** Opens the FAT volume an operation targets, once per partition. */
+	private FATVolume getVolume(Operation op, List<Partition> partitions, Map<Integer, FATVolume> volumes) {
+		int index = op.partition();
+		if (index < 0 || index >= partitions.size() || partitions.get(index) == null) {
+			throw error(op, "Partition " + index + " does not exist.");
+		}
+		
+		var part = partitions.get(index);
+		if (!FATVolume.isPartitionFAT(part)) throw error(op, "Partition " + index + " is not of FAT type.");
+		
+		return volumes.computeIfAbsent(index, (i) -> new FATVolume(part));
+	}
+	
+	/** Sorts ranges by offset and fails if any two of them overlap. */
+	private void checkOverlaps(List<Write> ranges) {
+		ranges.sort(Comparator.comparingLong(Write::dstOffset));
+		
+		for (int i = 1; i < ranges.size(); i++) {
+			var prev = ranges.get(i - 1);
+			var cur = ranges.get(i);
+			if (cur.dstOffset() < prev.dstOffset() + prev.length()) {
+				throw new CLIException(String.format("%s:%d writes over the range [0x%X +%d] of line %d.",
+						file.getName(), cur.op().line(), prev.dstOffset(), prev.length(), prev.op().line()));
+			}
+		}
+	}
+	
+	private CLIException error(Operation op, String message) {
+		return new CLIException(file.getName() + ":" + op.line() + ": " + message);
+	}
+	
+	/** Splits a line by whitespace, keeping quoted parts together. */
+	private static List<String> tokenize(String line) {
+		var tokens = new ArrayList<String>();
+		var token = new StringBuilder();
+		boolean quoted = false;
+		boolean any = false;
+		
+		for (char c : line.toCharArray()) {
+			if (c == '"') {
+				quoted = !quoted;
+				any = true;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (any) tokens.add(token.toString());
+				token.setLength(0);
+				any = false;
+			} else {
+				token.append(c);
+				any = true;
+			}
+		}
+		if (quoted) throw new CLIException("Unclosed quotes in: " + line);
+		if (any) tokens.add(token.toString());
+		
+		return tokens;
+	}
+	
+	public enum Kind {
+		BURN("burn"),
+		BURN_VBR("burn-vbr"),
+		BURN_RESERVED_SECTORS("burn-reserved-sectors"),
+		COPY("copy");
+		
+		public final String name;
+		
+		private Kind(String name) {
+			this.name = name;
+		}
+	}
+	
+	/**
+	 * One line of a manifest.
+	 *
+	 * @param line Line number in the manifest.
+	 * @param kind What the operation does.
+	 * @param input Input file.
+	 * @param srcOffset Offset into the input.
+	 * @param dstOffset Disk offset, for raw burns.
+	 * @param length Bytes of the input to write, or -1 for all of it.
+	 * @param partition Partition index, for everything but raw burns.
+	 * @param path Destination path in the volume, for copies.
+	 * @param contiguous Whether a copied file must be stored in a single run of clusters.
+	 */
+	public record Operation(int line, Kind kind, File input, long srcOffset, long dstOffset, long length,
+			int partition, String path, boolean contiguous) {
+		
+		/** How many bytes of the input will be written. */
+		public long inputLength() {
+			long available = Math.max(input.length() - srcOffset, 0);
+			return (length < 0) ? available : Math.min(available, length);
+		}
+		
+		static Operation parse(int line, List<String> tokens, File baseDir) {
+			var order = tokens.get(0);
+			Kind kind = null;
+			for (var k : Kind.values()) {
+				if (k.name.equals(order)) kind = k;
+			}
+			if (kind == null) throw new CLIException("Unknown operation [" + order + "].");
+			
+			String input = null;
+			long srcOffset = 0;
+			long dstOffset = 0;
+			long length = -1;
+			int partition = -1;
+			String path = null;
+			boolean contiguous = false;
+			
+			for (int i = 1; i < tokens.size(); i++) {
+				var arg = tokens.get(i);
+				
+				if (arg.startsWith("-")) {
+					if (i + 1 >= tokens.size() && !arg.equals("-contiguous")) {
+						throw new CLIException("Switch " + arg + " needs a value.");
+					}
+					
+					switch (arg) {
+						case "-srcOff" -> srcOffset = DevToolkitCLI.parseNumberExpression(tokens.get(++i));
+						case "-dstOff" -> dstOffset = DevToolkitCLI.parseNumberExpression(tokens.get(++i));
+						case "-length" -> length = DevToolkitCLI.parseNumberExpression(tokens.get(++i));
+						case "-partition" -> partition = DevToolkitCLI.parseNumberExpression(tokens.get(++i));
+						case "-at" -> path = tokens.get(++i);
+						case "-contiguous" -> contiguous = true;
+						default -> throw new CLIException("Unknown switch: " + arg);
+					}
+				} else {
+					if (input != null) throw new CLIException("Argument " + arg + " specifies an input but an input was already provided before.");
+					input = arg;
+				}
+			}
+			
+			if (input == null) throw new CLIException("No input file was specified!");
+			if (kind != Kind.BURN && partition == -1) throw new CLIException("No partition specified. Use -partition to specify one.");
+			if (kind == Kind.COPY && path == null) throw new CLIException("No destination path was specified! Use -at to do so.");
+			
+			var inputFile = new File(input);
+			if (!inputFile.isAbsolute()) inputFile = new File(baseDir, input);
+			if (!inputFile.isFile()) throw new CLIException("The input file '" + input + "' does not exist.");
+			
+			return new Operation(line, kind, inputFile, srcOffset, dstOffset, length, partition, path, contiguous);
+		}
+	}
+	
+	/** A range of the disk written by an operation. */
+	private record Write(Operation op, long srcOffset, long dstOffset, long length) {}
+}
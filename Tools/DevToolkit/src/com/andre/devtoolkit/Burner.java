@@ -6,37 +6,40 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
 
 /**
  *
  * @author Andre
  */
 public class Burner {
+	/** Size of the intermediate buffer used when a direct file transfer isn't possible. */
+	static final int TRANSFER_BUFFER_SIZE = 1024 * 1024;
+	
+	/** Size of the buffer used when moving blocks inside a disk image. */
+	static final int MOVE_BUFFER_SIZE = 8 * 1024 * 1024;
+	
+	/** Granularity at which zeroed data is skipped, matching the blocks of most host filesystems. */
+	static final int SPARSE_BLOCK_SIZE = 4096;
+	
+	private static final byte[] ZEROES = new byte[TRANSFER_BUFFER_SIZE];
+	
 	static byte[] readBytes(File input, long srcOffset, int length) {
-		try {
-			var inputSize = input.length();
-			var inputStream = FileChannel.open(input.toPath(), StandardOpenOption.READ);
-			inputStream.position(srcOffset);
-			
+		try (var inputStream = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
 			// Prevent an overflow if the specified input offset and length would do so.
-			length = (int)Math.min(inputSize - srcOffset, length);
-			
-			var bytes = new byte[length];
+			length = (int)Math.min(inputStream.size() - srcOffset, length);
 			
 			// Byte reading loop
-			var bb = ByteBuffer.allocate(length);
-			int remaining = length;
-			while (remaining > 0) {
-				int b = inputStream.read(bb);
+			var bytes = new byte[length];
+			var bb = ByteBuffer.wrap(bytes);
+			while (bb.hasRemaining()) {
+				int b = inputStream.read(bb, srcOffset + bb.position());
 				if (b == -1) {
 					throw new IOException("-1.");
 				}
-				
-				remaining -= b;
 			}
 			
-			bb.flip();
-			bb.get(bytes, 0, (int)length);
 			return bytes;
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
@@ -44,58 +47,282 @@ public class Burner {
 	}
 	
 	static long transfer(File input, long srcOffset, File output, long dstOffset, long length) {
+		if (length <= 0) return 0;
+		
+		// Open output and input files
+		try (var outputStream = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+			 var inputStream = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+			
+			// Prevent an overflow if the specified input offset and length would do so.
+			long len = Math.min(inputStream.size() - srcOffset, length);	
+			
+			// Burn
+			return Burner.transfer(inputStream, srcOffset, outputStream, dstOffset, len);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Copies a block of bytes from one channel into another. When both ends are
+	 * files, or flat disk images, the copy is delegated to the operating system
+	 * through {@link FileChannel#transferTo}. Otherwise, the bytes are moved through a
+	 * large sector-aligned buffer.
+	 * 
+	 * @param input Channel to read from.
+	 * @param srcOffset Position in the input channel of the first byte copied.
+	 * @param output Channel to write to.
+	 * @param dstOffset Position in the output channel of the first byte written.
+	 * @param bytes How many bytes to copy.
+	 * @return How many bytes were actually written. Might be less than requested
+	 * if the input ends before.
+	 */
+	static long transfer(SeekableByteChannel input, long srcOffset, SeekableByteChannel output, long dstOffset, long bytes) {
 		try {
-			if (length <= 0) return 0;
+			if (bytes <= 0) return 0;
 			
-			// Open output
-			var outputStream = FileChannel.open(output.toPath(), StandardOpenOption.WRITE);
+			// Images that store the disk as-is can be transferred to directly
+			if (input instanceof DiskImage image && image.getFlatChannel() != null) input = image.getFlatChannel();
+			if (output instanceof DiskImage image && image.getFlatChannel() != null) output = image.getFlatChannel();
 			
-			// Open input file
-			var inputSize = input.length();
-			var inputStream = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+			if (input instanceof FileChannel src && output instanceof FileChannel dst) {
+				return transferFiles(src, srcOffset, dst, dstOffset, bytes);
+			}
 			
-			// Prevent an overflow if the specified input offset and length would do so.
-			long len = Math.min(inputSize - srcOffset, length);	
+			return transferBuffered(input, srcOffset, output, dstOffset, bytes);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	private static long transferFiles(FileChannel input, long srcOffset, FileChannel output, long dstOffset, long bytes) throws IOException {
+		output.position(dstOffset);
+		
+		// transferTo() might move fewer bytes than asked for, so keep going until
+		// everything was written or the input is over.
+		long written = 0;
+		while (written < bytes) {
+			long n = input.transferTo(srcOffset + written, bytes - written, output);
+			if (n <= 0) {
+				if (srcOffset + written >= input.size()) break;
+				
+				// No progress but the input isn't over, copy the rest through a buffer instead
+				return written + transferBuffered(input, srcOffset + written, output, dstOffset + written, bytes - written);
+			}
 			
-			// Burn
-			long written = Burner.transfer(inputStream, srcOffset, outputStream, dstOffset, len);
+			written += n;
+		}
+		return written;
+	}
+	
+	private static long transferBuffered(SeekableByteChannel input, long srcOffset, SeekableByteChannel output, long dstOffset, long bytes) throws IOException {
+		// Set reading / writing points
+		input.position(srcOffset);
+		output.position(dstOffset);
+
+		var bb = ByteBuffer.allocateDirect((int)Math.min(TRANSFER_BUFFER_SIZE, alignToSector(bytes)));
+		long written = 0;
+		while (written < bytes) {
+			bb.clear();
+			bb.limit((int)Math.min(bb.capacity(), bytes - written));
+			
+			int r = input.read(bb);
+			if (r == -1) break;
+			
+			bb.flip();
+			while (bb.hasRemaining()) {
+				output.write(bb);
+			}
 			
-			// Release resources
-			outputStream.close();
-			inputStream.close();
+			written += r;
+		}
+		return written;
+	}
+	
+	/**
+	 * Copies the start of a channel into another, skipping the blocks that are
+	 * all zeroes. Meant for copying into a freshly created image, which is
+	 * already zeroed and stays sparse this way.
+	 * 
+	 * @param input Channel to read from.
+	 * @param output Channel to write to, at the same positions.
+	 * @param bytes How many bytes to copy.
+	 * @return How many bytes were actually written.
+	 */
+	static long copyNonZero(SeekableByteChannel input, SeekableByteChannel output, long bytes) {
+		try {
+			var bb = ByteBuffer.allocate((int)Math.min(TRANSFER_BUFFER_SIZE, alignToSector(bytes)));
 			
+			long written = 0;
+			for (long done = 0; done < bytes; done += bb.limit()) {
+				bb.clear().limit((int)Math.min(bb.capacity(), bytes - done));
+				input.position(done);
+				while (bb.hasRemaining()) {
+					if (input.read(bb) == -1) throw new IOException("Copy source ended early.");
+				}
+				
+				// Only the runs of blocks holding something are written
+				var array = bb.array();
+				int limit = bb.position();
+				int from = findBlock(array, 0, limit, false);
+				while (from < limit) {
+					int to = findBlock(array, from, limit, true);
+					
+					var run = ByteBuffer.wrap(array, from, to - from);
+					output.position(done + from);
+					while (run.hasRemaining()) {
+						output.write(run);
+					}
+					written += to - from;
+					
+					from = findBlock(array, to, limit, false);
+				}
+			}
 			return written;
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 	
-	static long transfer(SeekableByteChannel input, long srcOffset, SeekableByteChannel output, long dstOffset, long bytes) {
+	/**
+	 * Fills a range of a disk image with zeroes. The range is read first, and
+	 * only the runs of blocks that hold something are written. Ranges already
+	 * zeroed cost a read, and never allocate space in sparse images.
+	 * 
+	 * @param image Disk image.
+	 * @param offset Position of the first byte of the range.
+	 * @param bytes Size of the range.
+	 * @param dryRun Only count the bytes, without writing anything.
+	 * @return How many bytes held data and were zeroed.
+	 */
+	static long zero(DiskImage image, long offset, long bytes, boolean dryRun) {
 		try {
-			// Set reading / writing points
-			input.position(srcOffset);
-			output.position(dstOffset);
+			var bb = ByteBuffer.allocate((int)Math.min(TRANSFER_BUFFER_SIZE, alignToSector(bytes)));
 			
-			// Byte writing loop
-			var bb = ByteBuffer.allocate(1);
-			int b;
-			long written = 0;
-			for (long i = 0; i < bytes; i++) {
-				while ((b = input.read(bb)) == 0) {
-					if (b == -1) {
-						throw new IOException("-1.");
+			long zeroed = 0;
+			for (long done = 0; done < bytes; done += bb.limit()) {
+				bb.clear().limit((int)Math.min(bb.capacity(), bytes - done));
+				while (bb.hasRemaining()) {
+					if (image.read(bb, offset + done + bb.position()) == -1) throw new IOException("Zeroed range is past the end of the disk.");
+				}
+				
+				var array = bb.array();
+				int limit = bb.position();
+				int from = findBlock(array, 0, limit, false);
+				while (from < limit) {
+					int to = findBlock(array, from, limit, true);
+					
+					if (!dryRun) {
+						var run = ByteBuffer.wrap(ZEROES, 0, to - from);
+						while (run.hasRemaining()) {
+							image.write(run, offset + done + from + run.position());
+						}
 					}
+					zeroed += to - from;
+					
+					from = findBlock(array, to, limit, false);
 				}
-				bb.flip();
-				while (output.write(bb) == 0) {
+			}
+			return zeroed;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Finds the next sparse block that is zeroed, or that isn't.
+	 * 
+	 * @param zeroed Whether to look for a zeroed block, or for one holding something.
+	 * @return Start of the block found, or the limit if there is none.
+	 */
+	private static int findBlock(byte[] array, int from, int limit, boolean zeroed) {
+		for (int b = from; b < limit; b += SPARSE_BLOCK_SIZE) {
+			int end = Math.min(b + SPARSE_BLOCK_SIZE, limit);
+			boolean isZero = Arrays.mismatch(array, b, end, ZEROES, 0, end - b) == -1;
+			if (isZero == zeroed) return b;
+		}
+		return limit;
+	}
+	
+	/**
+	 * Moves a block of bytes inside a disk image. The source and destination
+	 * may overlap: when moving forward, the block is copied back to front so
+	 * that no byte is overwritten before being read.
+	 * 
+	 * @param image Disk image.
+	 * @param srcOffset Position of the first byte of the block.
+	 * @param dstOffset Position where the first byte of the block will be.
+	 * @param bytes Size of the block.
+	 * @return How many bytes were moved.
+	 */
+	static long move(DiskImage image, long srcOffset, long dstOffset, long bytes) {
+		if (bytes <= 0 || srcOffset == dstOffset) return 0;
+		
+		try {
+			var bb = ByteBuffer.allocateDirect((int)Math.min(MOVE_BUFFER_SIZE, alignToSector(bytes)));
+			boolean backwards = dstOffset > srcOffset;
+			
+			long moved = 0;
+			while (moved < bytes) {
+				int len = (int)Math.min(bb.capacity(), bytes - moved);
+				
+				// Offset of this chunk into the block
+				long chunk = backwards ? bytes - moved - len : moved;
+				
+				bb.clear().limit(len);
+				while (bb.hasRemaining()) {
+					if (image.read(bb, srcOffset + chunk + bb.position()) == -1) {
+						throw new IOException("Move source is past the end of the disk.");
+					}
 				}
+				
 				bb.flip();
+				while (bb.hasRemaining()) {
+					image.write(bb, dstOffset + chunk + bb.position());
+				}
 				
-				written++;
+				moved += len;
 			}
-			return written;
+			return moved;
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
+	
+	/**
+	 * Computes the CRC32C of a range of a channel, reading it in large blocks.
+	 * Bytes past the end of the channel are left out.
+	 * 
+	 * @param channel Channel to read from.
+	 * @param offset Position of the first byte.
+	 * @param bytes Size of the range.
+	 * @return The checksum.
+	 */
+	static int checksum(SeekableByteChannel channel, long offset, long bytes) {
+		try {
+			var crc = new CRC32C();
+			var bb = ByteBuffer.allocateDirect((int)Math.min(TRANSFER_BUFFER_SIZE, alignToSector(Math.max(bytes, 1))));
+			channel.position(offset);
+			
+			long done = 0;
+			while (done < bytes) {
+				bb.clear();
+				bb.limit((int)Math.min(bb.capacity(), bytes - done));
+				
+				int r = channel.read(bb);
+				if (r == -1) break;
+				
+				bb.flip();
+				crc.update(bb);
+				done += r;
+			}
+			return (int)crc.getValue();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	private static long alignToSector(long bytes) {
+		return (bytes + 511) & ~511L;
+	}
 }
@@ -1,7 +1,20 @@
 package com.andre.devtoolkit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 /**
  * CLI interface of DevToolkit. It must be instantiated and have its run() method
@@ -27,7 +40,7 @@ public class DevToolkitCLI {
 			System.out.println("Nothing to do here. To view a list of possible commands, run 'devtk help'.");
 			return;
 		}
-
+		
 		interpretOrder(args);
 	}
 	
@@ -47,7 +60,19 @@ public class DevToolkitCLI {
 		case "mount" -> mountOrder(orderLine);
 		case "unmount" -> unmountOrder(orderLine);
 		case "syncdisk" -> syncDiskOrder(orderLine);
+		case "copy" -> copyOrder(orderLine);
+		case "fragmentation" -> fragmentationOrder(orderLine);
+		case "fsck" -> fsckOrder(orderLine);
+		case "compact" -> compactOrder(orderLine);
+		case "export" -> exportOrder(orderLine);
+		case "import" -> importOrder(orderLine);
 		case "partitions" -> partitionsOrder(orderLine);
+		case "mkdisk" -> mkdiskOrder(orderLine);
+		case "apply" -> applyOrder(orderLine);
+		case "overlay" -> overlayOrder(orderLine);
+		case "overlay-commit" -> overlayCommitOrder(orderLine);
+		case "overlay-discard" -> overlayDiscardOrder(orderLine);
+		case "overlay-export" -> overlayExportOrder(orderLine);
 		default -> throw new CLIException("Unknown order type [" + order + "].");
 		}
 	}
@@ -57,7 +82,8 @@ public class DevToolkitCLI {
 	 * bootloaders on a disk.
 	 * <br><br>
 	 * Switches: <br>
-	 * -to: Specifies the destination file where the input will be written.
+	 * -to: Specifies the destination file where the input will be written. Can
+	 * be repeated to burn several disks at once.
 	 * -srcOff: An offset into the input file. By default 0.
 	 * -dstOff: An offset into the destination file. By default 0.
 	 * -length: How many bytes to record. If not specified, the whole input will
@@ -67,10 +93,12 @@ public class DevToolkitCLI {
 	 */
 	void burnOrder(String[] orderLine) {
 		String input = null;
-		String output = null;
+		var outputs = new ArrayList<String>();
 		int inputOffset = 0;
 		int outputOffset = 0;
 		int fileLength = Integer.MAX_VALUE;
+		boolean compare = false;
+		boolean verify = false;
 		
 		// Interpret order arguments
 		for (int i = 1; i < orderLine.length; i++) {
@@ -81,7 +109,9 @@ public class DevToolkitCLI {
 					case "-srcOff" -> inputOffset = parseNumberExpression(orderLine[++i]);
 					case "-dstOff" -> outputOffset = parseNumberExpression(orderLine[++i]);
 					case "-length" -> fileLength = parseNumberExpression(orderLine[++i]);
-					case "-to" -> output = orderLine[++i];
+					case "-to" -> outputs.add(orderLine[++i]);
+					case "-compare" -> compare = true;
+					case "-verify" -> verify = true;
 					default -> throw new CLIException("Unknown switch: " + arg);
 				}
 			} else {
@@ -94,33 +124,42 @@ public class DevToolkitCLI {
 		}
 		
 		if (input == null) throw new CLIException("No input was specified!");
-		if (output == null) throw new CLIException("No output was specified! Use the -to switch do so.");
+		if (outputs.isEmpty()) throw new CLIException("No output was specified! Use the -to switch do so.");
 		
 		System.out.print("Burning '" + input + "'[0x" + Integer.toHexString(inputOffset).toUpperCase());
-		System.out.print("] to '" + output + "'[0x" + Integer.toHexString(outputOffset).toUpperCase() + "] ");
+		System.out.print("] to '" + String.join("', '", outputs) + "'[0x" + Integer.toHexString(outputOffset).toUpperCase() + "] ");
 		if (fileLength == Integer.MAX_VALUE) {
 			System.out.println("fully");
 		} else {
 			System.out.println("with " + fileLength + " bytes");
 		}
 		
-		// Open output disk file
-		var diskPath = new File(output);
-
 		// Open input file
 		var inputFile = new File(input);
-
-		var written = Burner.transfer(inputFile, inputOffset, diskPath, outputOffset, fileLength);
-
-		System.out.println("Written " + written + " bytes.");
+		if (!inputFile.exists()) throw new CLIException("The input file '" + input + "' does not exist.");
+		
+		// Several targets share a single read of the input
+		final int srcOffset = inputOffset;
+		final int dstOffset = outputOffset;
+		final int length = fileLength;
+		final byte[] data = (outputs.size() > 1) ? Burner.readBytes(inputFile, inputOffset, fileLength) : null;
+		
+		// Open output disk file. Going through a disk session lets VHD images be written too.
+		burnTargets(outputs, false, compare, verify, (disk, out) -> {
+			if (data != null) return disk.burn(data, 0, data.length, dstOffset);
+			return disk.burn(inputFile, srcOffset, dstOffset, length);
+		});
 	}
 	
 	void burnVBROrder(String[] orderLine) {
 		String input = null;
-		String output = null;
+		var outputs = new ArrayList<String>();
 		int inputOffset = 0;
 		int partitionNumber = -1;
 		long fileLength = -1;
+		boolean memoryMapped = false;
+		boolean compare = false;
+		boolean verify = false;
 		
 		// Interpret order arguments
 		for (int i = 1; i < orderLine.length; i++) {
@@ -131,7 +170,10 @@ public class DevToolkitCLI {
 					case "-srcOff" -> inputOffset = parseNumberExpression(orderLine[++i]);
 					case "-partition" -> partitionNumber = parseNumberExpression(orderLine[++i]);
 					case "-length" -> fileLength = parseNumberExpression(orderLine[++i]);
-					case "-to" -> output = orderLine[++i];
+					case "-to" -> outputs.add(orderLine[++i]);
+					case "-mmap" -> memoryMapped = true;
+					case "-compare" -> compare = true;
+					case "-verify" -> verify = true;
 					default -> throw new CLIException("Unknown switch: " + arg);
 				}
 			} else {
@@ -144,32 +186,40 @@ public class DevToolkitCLI {
 		}
 		
 		if (input == null) throw new CLIException("No input file was specified!");
-		if (output == null) throw new CLIException("No output disk was specified! Use the -to switch do so.");
+		if (outputs.isEmpty()) throw new CLIException("No output disk was specified! Use the -to switch do so.");
 		if (partitionNumber == -1) throw new CLIException("No partition specified. Use -partition to specify one.");
 		
 		var inputFile = new File(input);
 		if (!inputFile.exists()) throw new CLIException("The input file '" + input + "' was specified!");
 		
-		// Open disk (output file) and obtain the partition indexed
-		var disk = new Disk(new File(output));		
-		var partition = disk.listPartitions().get(partitionNumber);
-		var fat16 = new FATVolume(partition);
-		
-		long firstByte = (partition.getFirstSector()) * 0x200L;
+		final String inputName = input;
+		final int srcOffset = inputOffset;
+		final int partitionIndex = partitionNumber;
+		final long length = fileLength;
+		final byte[] data = (outputs.size() > 1) ? readInput(inputFile, inputOffset, fileLength) : null;
 		
-		System.out.printf("Burning '%s'[0x%X] to '%s'[0x%X -- VBR PART %d]\n", input, inputOffset, output, firstByte, partitionNumber);
-		
-		fat16.burnVBR(inputFile, inputOffset, fileLength);	
-		
-		System.out.println("Finished.");
+		// Open each disk (output file) and obtain the partition indexed in it
+		burnTargets(outputs, memoryMapped, compare, verify, (disk, out) -> {
+			var fat16 = FATVolume.open(disk, partitionIndex);
+			long firstByte = fat16.getPartition().getOffset();
+			
+			out.printf("Burning '%s'[0x%X] to '%s'[0x%X -- VBR PART %d]\n", inputName, srcOffset, disk.getFile(), firstByte, partitionIndex);
+			
+			if (data != null) return fat16.burnVBR(data);
+			return fat16.burnVBR(inputFile, srcOffset, length);
+		});
 	}
 	
 	void burnReservedSectorsOrder(String[] orderLine) {
 		String input = null;
-		String output = null;
+		var outputs = new ArrayList<String>();
 		int inputOffset = 0;
 		int partitionNumber = -1;
 		long fileLength = -1;
+		boolean memoryMapped = false;
+		boolean compare = false;
+		boolean verify = false;
+		boolean dryRun = false;
 		
 		// Interpret order arguments
 		for (int i = 1; i < orderLine.length; i++) {
@@ -180,7 +230,11 @@ public class DevToolkitCLI {
 					case "-srcOff" -> inputOffset = parseNumberExpression(orderLine[++i]);
 					case "-partition" -> partitionNumber = parseNumberExpression(orderLine[++i]);
 					case "-length" -> fileLength = parseNumberExpression(orderLine[++i]);
-					case "-to" -> output = orderLine[++i];
+					case "-to" -> outputs.add(orderLine[++i]);
+					case "-mmap" -> memoryMapped = true;
+					case "-compare" -> compare = true;
+					case "-verify" -> verify = true;
+					case "-dry-run" -> dryRun = true;
 					default -> throw new CLIException("Unknown switch: " + arg);
 				}
 			} else {
@@ -193,23 +247,125 @@ public class DevToolkitCLI {
 		}
 		
 		if (input == null) throw new CLIException("No input file was specified!");
-		if (output == null) throw new CLIException("No output disk was specified! Use the -to switch do so.");
+		if (outputs.isEmpty()) throw new CLIException("No output disk was specified! Use the -to switch do so.");
 		if (partitionNumber == -1) throw new CLIException("No partition specified. Use -partition to specify one.");
 		
 		var inputFile = new File(input);
 		if (!inputFile.exists()) throw new CLIException("The input file '" + input + "' was specified!");
 		
-		// Open disk (output file) and obtain the partition indexed
-		var disk = new Disk(new File(output));		
-		var partition = disk.listPartitions().get(partitionNumber);
-		var fat16 = new FATVolume(partition);
+		final String inputName = input;
+		final int srcOffset = inputOffset;
+		final int partitionIndex = partitionNumber;
+		final long length = fileLength;
+		final boolean justReport = dryRun;
+		final byte[] data = (outputs.size() > 1 && !dryRun) ? readInput(inputFile, inputOffset, fileLength) : null;
 		
-		long firstByte = (partition.getFirstSector() + 1) * 0x200L;
-		System.out.printf("Burning '%s'[0x%X] to '%s'[0x%X -- PART %d]\n", input, inputOffset, output, firstByte, partitionNumber);
-
-		fat16.burnReservedSectors(inputFile, inputOffset, fileLength);
+		// Open each disk (output file) and obtain the partition indexed in it
+		burnTargets(outputs, memoryMapped, compare, verify, (disk, out) -> {
+			var fat16 = FATVolume.open(disk, partitionIndex);
+			long firstByte = fat16.getPartition().getOffset() + disk.getSectorSize();
+			
+			// Report what growing the reserved sectors would take, without writing anything
+			if (justReport) {
+				long inputLength = Math.min(inputFile.length() - srcOffset, (length < 0) ? Long.MAX_VALUE : length);
+				int required = fat16.getRequiredReservedSectors(inputLength);
+				if (required <= fat16.getReservedSectors()) {
+					out.printf("The %d reserved sectors already fit %d bytes.\n", fat16.getReservedSectors(), inputLength);
+				} else {
+					long moved = fat16.expandReservedSectors(required, true);
+					out.printf("Reserved sectors would grow from %d to %d, moving %d bytes.\n", fat16.getReservedSectors(), required, moved);
+				}
+				return -1;
+			}
+			
+			out.printf("Burning '%s'[0x%X] to '%s'[0x%X -- PART %d]\n", inputName, srcOffset, disk.getFile(), firstByte, partitionIndex);
+			
+			int oldReserved = fat16.getReservedSectors();
+			long written = (data != null) ? fat16.burnReservedSectors(data) : fat16.burnReservedSectors(inputFile, srcOffset, length);
+			
+			if (fat16.getReservedSectors() != oldReserved) {
+				out.printf("Reserved sectors expanded from %d to %d.\n", oldReserved, fat16.getReservedSectors());
+			}
+			return written;
+		});
+	}
+	
+	/**
+	 * Runs a burn on every target disk. A single target is burned right away.
+	 * Several targets are burned in parallel, each in its own disk session, so
+	 * partitions are looked up in each disk separately. Their reports are held
+	 * and printed in the order the targets were given.
+	 * 
+	 * @param targets Disk files to burn.
+	 * @param memoryMapped Access the disks through memory mappings.
+	 * @param compare Skip regions already matching the input.
+	 * @param verify Read regions back after writing them.
+	 * @param task The burn to run on each disk.
+	 */
+	void burnTargets(List<String> targets, boolean memoryMapped, boolean compare, boolean verify, BurnTask task) {
+		if (targets.size() == 1) {
+			burnTarget(targets.get(0), memoryMapped, compare, verify, task, System.out);
+			return;
+		}
 		
-		System.out.println("Finished.");
+		var failures = new AtomicInteger();
+		var reports = new ArrayList<Future<String>>();
+		try (var threads = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (var target : targets) {
+				reports.add(threads.submit(() -> {
+					var report = new ByteArrayOutputStream();
+					var out = new PrintStream(report, true);
+					out.println("-> " + target);
+					
+					try {
+						burnTarget(target, memoryMapped, compare, verify, task, out);
+					} catch (RuntimeException ex) {
+						out.println("[!] Failed: " + ex.getMessage());
+						failures.incrementAndGet();
+					}
+					return report.toString();
+				}));
+			}
+			
+			for (var report : reports) {
+				System.out.print(report.get());
+			}
+		} catch (InterruptedException | ExecutionException ex) {
+			throw new RuntimeException(ex);
+		}
+		
+		if (failures.get() > 0) {
+			throw new CLIException(failures.get() + " of " + targets.size() + " disks couldn't be burned.");
+		}
+	}
+	
+	private static void burnTarget(String target, boolean memoryMapped, boolean compare, boolean verify, BurnTask task, PrintStream out) {
+		try (var disk = new Disk(new File(target), memoryMapped)) {
+			disk.setBurnChecks(compare, verify);
+			
+			long start = System.nanoTime();
+			long written = task.burn(disk, out);
+			if (written < 0) return;
+			
+			printTransferStats(out, written, System.nanoTime() - start);
+			printBurnedRegions(out, disk, compare || verify);
+			out.println(disk.getCache());
+		}
+	}
+	
+	/** A burn into one disk session. */
+	interface BurnTask {
+		/**
+		 * @param disk Disk session, with its burn checks already set.
+		 * @param out Where messages about the burn should be printed.
+		 * @return How many bytes were written, or -1 if nothing was burned on purpose.
+		 */
+		long burn(Disk disk, PrintStream out);
+	}
+	
+	/** Reads a part of an input into memory, so it can be burned into several disks. */
+	private static byte[] readInput(File input, int offset, long length) {
+		return Burner.readBytes(input, offset, (int)Math.min((length < 0) ? Integer.MAX_VALUE : length, Integer.MAX_VALUE));
 	}
 	
 	/**
@@ -269,12 +425,15 @@ public class DevToolkitCLI {
 	}
 	
 	/**
-	 * Instantiates a disk syncing service. Requires administrative privileges.
+	 * Instantiates a disk syncing service. The disk is written in-process, so no
+	 * mounting or administrative privileges are required.
 	 */
 	void syncDiskOrder(String[] order) {
 		String diskFile = null;
 		String diskPath = null;
 		String srcPath = null;
+		int partitionNumber = -1;
+		boolean contiguous = false;
 		
 		// Interpret order arguments
 		for (int i = 1; i < order.length; i++) {
@@ -284,6 +443,8 @@ public class DevToolkitCLI {
 				switch (arg) {
 					case "-with" -> srcPath = order[++i];
 					case "-at" -> diskPath = order[++i];
+					case "-partition" -> partitionNumber = parseNumberExpression(order[++i]);
+					case "-contiguous" -> contiguous = true;
 					default -> throw new CLIException("Unknown switch: " + arg);
 				}
 			} else {
@@ -300,12 +461,449 @@ public class DevToolkitCLI {
 		if (diskPath == null) throw new CLIException("No disk destination path was specified! Use the -at switch to do so.");
 		
 		var disk = new Disk(new File(diskFile));
-		var service = disk.createSyncService(srcPath, diskPath);
+		var service = disk.createSyncService(partitionNumber, srcPath, diskPath);
+		if (contiguous) service.setAllocationPolicy(FATVolume.AllocationPolicy.CONTIGUOUS);
 		service.run();
 	}	
 	
+	/**
+	 * Copies a file of this machine into a FAT volume of a disk, without mounting it.
+	 * <br><br>
+	 * Switches: <br>
+	 * -to: Disk file. <br>
+	 * -at: Destination path in the volume. <br>
+	 * -partition: Index of the FAT partition. By default, the first FAT partition. <br>
+	 * -contiguous: Store the file in a single run of clusters.
+	 */
+	void copyOrder(String[] order) {
+		String input = null;
+		String diskFile = null;
+		String diskPath = null;
+		int partitionNumber = -1;
+		boolean contiguous = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-to" -> diskFile = order[++i];
+					case "-at" -> diskPath = order[++i];
+					case "-partition" -> partitionNumber = parseNumberExpression(order[++i]);
+					case "-contiguous" -> contiguous = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (input != null) {
+					throw new CLIException("Argument " + arg + " specifies an input but an input was already provided before.");
+				}
+				
+				input = arg;
+			}
+		}
+		
+		if (input == null) throw new CLIException("No input file was specified!");
+		if (diskFile == null) throw new CLIException("No disk was specified! Use the -to switch to do so.");
+		if (diskPath == null) throw new CLIException("No destination path was specified! Use the -at switch to do so.");
+		
+		var inputFile = new File(input);
+		if (!inputFile.isFile()) throw new CLIException("The input file '" + input + "' does not exist.");
+		
+		try (var disk = new Disk(new File(diskFile))) {
+			var volume = FATVolume.open(disk, partitionNumber);
+			if (contiguous) volume.setAllocationPolicy(FATVolume.AllocationPolicy.CONTIGUOUS);
+			System.out.printf("Copying '%s' to '%s' -- PART %d\n", input, diskPath, volume.getPartition().getIndex());
+			
+			long start = System.nanoTime();
+			var data = Files.readAllBytes(inputFile.toPath());
+			var stats = volume.writeFile(diskPath, data);
+			volume.flush();
+			
+			printTransferStats(stats.written(), System.nanoTime() - start);
+			if (stats.skipped() > 0) System.out.println("Skipped " + stats.skipped() + " bytes already up to date.");
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Lists the files of a FAT volume that are split in more than one run of
+	 * clusters. Each extra fragment costs an extra disk read for a boot stage
+	 * loading that file.
+	 * <br><br>
+	 * Switches: <br>
+	 * -partition: Index of the FAT partition. By default, the first FAT partition.
+	 */
+	void fragmentationOrder(String[] order) {
+		String diskPathArg = null;
+		int partitionNumber = -1;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-partition" -> partitionNumber = parseNumberExpression(order[++i]);
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (diskPathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+				}
+				
+				diskPathArg = arg;
+			}
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		
+		try (var disk = new Disk(new File(diskPathArg))) {
+			var files = FATVolume.open(disk, partitionNumber).listFragmentation();
+			
+			var table = new StringTable(3);
+			table.addRow("File", "Clusters", "Fragments");
+			table.setColumnAlignment(1, StringTable.Alignment.RIGHT);
+			table.setColumnAlignment(2, StringTable.Alignment.RIGHT);
+			
+			int fragmented = 0;
+			for (var file : files) {
+				if (!file.isFragmented()) continue;
+				
+				table.addRow(file.path(), String.valueOf(file.clusters()), String.valueOf(file.fragments()));
+				fragmented++;
+			}
+			
+			if (fragmented > 0) System.out.println(table.toString());
+			System.out.println(fragmented + " of " + files.size() + " files are fragmented.");
+		}
+	}
+	
+	/**
+	 * Checks the consistency of a FAT volume, reporting cross-linked and lost
+	 * clusters, broken chains, FAT copies that differ and files whose size
+	 * doesn't match their chain. Nothing is changed in the disk.
+	 * <br><br>
+	 * Switches: <br>
+	 * -partition: Index of the FAT partition. By default, the first FAT partition.
+	 */
+	void fsckOrder(String[] order) {
+		String diskPathArg = null;
+		int partitionNumber = -1;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-partition" -> partitionNumber = parseNumberExpression(order[++i]);
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (diskPathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+				}
+				
+				diskPathArg = arg;
+			}
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		
+		try (var disk = new Disk(new File(diskPathArg))) {
+			var volume = FATVolume.open(disk, partitionNumber);
+			var report = new FATChecker(volume).check();
+			
+			if (!report.isConsistent()) {
+				var table = new StringTable(3);
+				table.addRow("Problem", "Where", "Details");
+				for (var problem : report.problems()) {
+					table.addRow(problem.kind().name(), problem.path(), problem.detail());
+				}
+				System.out.println(table.toString());
+			}
+			
+			System.out.printf("Checked %d files and %d directories of partition %d (%s) in %.2f ms.\n",
+					report.files(), report.directories(), volume.getPartition().getIndex(), volume.getFATType(),
+					report.elapsedNanos() / 1_000_000.0);
+			
+			if (!report.isConsistent()) {
+				throw new CLIException(report.problems().size() + " problems were found in the volume.");
+			}
+			System.out.println("The volume is consistent.");
+		}
+	}
+	
+	/**
+	 * Zeroes the free clusters of every FAT volume of a disk and the slack
+	 * after its partitions, then gives the space they held in the image file
+	 * back to the host. See {@link DiskCompactor} and
+	 * {@link DiskImage#reclaimSpace(File)}.
+	 * <br><br>
+	 * Switches: <br>
+	 * -zero-only: Only zero the unused regions, leaving the image file as it is. <br>
+	 * -dry-run: Only report how much stale data the unused regions hold.
+	 */
+	void compactOrder(String[] order) {
+		String diskPathArg = null;
+		boolean zeroOnly = false;
+		boolean dryRun = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-zero-only" -> zeroOnly = true;
+					case "-dry-run" -> dryRun = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (diskPathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+				}
+				
+				diskPathArg = arg;
+			}
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		
+		// Zeroing would only fill the overlay, and the base file can't be rewritten under it
+		var diskFile = new File(diskPathArg);
+		if (OverlayImage.hasOverlay(diskFile)) {
+			throw new CLIException("'" + diskPathArg + "' has an overlay. Commit or discard it before compacting the disk.");
+		}
+		
+		long fileSize = diskFile.length();
+		DiskCompactor.Report report;
+		try (var disk = new Disk(diskFile)) {
+			report = new DiskCompactor(disk).compact(dryRun);
+		}
+		
+		System.out.printf("Found %s unused in %d regions: %s of free clusters and %s of slack.\n",
+				Numbers.toSizeString(report.scanned()), report.regions(),
+				Numbers.toSizeString(report.freeClusterBytes()), Numbers.toSizeString(report.slackBytes()));
+		System.out.printf("%s %s of stale data in %.2f ms.\n", dryRun ? "Would zero" : "Zeroed",
+				Numbers.toSizeString(report.zeroed()), report.elapsedNanos() / 1_000_000.0);
+		
+		if (dryRun || zeroOnly) return;
+		
+		long start = System.nanoTime();
+		long stored = DiskImage.reclaimSpace(diskFile);
+		double millis = (System.nanoTime() - start) / 1_000_000.0;
+		
+		// Raw images keep their size, but only the blocks holding data take space on the host
+		System.out.printf("Image file went from %s to %s, with %s of data stored, in %.2f ms.\n",
+				Numbers.toSizeString(fileSize), Numbers.toSizeString(diskFile.length()), Numbers.toSizeString(stored), millis);
+	}
+	
+	/**
+	 * Writes a disk into a compressed archive, for storing or sharing it. The
+	 * disk is read as seen through its overlay, if it has one. Chunks are
+	 * compressed in parallel and chunks of only zeroes aren't stored at all.
+	 * See {@link ImageArchive}.
+	 * <br><br>
+	 * Switches: <br>
+	 * -to: The archive file. <br>
+	 * -chunk-size: Size of each chunk compressed by itself. By default 1 MiB. <br>
+	 * -level: Compression level, from 1 (fastest) to 9 (smallest). By default 6. <br>
+	 * -threads: How many threads compress chunks. By default, one per processor. <br>
+	 * -overwrite: Replace the archive if it already exists.
+	 */
+	void exportOrder(String[] order) {
+		String diskPathArg = null;
+		String outputArg = null;
+		int chunkSize = ImageArchive.DEFAULT_CHUNK_SIZE;
+		int level = Deflater.DEFAULT_COMPRESSION;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean overwrite = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-to" -> outputArg = order[++i];
+					case "-chunk-size" -> chunkSize = (int)parseSizeExpression(order[++i]);
+					case "-level" -> level = parseNumberExpression(order[++i]);
+					case "-threads" -> threads = parseNumberExpression(order[++i]);
+					case "-overwrite" -> overwrite = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (diskPathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+				}
+				
+				diskPathArg = arg;
+			}
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		if (outputArg == null) throw new CLIException("No archive was specified! Use the -to switch do so.");
+		if (chunkSize < Disk.DEFAULT_SECTOR_SIZE || Integer.bitCount(chunkSize) != 1) {
+			throw new CLIException("Chunk size must be a power of two of at least " + Disk.DEFAULT_SECTOR_SIZE + " bytes.");
+		}
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+			throw new CLIException("Compression level must be between 1 and 9.");
+		}
+		if (threads < 1) throw new CLIException("At least 1 thread is needed.");
+		
+		var outputFile = new File(outputArg);
+		if (outputFile.exists() && !overwrite) {
+			throw new CLIException("Archive '" + outputArg + "' already exists. Use -overwrite to replace it.");
+		}
+		
+		System.out.printf("Exporting '%s' to '%s' (%s chunks, %d threads)\n", diskPathArg, outputArg, Numbers.toSizeString(chunkSize), threads);
+		
+		ImageArchive.Stats stats;
+		try (var image = DiskImage.open(new File(diskPathArg), false)) {
+			stats = ImageArchive.write(image, outputFile, chunkSize, level, threads);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		
+		System.out.printf("Stored %d of %d chunks, the rest only held zeroes.\n", stats.storedChunks(), stats.chunks());
+		printArchiveStats(stats);
+	}
+	
+	/**
+	 * Restores a disk from an archive made by the export order. The whole disk
+	 * is written into a new disk file, or a single partition into an existing
+	 * disk with the same layout. See {@link ImageArchive}.
+	 * <br><br>
+	 * Switches: <br>
+	 * -to: The disk file. <br>
+	 * -format: raw, fixed-vhd or dynamic-vhd. By default, dynamic-vhd for
+	 * .vhd files and raw otherwise. <br>
+	 * -partition: Only restore this partition, into a disk that already exists. <br>
+	 * -threads: How many threads decompress chunks. By default, one per processor. <br>
+	 * -overwrite: Replace the disk file if it already exists.
+	 */
+	void importOrder(String[] order) {
+		String archivePathArg = null;
+		String diskPathArg = null;
+		String formatArg = null;
+		int partitionNumber = -1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean overwrite = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-to" -> diskPathArg = order[++i];
+					case "-format" -> formatArg = order[++i];
+					case "-partition" -> partitionNumber = parseNumberExpression(order[++i]);
+					case "-threads" -> threads = parseNumberExpression(order[++i]);
+					case "-overwrite" -> overwrite = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (archivePathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies an archive but an archive was already provided before.");
+				}
+				
+				archivePathArg = arg;
+			}
+		}
+		
+		if (archivePathArg == null) throw new CLIException("No archive was specified!");
+		if (diskPathArg == null) throw new CLIException("No disk was specified! Use the -to switch do so.");
+		if (threads < 1) throw new CLIException("At least 1 thread is needed.");
+		
+		var diskFile = new File(diskPathArg);
+		try (var archive = ImageArchive.open(new File(archivePathArg))) {
+			ImageArchive.Stats stats;
+			
+			if (partitionNumber != -1) {
+				if (formatArg != null) throw new CLIException("The format of an existing disk can't be changed.");
+				
+				stats = importPartition(archive, diskFile, partitionNumber, threads);
+			} else {
+				if (diskFile.exists() && !overwrite) {
+					throw new CLIException("Disk '" + diskPathArg + "' already exists. Use -overwrite to replace it.");
+				}
+				if (OverlayImage.hasOverlay(diskFile)) {
+					throw new CLIException("'" + diskPathArg + "' has an overlay. Remove it with overlay-discard " + diskPathArg + " -remove before replacing the disk.");
+				}
+				
+				if (formatArg == null) formatArg = getDefaultFormat(diskPathArg);
+				var imageFormat = parseImageFormat(formatArg);
+				
+				System.out.printf("Importing '%s' to '%s' (%s, %s)\n", archivePathArg, diskPathArg, formatArg,
+						Numbers.toSizeString(archive.getDiskSize()));
+				
+				// The new disk is all zeroes already, so only the stored chunks are written
+				DiskImage.create(diskFile, archive.getDiskSize(), imageFormat);
+				try (var image = DiskImage.open(diskFile, false)) {
+					stats = archive.restore(image, 0, archive.getDiskSize(), false, threads);
+				} catch (IOException ex) {
+					diskFile.delete();
+					throw new RuntimeException(ex);
+				} catch (RuntimeException ex) {
+					// Don't leave a half restored disk behind
+					diskFile.delete();
+					throw ex;
+				}
+			}
+			
+			System.out.printf("Restored %d of %d chunks, the rest only held zeroes.\n", stats.storedChunks(), stats.chunks());
+			printArchiveStats(stats);
+		}
+	}
+	
+	/**
+	 * Restores a single partition of an archive into a disk. The disk must be as
+	 * large as the archived one and have the same partition table.
+	 */
+	private static ImageArchive.Stats importPartition(ImageArchive archive, File diskFile, int partitionIndex, int threads) {
+		if (!diskFile.exists()) throw new CLIException("Disk '" + diskFile + "' does not exist.");
+		
+		try (var disk = new Disk(diskFile)) {
+			if (disk.size() != archive.getDiskSize()) {
+				throw new CLIException("The disk is " + Numbers.toSizeString(disk.size()) + " but the archived disk is "
+						+ Numbers.toSizeString(archive.getDiskSize()) + ".");
+			}
+			
+			int sectorSize = disk.getSectorSize();
+			if (!Arrays.equals(disk.read(0, sectorSize), archive.read(0, sectorSize))) {
+				throw new CLIException("The partition table of the disk differs from the archived one.");
+			}
+			
+			var partitions = disk.listPartitions();
+			if (partitionIndex >= partitions.size() || partitions.get(partitionIndex) == null) {
+				throw new CLIException("Partition " + partitionIndex + " does not exist.");
+			}
+			var part = partitions.get(partitionIndex);
+			if (part.isExtended()) throw new CLIException("Partition " + partitionIndex + " is extended. Restore its logical partitions instead.");
+			
+			System.out.printf("Importing partition %d (%s at %04Xh) to '%s'\n", partitionIndex, part.getSizeString(), part.getFirstSector(), diskFile);
+			
+			// Whatever the partition holds now is replaced, so the chunks not stored are zeroed too
+			return archive.restore(disk.getImage(), part.getOffset(), part.getSizeInBytes(), true, threads);
+		}
+	}
+	
+	/** Prints the sizes involved in an export or import, and its throughput. */
+	private static void printArchiveStats(ImageArchive.Stats stats) {
+		double seconds = Math.max(stats.elapsedNanos(), 1) / 1_000_000_000.0;
+		long bytesPerSecond = (long)(stats.diskBytes() / seconds);
+		
+		System.out.printf("%s of disk, %s of archive, in %.2f ms (%s/s).\n", Numbers.toSizeString(stats.diskBytes()),
+				Numbers.toSizeString(stats.archiveBytes()), stats.elapsedNanos() / 1_000_000.0, Numbers.toSizeString(bytesPerSecond));
+	}
+	
 	void partitionsOrder(String[] order) {
 		String diskPathArg = null;
+		boolean memoryMapped = false;
 		
 		// Interpret order arguments
 		for (int i = 1; i < order.length; i++) {
@@ -313,6 +911,7 @@ public class DevToolkitCLI {
 			
 			if (arg.startsWith("-")) {
 				switch (arg) {
+					case "-mmap" -> memoryMapped = true;
 					default -> throw new CLIException("Unknown switch: " + arg);
 				}
 			} else {
@@ -326,11 +925,29 @@ public class DevToolkitCLI {
 		
 		if (diskPathArg == null) throw new CLIException("No disk was specified!");
 		
-		var partitions = new Disk(new File(diskPathArg)).listPartitions();
+		List<Partition> partitions;
+		SectorCache cache;
+		int sectorSize;
+		
+		// Free space of each FAT volume. FAT32 volumes take it from their FSInfo sector.
+		var free = new HashMap<Integer, String>();
+		try (var disk = new Disk(new File(diskPathArg), memoryMapped)) {
+			partitions = disk.listPartitions();
+			for (var p : partitions) {
+				if (p == null || !FATVolume.isPartitionFAT(p) || !FATVolume.hasBootSector(p)) continue;
+				
+				var volume = new FATVolume(p);
+				free.put(p.getIndex(), Numbers.toSizeString(volume.getFreeClusters() * volume.getClusterBytes()));
+			}
+			cache = disk.getCache();
+			sectorSize = disk.getSectorSize();
+		}
 		
-		var table = new StringTable(6);
-		table.addRow("", "Kind", "TC", "Description", "Size", "LBA");
+		System.out.printf("Sector size: %d bytes\n", sectorSize);
+		var table = new StringTable(7);
+		table.addRow("", "Kind", "TC", "Description", "Size", "Free", "LBA");
 		table.setColumnAlignment(4, StringTable.Alignment.RIGHT);
+		table.setColumnAlignment(5, StringTable.Alignment.RIGHT);
 		for (int i = 0; i < partitions.size(); i++) {
 			var p = partitions.get(i);
 			if (p == null) continue;
@@ -341,10 +958,11 @@ public class DevToolkitCLI {
 			var typeDesc = p.getType().description;
 			var size = p.getSizeString();
 			var firstSector = String.format("%04Xh", p.getFirstSector());
-			table.addRow(id, kind, typeCode, typeDesc, size, firstSector);
+			table.addRow(id, kind, typeCode, typeDesc, size, free.getOrDefault(p.getIndex(), ""), firstSector);
 		}
 		
 		System.out.println(table.toString());
+		System.out.println(cache);
 		
 		/*for (var p : partitions) {
 			//if (p.isLogical()) System.out.print("    ");
@@ -352,6 +970,319 @@ public class DevToolkitCLI {
 		}*/
 	}
 	
+	/**
+	 * Applies every burn operation listed in a manifest file to a disk, in a
+	 * single disk session. See {@link BurnManifest} for the manifest format.
+	 * <br><br>
+	 * Switches: <br>
+	 * -to: Disk file. <br>
+	 * -compare: Skip writing regions that already match their input. <br>
+	 * -verify: Read regions back after writing them. <br>
+	 * -mmap: Access the disk through memory mappings.
+	 */
+	void applyOrder(String[] order) {
+		String manifestArg = null;
+		String diskFile = null;
+		boolean compare = false;
+		boolean verify = false;
+		boolean memoryMapped = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-to" -> diskFile = order[++i];
+					case "-compare" -> compare = true;
+					case "-verify" -> verify = true;
+					case "-mmap" -> memoryMapped = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (manifestArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a manifest but a manifest was already provided before.");
+				}
+				
+				manifestArg = arg;
+			}
+		}
+		
+		if (manifestArg == null) throw new CLIException("No manifest was specified!");
+		if (diskFile == null) throw new CLIException("No disk was specified! Use the -to switch to do so.");
+		
+		var manifest = BurnManifest.read(new File(manifestArg));
+		System.out.printf("Applying %d operations of '%s' to '%s'\n", manifest.getOperations().size(), manifestArg, diskFile);
+		
+		try (var disk = new Disk(new File(diskFile), memoryMapped)) {
+			disk.setBurnChecks(compare, verify);
+			
+			long start = System.nanoTime();
+			long written = manifest.apply(disk);
+			
+			printTransferStats(written, System.nanoTime() - start);
+			printBurnedRegions(disk, compare || verify);
+			System.out.println(disk.getCache());
+		}
+	}
+	
+	/**
+	 * Creates a new disk image, optionally partitioned and with its partitions
+	 * formatted as FAT16, or FAT32 if they're too large. Empty regions of the
+	 * disk are never written, so the image takes almost no space on the host
+	 * disk.
+	 * <br><br>
+	 * Switches: <br>
+	 * -size: Size of the disk. Accepts K, M and G suffixes. <br>
+	 * -format: raw, fixed-vhd or dynamic-vhd. By default, dynamic-vhd for
+	 * .vhd files and raw otherwise. <br>
+	 * -primary: Adds a primary partition of the given size. Can be repeated. <br>
+	 * -logical: Adds a logical partition of the given size. Can be repeated. <br>
+	 * -reserved-sectors: Reserved sectors of each FAT volume. By default 1. <br>
+	 * -sector-size: Logical sector size of the disk. By default 512. <br>
+	 * -fat32: Format every partition as FAT32, even if it fits FAT16. <br>
+	 * -no-format: Leave the partitions unformatted. <br>
+	 * -overwrite: Replace the disk file if it already exists.
+	 */
+	void mkdiskOrder(String[] order) {
+		String diskPathArg = null;
+		long size = -1;
+		String formatArg = null;
+		var primary = new ArrayList<Long>();
+		var logical = new ArrayList<Long>();
+		int reservedSectors = 1;
+		int sectorSize = Disk.DEFAULT_SECTOR_SIZE;
+		boolean format = true;
+		boolean fat32 = false;
+		boolean overwrite = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-size" -> size = parseSizeExpression(order[++i]);
+					case "-format" -> formatArg = order[++i];
+					case "-primary" -> primary.add(parseSizeExpression(order[++i]));
+					case "-logical" -> logical.add(parseSizeExpression(order[++i]));
+					case "-reserved-sectors" -> reservedSectors = parseNumberExpression(order[++i]);
+					case "-sector-size" -> sectorSize = parseNumberExpression(order[++i]);
+					case "-no-format" -> format = false;
+					case "-fat32" -> fat32 = true;
+					case "-overwrite" -> overwrite = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (diskPathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+				}
+				
+				diskPathArg = arg;
+			}
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		if (size == -1) throw new CLIException("No disk size was specified! Use the -size switch to do so.");
+		if (reservedSectors < 1) throw new CLIException("FAT volumes need at least 1 reserved sector.");
+		
+		var diskFile = new File(diskPathArg);
+		if (diskFile.exists() && !overwrite) {
+			throw new CLIException("Disk '" + diskPathArg + "' already exists. Use -overwrite to replace it.");
+		}
+		
+		if (formatArg == null) formatArg = getDefaultFormat(diskPathArg);
+		var imageFormat = parseImageFormat(formatArg);
+		
+		var builder = new DiskBuilder(size, imageFormat);
+		primary.forEach(builder::addPrimaryPartition);
+		logical.forEach(builder::addLogicalPartition);
+		builder.setReservedSectors(reservedSectors);
+		builder.setSectorSize(sectorSize);
+		builder.setFormatFAT(format);
+		if (fat32) builder.setFATType(FATVolume.FATType.FAT32);
+		
+		var sectorDesc = (sectorSize != Disk.DEFAULT_SECTOR_SIZE) ? ", " + sectorSize + " byte sectors" : "";
+		System.out.printf("Creating '%s' (%s, %s%s)\n", diskPathArg, formatArg, Numbers.toSizeString(size), sectorDesc);
+		
+		long start = System.nanoTime();
+		var partitions = builder.create(diskFile);
+		double millis = (System.nanoTime() - start) / 1_000_000.0;
+		
+		for (var p : partitions) {
+			if (p == null || p.isExtended()) continue;
+			
+			var fatType = (p.getType() == PartitionType.FAT_32_LBA) ? ", FAT32" : ", FAT16";
+			System.out.printf("Partition %d: %s at %04Xh%s\n", p.getIndex(), p.getSizeString(), p.getFirstSector(), format ? fatType : "");
+		}
+		System.out.printf("Created in %.2f ms, %d bytes of file.\n", millis, diskFile.length());
+	}
+	
+	/**
+	 * Starts an overlay over a disk file. From then on, everything written to
+	 * the disk goes into the overlay file instead, and the disk file itself is
+	 * left untouched. See {@link OverlayImage}.
+	 */
+	void overlayOrder(String[] order) {
+		var diskFile = new File(parseDiskArgument(order));
+		if (!diskFile.exists()) throw new CLIException("Disk '" + diskFile + "' does not exist.");
+		
+		OverlayImage.create(diskFile);
+		System.out.printf("Writes to '%s' now go into '%s'.\n", diskFile, OverlayImage.getOverlayFile(diskFile));
+	}
+	
+	/**
+	 * Writes everything stored in the overlay of a disk back into the disk file,
+	 * and empties the overlay.
+	 */
+	void overlayCommitOrder(String[] order) {
+		var diskFile = new File(parseDiskArgument(order));
+		
+		long start = System.nanoTime();
+		long written = OverlayImage.commit(diskFile);
+		printTransferStats(written, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Drops everything written to the overlay of a disk, bringing the disk back
+	 * to how it was when the overlay was started. This takes the same time no
+	 * matter how large the disk is.
+	 * <br><br>
+	 * Switches: <br>
+	 * -remove: Delete the overlay too, so writes go into the disk file again.
+	 */
+	void overlayDiscardOrder(String[] order) {
+		String diskPathArg = null;
+		boolean remove = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-remove" -> remove = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (diskPathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+				}
+				
+				diskPathArg = arg;
+			}
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		
+		var diskFile = new File(diskPathArg);
+		if (remove) {
+			var overlayFile = OverlayImage.getOverlayFile(diskFile);
+			if (!overlayFile.exists()) throw new CLIException("'" + diskPathArg + "' has no overlay.");
+			if (!overlayFile.delete()) throw new CLIException("Overlay '" + overlayFile + "' couldn't be deleted.");
+			
+			System.out.printf("Overlay of '%s' removed.\n", diskPathArg);
+		} else {
+			OverlayImage.discard(diskFile);
+			System.out.printf("Overlay of '%s' discarded.\n", diskPathArg);
+		}
+	}
+	
+	/**
+	 * Writes the disk as seen through its overlay into a new disk file.
+	 * <br><br>
+	 * Switches: <br>
+	 * -to: The new disk file. <br>
+	 * -format: raw, fixed-vhd or dynamic-vhd. By default, dynamic-vhd for
+	 * .vhd files and raw otherwise. <br>
+	 * -overwrite: Replace the new disk file if it already exists.
+	 */
+	void overlayExportOrder(String[] order) {
+		String diskPathArg = null;
+		String outputArg = null;
+		String formatArg = null;
+		boolean overwrite = false;
+		
+		// Interpret order arguments
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) {
+				switch (arg) {
+					case "-to" -> outputArg = order[++i];
+					case "-format" -> formatArg = order[++i];
+					case "-overwrite" -> overwrite = true;
+					default -> throw new CLIException("Unknown switch: " + arg);
+				}
+			} else {
+				if (diskPathArg != null) {
+					throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+				}
+				
+				diskPathArg = arg;
+			}
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		if (outputArg == null) throw new CLIException("No output was specified! Use the -to switch do so.");
+		
+		var diskFile = new File(diskPathArg);
+		var outputFile = new File(outputArg);
+		if (!OverlayImage.hasOverlay(diskFile)) throw new CLIException("'" + diskPathArg + "' has no overlay.");
+		if (outputFile.getAbsoluteFile().equals(diskFile.getAbsoluteFile())) {
+			throw new CLIException("The disk can't be exported over itself. Use overlay-commit instead.");
+		}
+		if (outputFile.exists() && !overwrite) {
+			throw new CLIException("Disk '" + outputArg + "' already exists. Use -overwrite to replace it.");
+		}
+		
+		if (formatArg == null) formatArg = getDefaultFormat(outputArg);
+		var imageFormat = parseImageFormat(formatArg);
+		
+		System.out.printf("Exporting '%s' to '%s' (%s)\n", diskPathArg, outputArg, formatArg);
+		
+		long start = System.nanoTime();
+		long written = OverlayImage.flatten(diskFile, outputFile, imageFormat);
+		printTransferStats(written, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Parses an order whose only argument is a disk, and that takes no switches.
+	 * 
+	 * @return The disk argument.
+	 */
+	static String parseDiskArgument(String[] order) {
+		String diskPathArg = null;
+		
+		for (int i = 1; i < order.length; i++) {
+			var arg = order[i];
+			
+			if (arg.startsWith("-")) throw new CLIException("Unknown switch: " + arg);
+			if (diskPathArg != null) {
+				throw new CLIException("Argument " + arg + " specifies a disk but a disk was already provided before.");
+			}
+			
+			diskPathArg = arg;
+		}
+		
+		if (diskPathArg == null) throw new CLIException("No disk was specified!");
+		return diskPathArg;
+	}
+	
+	/** Disk files ending in .vhd are dynamic VHDs by default, and raw images otherwise. */
+	static String getDefaultFormat(String diskPath) {
+		return diskPath.toLowerCase().endsWith(".vhd") ? "dynamic-vhd" : "raw";
+	}
+	
+	static DiskImage.Format parseImageFormat(String format) {
+		return switch (format) {
+			case "raw" -> DiskImage.Format.RAW;
+			case "fixed-vhd" -> DiskImage.Format.FIXED_VHD;
+			case "dynamic-vhd" -> DiskImage.Format.DYNAMIC_VHD;
+			default -> throw new CLIException("Unknown disk format: " + format);
+		};
+	}
+	
 	/**
 	 * Prints the CLI help text on the console.
 	 * 
@@ -368,12 +1299,80 @@ public class DevToolkitCLI {
 			}
 		}
 	}
-		
+	
 	/** Prints the app header with version. */
 	void printHeader() {
 		System.out.println("-- DevToolkit Version " + VERSION_STR);
 	}	
 	
+	/**
+	 * Prints how many bytes a burn wrote, how long it took and its throughput.
+	 * 
+	 * @param bytes Bytes written.
+	 * @param elapsedNanos Time taken by the writing, in nanoseconds.
+	 */
+	static void printTransferStats(long bytes, long elapsedNanos) {
+		printTransferStats(System.out, bytes, elapsedNanos);
+	}
+	
+	static void printTransferStats(PrintStream out, long bytes, long elapsedNanos) {
+		double millis = elapsedNanos / 1_000_000.0;
+		double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+		long bytesPerSecond = (long)(bytes / seconds);
+		
+		out.printf("Written %d bytes in %.2f ms (%s/s).\n", bytes, millis, Numbers.toSizeString(bytesPerSecond));
+	}
+	
+	/**
+	 * Prints what was done to each region burned in a disk session.
+	 * 
+	 * @param disk Disk session.
+	 * @param checked Whether burns were compared or verified. Plain burns
+	 * aren't listed, since every region is simply written.
+	 */
+	static void printBurnedRegions(Disk disk, boolean checked) {
+		printBurnedRegions(System.out, disk, checked);
+	}
+	
+	static void printBurnedRegions(PrintStream out, Disk disk, boolean checked) {
+		if (!checked) return;
+		
+		for (var region : disk.getBurnedRegions()) {
+			out.println("  " + region);
+		}
+	}
+	
+	/**
+	 * Converts a size string into a number of bytes. The number may be followed
+	 * by a K, M or G suffix, multiplying it by 1024, 1024² or 1024³.
+	 * Examples:
+	 * "512"  -> 512
+	 * "64M"  -> 67108864
+	 * "0x10K" -> 16384
+	 * 
+	 * @param expr The string to convert.
+	 * @return Size in bytes.
+	 */
+	static long parseSizeExpression(String expr) {
+		expr = expr.trim().toUpperCase();
+		if (expr.isEmpty()) throw new CLIException("Empty size.");
+		
+		int shift = switch (expr.charAt(expr.length() - 1)) {
+			case 'K' -> 10;
+			case 'M' -> 20;
+			case 'G' -> 30;
+			default -> 0;
+		};
+		if (shift != 0) expr = expr.substring(0, expr.length() - 1);
+		
+		try {
+			long value = expr.startsWith("0X") ? Long.parseLong(expr.substring(2), 16) : Long.parseLong(expr);
+			return value << shift;
+		} catch (NumberFormatException ex) {
+			throw new CLIException("Invalid size: " + expr);
+		}
+	}
+	
 	/**
 	 * Converts a hex number expression string into a number.
 	 * Examples:
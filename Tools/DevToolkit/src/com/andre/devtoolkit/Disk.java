@@ -1,22 +1,92 @@
 package com.andre.devtoolkit;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.CRC32C;
 
 /**
- *
+ * A session over a disk image file. The image is opened once on first access
+ * and kept open until the session is closed, with recently read sectors kept
+ * in a {@link SectorCache}.
+ * <br><br>
+ * Image files don't record the logical sector size of the disk, so unless it's
+ * given, it's worked out from the partition table on first access: a partition
+ * must start with a boot record at its LBA scaled by the sector size, and a
+ * FAT boot sector must agree on that size. Disks where nothing can be told
+ * apart are taken as having 512 byte sectors.
+ * 
  * @author Andre
  */
-public class Disk {
+public class Disk implements Closeable {
+	public static final int DEFAULT_SECTOR_SIZE = 512;
+	
+	/** Logical sector sizes a disk may have, in the order they are tried. */
+	public static final int[] SECTOR_SIZES = { 512, 1024, 2048, 4096 };
+	
+	/** How many bytes of sectors the session keeps cached. */
+	private static final int CACHE_SIZE = 2 * 1024 * 1024;
+	
+	/** Runs of sectors read past this size are file contents rather than metadata, and aren't cached. */
+	private static final int CACHE_MAX_RUN = 64 * 1024;
+	
 	private final File diskFile;
+	private final boolean memoryMapped;
+	private final SectorCache cache;
+	private DiskImage image;
+	private int sectorSize;
+	
+	// Burn checking options, and the regions burned so far in the session
+	private boolean compareBurns;
+	private boolean verifyBurns;
+	private final List<BurnRegion> burnedRegions = new ArrayList<>();
 	
 	public Disk(File file) {
+		this(file, false);
+	}
+	
+	/**
+	 * @param file Disk image file.
+	 * @param memoryMapped Access the image through memory mappings. See {@link MappedImage}.
+	 */
+	public Disk(File file, boolean memoryMapped) {
+		this(file, memoryMapped, 0);
+	}
+	
+	/**
+	 * @param file Disk image file.
+	 * @param memoryMapped Access the image through memory mappings. See {@link MappedImage}.
+	 * @param sectorSize Logical sector size of the disk, or 0 to detect it.
+	 */
+	public Disk(File file, boolean memoryMapped, int sectorSize) {
+		if (sectorSize != 0 && !isValidSectorSize(sectorSize)) {
+			throw new CLIException("Sector size must be one of " + Arrays.toString(SECTOR_SIZES) + " bytes.");
+		}
+		
 		this.diskFile = file;
+		this.memoryMapped = memoryMapped;
+		this.sectorSize = sectorSize;
+		this.cache = new SectorCache(CACHE_SIZE);
+	}
+	
+	public static boolean isValidSectorSize(int size) {
+		return Arrays.stream(SECTOR_SIZES).anyMatch((s) -> s == size);
+	}
+	
+	/** Logical sector size of the disk in bytes, detected on the first call if it wasn't given. */
+	public int getSectorSize() {
+		if (sectorSize == 0) sectorSize = detectSectorSize();
+		return sectorSize;
 	}
 	
 	public List<Partition> listPartitions() {
@@ -24,12 +94,12 @@ public class Disk {
 		partitions.addAll(Collections.nCopies(5, null));
 		
 		// Get MBR partition list
-		var mbrBytes = Burner.readBytes(diskFile, 0x1BE, 0x40);
+		var mbrBytes = view(0x1BE, 0x40);
 		
 		// Itreate over 4 initial partitions
 		for (int i = 0; i < 4; i++) {
 			int index = i + 1;
-			var part = new Partition(index, diskFile);
+			var part = new Partition(index, this);
 			part.fromMBR(mbrBytes, i * 16);
 			if (part.getType().typeId == 0) continue;
 			
@@ -52,10 +122,10 @@ public class Disk {
 		long ebrSectorLBA = extendedPartitionLBA;
 		
 		for ( ; ; counter++) {
-			byte[] ebrEntries = Burner.readBytes(diskFile, ebrSectorLBA * 512 + 0x1BE, 0x20);
+			var ebrEntries = view(ebrSectorLBA * getSectorSize() + 0x1BE, 0x20);
 			
 			// First entry, should always be a logical partition
-			var part = new Partition(counter, diskFile);
+			var part = new Partition(counter, this);
 			part.fromEBR(ebrSectorLBA, ebrEntries, 0);
 			
 			// If there is no first entry, quit
@@ -64,7 +134,7 @@ public class Disk {
 			partitions.add(part);
 
 			// Second entry, should either be empty or point to another EBR
-			var chainPart = new Partition(counter, diskFile);
+			var chainPart = new Partition(counter, this);
 			chainPart.fromEBR(0, ebrEntries, 16);
 			
 			// If there is no second entry, quit
@@ -76,11 +146,16 @@ public class Disk {
 		return partitions;
 	}
 	
-	public DiskSyncService createSyncService(String srcPath, String diskPath) {
-		return new DiskSyncService(diskFile, srcPath, diskPath);
+	public DiskSyncService createSyncService(int partitionIndex, String srcPath, String diskPath) {
+		return new DiskSyncService(diskFile, partitionIndex, srcPath, diskPath);
 	}
 	
 	public void mount() {
+		// The system would mount the base image and ignore everything in the overlay
+		if (OverlayImage.hasOverlay(diskFile)) {
+			throw new CLIException("'" + diskFile + "' has an overlay. Commit or discard it before mounting the disk.");
+		}
+		
 		try {
 			var absDiskPath = diskFile.getCanonicalPath();
 			
@@ -119,6 +194,389 @@ public class Disk {
 	}
 
 	public byte[] readSector(long sector) {
-		return Burner.readBytes(diskFile, sector * 512, 512);
+		int size = getSectorSize();
+		return read(sector * size, size);
+	}
+	
+	/**
+	 * Reads a range of bytes from the disk. The sectors covering the range are
+	 * served from the sector cache when possible, and missing runs of sectors are
+	 * read from the image with a single read each. Only short runs are cached,
+	 * so reading a large file doesn't push the FAT and directories out.
+	 * 
+	 * @param offset Byte offset into the disk.
+	 * @param length How many bytes to read. Limited to the end of the disk.
+	 * @return The bytes read.
+	 */
+	public byte[] read(long offset, int length) {
+		length = (int)Math.max(0, Math.min(size() - offset, length));
+		var bytes = new byte[length];
+		if (length == 0) return bytes;
+		
+		// Mapped ranges are already in memory, caching them would only add a copy
+		var mapped = getImage().map(offset, length);
+		if (mapped != null) {
+			mapped.get(bytes);
+			return bytes;
+		}
+		
+		int size = getSectorSize();
+		long firstLBA = offset / size;
+		long lastLBA = (offset + length - 1) / size;
+		
+		// Every sector is looked up exactly once, so the hit/miss counts stay meaningful
+		long lba = firstLBA;
+		var sector = cache.get(lba);
+		while (lba <= lastLBA) {
+			if (sector != null) {
+				copySector(sector, lba, bytes, offset);
+				lba++;
+				sector = (lba <= lastLBA) ? cache.get(lba) : null;
+				continue;
+			}
+			
+			// Find how long the run of uncached sectors goes on for
+			long runEnd = lba + 1;
+			byte[] next = null;
+			while (runEnd <= lastLBA && (next = cache.get(runEnd)) == null) runEnd++;
+			
+			int runLength = (int)(runEnd - lba) * size;
+			var run = readRaw(lba * size, runLength);
+			if (runLength > CACHE_MAX_RUN) {
+				copyRange(run.array(), lba * size, bytes, offset);
+			} else {
+				for (long l = lba; l < runEnd; l++) {
+					var s = new byte[size];
+					run.get(s);
+					cache.put(l, s);
+					copySector(s, l, bytes, offset);
+				}
+			}
+			
+			lba = runEnd;
+			sector = next;
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Gives access to a range of the disk for parsing. If the image is memory
+	 * mapped, the buffer is a view straight into the mapping. Otherwise it wraps
+	 * a copy read through the sector cache.
+	 * 
+	 * @param offset Byte offset into the disk.
+	 * @param length Length of the range.
+	 * @return A little-endian buffer over the range.
+	 */
+	public ByteBuffer view(long offset, int length) {
+		var buffer = getImage().map(offset, length);
+		if (buffer == null) buffer = ByteBuffer.wrap(read(offset, length));
+		
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Writes bytes into the disk, updating the cache accordingly.
+	 * 
+	 * @param offset Byte offset into the disk.
+	 * @param bytes Data to be written.
+	 */
+	public void write(long offset, byte[] bytes) {
+		write(offset, bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Writes part of an array into the disk, updating the cache accordingly.
+	 * 
+	 * @param offset Byte offset into the disk.
+	 * @param bytes Array containing the data.
+	 * @param from Index of the first byte of the array to write.
+	 * @param length How many bytes to write.
+	 */
+	public void write(long offset, byte[] bytes, int from, int length) {
+		try {
+			var image = getImage();
+			var bb = ByteBuffer.wrap(bytes, from, length);
+			while (bb.hasRemaining()) {
+				image.write(bb, offset + bb.position() - from);
+			}
+			
+			invalidate(offset, length);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Writes a part of a file into the disk. Each call is recorded as a
+	 * {@link BurnRegion} of this session.
+	 * <br><br>
+	 * If burns are being compared, the range is only written if its checksum
+	 * differs from the input's, so burning the same data twice leaves the image
+	 * file untouched. If burns are being verified, the range is read back after
+	 * being written, and must match the input.
+	 * 
+	 * @param input File to read from.
+	 * @param srcOffset Offset into the input file.
+	 * @param dstOffset Byte offset into the disk.
+	 * @param length How many bytes to write. Limited by the input size.
+	 * @return How many bytes were written.
+	 */
+	public long burn(File input, long srcOffset, long dstOffset, long length) {
+		try (var inputChannel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+			long len = Math.min(inputChannel.size() - srcOffset, length);
+			if (len <= 0) return 0;
+			checkBurnRange(dstOffset, len);
+			
+			int checksum = 0;
+			if (compareBurns || verifyBurns) checksum = Burner.checksum(inputChannel, srcOffset, len);
+			if (isBurnUnchanged(dstOffset, len, checksum)) return 0;
+			
+			long written = Burner.transfer(inputChannel, srcOffset, getImage(), dstOffset, len);
+			invalidate(dstOffset, written);
+			
+			recordBurn(dstOffset, len, written, checksum);
+			return written;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Writes data already in memory into the disk. Works as
+	 * {@link #burn(File, long, long, long)} does, being checked and recorded the
+	 * same way. Useful when the same data is burned into several disks.
+	 * 
+	 * @param data Array containing the data.
+	 * @param from Index of the first byte of the array to write.
+	 * @param length How many bytes to write.
+	 * @param dstOffset Byte offset into the disk.
+	 * @return How many bytes were written.
+	 */
+	public long burn(byte[] data, int from, int length, long dstOffset) {
+		if (length <= 0) return 0;
+		checkBurnRange(dstOffset, length);
+		
+		int checksum = 0;
+		if (compareBurns || verifyBurns) {
+			var crc = new CRC32C();
+			crc.update(data, from, length);
+			checksum = (int)crc.getValue();
+		}
+		if (isBurnUnchanged(dstOffset, length, checksum)) return 0;
+		
+		write(dstOffset, data, from, length);
+		recordBurn(dstOffset, length, length, checksum);
+		return length;
+	}
+	
+	/** Fails if a burn would write past the end of the disk. */
+	private void checkBurnRange(long dstOffset, long length) {
+		long size = size();
+		if (dstOffset + length > size) {
+			throw new CLIException("Burning " + length + " bytes at 0x" + Long.toHexString(dstOffset).toUpperCase() + " would write past the end of the disk, which has " + size + " bytes.");
+		}
+	}
+	
+	/** If burns are compared and a range already holds the data, records it as unchanged. */
+	private boolean isBurnUnchanged(long dstOffset, long length, int checksum) {
+		try {
+			var image = getImage();
+			if (!compareBurns || dstOffset + length > image.size()) return false;
+			if (Burner.checksum(image, dstOffset, length) != checksum) return false;
+			
+			burnedRegions.add(new BurnRegion(dstOffset, length, checksum, BurnRegion.Status.UNCHANGED));
+			return true;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** Verifies a burned range if burns are verified, and records it. */
+	private void recordBurn(long dstOffset, long length, long written, int checksum) {
+		var status = BurnRegion.Status.WRITTEN;
+		if (verifyBurns) {
+			if (written != length || Burner.checksum(getImage(), dstOffset, length) != checksum) {
+				throw new CLIException(String.format("Verification of the %d bytes written at 0x%X failed.", length, dstOffset));
+			}
+			status = BurnRegion.Status.VERIFIED;
+		}
+		
+		burnedRegions.add(new BurnRegion(dstOffset, written, checksum, status));
+	}
+	
+	/**
+	 * Sets how burns are checked.
+	 * 
+	 * @param compare Skip writing ranges whose contents already match the input.
+	 * @param verify Read ranges back after writing them and check they match the input.
+	 */
+	public void setBurnChecks(boolean compare, boolean verify) {
+		this.compareBurns = compare;
+		this.verifyBurns = verify;
+	}
+	
+	/** Regions burned in this session, in the order they were burned. */
+	public List<BurnRegion> getBurnedRegions() {
+		return burnedRegions;
+	}
+	
+	/**
+	 * A range of the disk written by a burn.
+	 * 
+	 * @param offset Byte offset into the disk.
+	 * @param length Size of the range in bytes.
+	 * @param checksum CRC32C of the input, or 0 if burns weren't checked.
+	 * @param status What was done to the range.
+	 */
+	public record BurnRegion(long offset, long length, int checksum, Status status) {
+		public enum Status {
+			/** The disk already held the input, nothing was written. */
+			UNCHANGED,
+			WRITTEN,
+			/** Written and then read back successfully. */
+			VERIFIED
+		}
+		
+		@Override
+		public String toString() {
+			var str = String.format("[0x%X +%d]: %s", offset, length, status.name().toLowerCase());
+			if (status != Status.WRITTEN || checksum != 0) str += String.format(" (CRC32C %08X)", checksum);
+			return str;
+		}
+	}
+	
+	/**
+	 * Moves a block of bytes to another place of the disk. The two places may
+	 * overlap.
+	 * 
+	 * @param srcOffset Byte offset of the block.
+	 * @param dstOffset Byte offset where the block will be.
+	 * @param length Size of the block in bytes.
+	 * @return How many bytes were moved.
+	 */
+	public long move(long srcOffset, long dstOffset, long length) {
+		long moved = Burner.move(getImage(), srcOffset, dstOffset, length);
+		invalidate(dstOffset, moved);
+		return moved;
+	}
+	
+	/**
+	 * Fills a range of the disk with zeroes. Parts of the range that already
+	 * read as zeroes aren't written, so they stay as holes in sparse images.
+	 * 
+	 * @param offset Byte offset of the range.
+	 * @param length Size of the range in bytes.
+	 * @param dryRun Only count what would be zeroed, without writing anything.
+	 * @return How many bytes held data and were zeroed.
+	 */
+	public long zero(long offset, long length, boolean dryRun) {
+		long zeroed = Burner.zero(getImage(), offset, length, dryRun);
+		if (!dryRun) invalidate(offset, length);
+		return zeroed;
+	}
+	
+	/** Size of the disk in bytes. */
+	public long size() {
+		try {
+			return getImage().size();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	public File getFile() {
+		return diskFile;
+	}
+	
+	public SectorCache getCache() {
+		return cache;
+	}
+	
+	@Override
+	public void close() {
+		try {
+			if (image != null) image.close();
+			image = null;
+			cache.clear();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** Opens the disk image on the first access. */
+	DiskImage getImage() {
+		if (image == null) {
+			image = DiskImage.open(diskFile, memoryMapped);
+		}
+		return image;
+	}
+	
+	/**
+	 * Works out the sector size from the partitions of the MBR. The LBA of each
+	 * one is tried with every sector size, looking for a boot record signature
+	 * there. A FAT boot sector must also state the same sector size, so a
+	 * signature that happens to be found under another size isn't taken.
+	 */
+	private int detectSectorSize() {
+		var mbr = readRaw(0, DEFAULT_SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if ((mbr.getShort(0x1FE) & 0xFFFF) != 0xAA55) return DEFAULT_SECTOR_SIZE;
+		
+		for (int i = 0; i < 4; i++) {
+			int entry = 0x1BE + i * 16;
+			var type = PartitionType.fromByteId(mbr.get(entry + 0x04) & 0xFF);
+			long lba = Integer.toUnsignedLong(mbr.getInt(entry + 0x08));
+			if (type == PartitionType.EMPTY || lba == 0) continue;
+			
+			for (int size : SECTOR_SIZES) {
+				var record = readRaw(lba * size, DEFAULT_SECTOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				if ((record.getShort(0x1FE) & 0xFFFF) != 0xAA55) continue;
+				
+				// Extended boot records have no BPB, their signature is all there is to check
+				int bpbSectorSize = record.getShort(0x0B) & 0xFFFF;
+				if (type.isExtended() || bpbSectorSize == size) return size;
+			}
+		}
+		return DEFAULT_SECTOR_SIZE;
+	}
+	
+	/** Reads a block straight from the image. Bytes past the end of the image read as zeroes. */
+	private ByteBuffer readRaw(long offset, int length) {
+		try {
+			var image = getImage();
+			var bb = ByteBuffer.allocate(length);
+			while (bb.hasRemaining()) {
+				int r = image.read(bb, offset + bb.position());
+				if (r == -1) break;
+			}
+			
+			bb.clear();
+			return bb;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	private void invalidate(long offset, long length) {
+		if (length <= 0) return;
+		
+		int size = getSectorSize();
+		long firstLBA = offset / size;
+		long lastLBA = (offset + length - 1) / size;
+		cache.invalidate(firstLBA, lastLBA - firstLBA + 1);
+	}
+	
+	/** Copies the part of a sector that overlaps a read range into the destination array. */
+	private static void copySector(byte[] sector, long lba, byte[] dst, long dstOffset) {
+		copyRange(sector, lba * sector.length, dst, dstOffset);
+	}
+	
+	/** Copies the part of a range of the disk that overlaps another one. Both are given by their disk offsets. */
+	private static void copyRange(byte[] src, long srcOffset, byte[] dst, long dstOffset) {
+		long from = Math.max(srcOffset, dstOffset);
+		long to = Math.min(srcOffset + src.length, dstOffset + dst.length);
+		
+		System.arraycopy(src, (int)(from - srcOffset), dst, (int)(from - dstOffset), (int)(to - from));
 	}
 }
@@ -0,0 +1,260 @@
+package com.andre.devtoolkit;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Creates new disk images with an MBR partition table. Partitions are laid out
+ * in the order they were added, each aligned to 1 MiB. Logical partitions are
+ * placed after the primary ones, inside an extended partition with a chain of
+ * extended boot records.
+ * <br><br>
+ * Partitions are formatted as FAT16 when they fit its limits, and as FAT32
+ * otherwise, unless a FAT type is set for all of them. Disks may have logical
+ * sectors larger than 512 bytes, as 4K native drives do. Every structure is
+ * then laid out in sectors of that size.
+ * <br><br>
+ * Only the sectors holding actual structures are written: the partition table,
+ * the boot records and the start of each FAT. Everything else is left as a
+ * hole in the image file, so even large disks are created instantly.
+ *
+ * @author Andre
+ */
+public class DiskBuilder {
+	/** Partitions and boot records are aligned to this many bytes. */
+	static final int ALIGNMENT_BYTES = 1024 * 1024;
+	
+	private final long diskSize;
+	private final DiskImage.Format format;
+	private final List<Long> primaryPartitions = new ArrayList<>();
+	private final List<Long> logicalPartitions = new ArrayList<>();
+	private boolean formatFAT = true;
+	private int reservedSectors = 1;
+	private FATVolume.FATType fatType;
+	private int sectorSize = Disk.DEFAULT_SECTOR_SIZE;
+	
+	/**
+	 * @param diskSize Size of the disk in bytes.
+	 * @param format Format of the image file.
+	 */
+	public DiskBuilder(long diskSize, DiskImage.Format format) {
+		if (diskSize <= 0) throw new CLIException("Disk size must be positive.");
+		
+		this.diskSize = diskSize;
+		this.format = format;
+	}
+	
+	/** Adds a primary partition of the given size in bytes. */
+	public void addPrimaryPartition(long size) {
+		primaryPartitions.add(size);
+	}
+	
+	/** Adds a logical partition of the given size in bytes. */
+	public void addLogicalPartition(long size) {
+		logicalPartitions.add(size);
+	}
+	
+	/** Whether the partitions should be formatted as FAT volumes. Enabled by default. */
+	public void setFormatFAT(boolean format) {
+		this.formatFAT = format;
+	}
+	
+	/** Sets how many reserved sectors the FAT volumes have, including their boot sector. */
+	public void setReservedSectors(int sectors) {
+		this.reservedSectors = sectors;
+	}
+	
+	/** Formats every partition with the given FAT type, or picks one for each partition if null. */
+	public void setFATType(FATVolume.FATType type) {
+		this.fatType = type;
+	}
+	
+	/** Logical sector size of the disk. By default 512 bytes. */
+	public void setSectorSize(int size) {
+		if (!Disk.isValidSectorSize(size)) {
+			throw new CLIException("Sector size must be one of " + Arrays.toString(Disk.SECTOR_SIZES) + " bytes.");
+		}
+		if (size != Disk.DEFAULT_SECTOR_SIZE && format != DiskImage.Format.RAW) {
+			throw new CLIException("VHD disks can only have " + Disk.DEFAULT_SECTOR_SIZE + " byte sectors.");
+		}
+		this.sectorSize = size;
+	}
+	
+	/**
+	 * Creates the image file, overwriting it if it already exists.
+	 *
+	 * @return The partitions created, as listed by {@link Disk#listPartitions()}.
+	 */
+	public List<Partition> create(File file) {
+		if (diskSize % sectorSize != 0) {
+			throw new CLIException("Disk size must be a multiple of " + sectorSize + " bytes.");
+		}
+		if (diskSize / sectorSize > 0xFFFFFFFFL) {
+			throw new CLIException("Disk is too large for an MBR partition table.");
+		}
+		
+		int maxPrimary = logicalPartitions.isEmpty() ? 4 : 3;
+		if (primaryPartitions.size() > maxPrimary) {
+			throw new CLIException("The MBR only has room for " + maxPrimary + " primary partitions here.");
+		}
+		
+		// Lay out every partition before touching the file
+		var mbrEntries = new ArrayList<Region>();
+		var volumes = new ArrayList<Region>();
+		final long alignment = ALIGNMENT_BYTES / sectorSize;
+		long cursor = alignment;
+		
+		for (long size : primaryPartitions) {
+			var part = new Region(cursor, toSectors(size));
+			mbrEntries.add(part);
+			volumes.add(part);
+			cursor = align(part.end(), alignment);
+		}
+		
+		// Each logical partition is preceded by its boot record
+		var ebrs = new ArrayList<Region>();
+		long extendedStart = cursor;
+		for (long size : logicalPartitions) {
+			var ebr = new Region(cursor, alignment + toSectors(size));
+			ebrs.add(ebr);
+			volumes.add(new Region(ebr.start() + alignment, toSectors(size)));
+			cursor = align(ebr.end(), alignment);
+		}
+		
+		if (!ebrs.isEmpty()) {
+			long extendedEnd = ebrs.get(ebrs.size() - 1).end();
+			mbrEntries.add(new Region(extendedStart, extendedEnd - extendedStart));
+		}
+		
+		long usedSectors = mbrEntries.isEmpty() ? 0 : mbrEntries.get(mbrEntries.size() - 1).end();
+		if (usedSectors > diskSize / sectorSize) {
+			throw new CLIException("The partitions don't fit in a disk of " + Numbers.toSizeString(diskSize) + ".");
+		}
+		
+		DiskImage.create(file, diskSize, format);
+		
+		try {
+			return writeStructures(file, mbrEntries, ebrs, volumes, extendedStart);
+		} catch (RuntimeException ex) {
+			// Don't leave a half made disk behind
+			file.delete();
+			throw ex;
+		}
+	}
+	
+	private List<Partition> writeStructures(File file, List<Region> mbrEntries, List<Region> ebrs, List<Region> volumes, long extendedStart) {
+		try (var disk = new Disk(file, false, sectorSize)) {
+			// Master boot record. The first partition is marked as active.
+			var mbr = newBootRecord();
+			mbr.putInt(0x1B8, (int)System.nanoTime());
+			for (int i = 0; i < mbrEntries.size(); i++) {
+				var part = mbrEntries.get(i);
+				boolean extended = !ebrs.isEmpty() && i == mbrEntries.size() - 1;
+				var type = extended ? PartitionType.EXTENDED_LBA : getPartitionType(part);
+				
+				putEntry(mbr, i, type, part.start(), part.start(), part.sectors());
+				if (i == 0 && !extended) mbr.put(0x1BE, (byte)0x80);
+			}
+			disk.write(0, mbr.array());
+			
+			// Extended boot records. Logical partitions are relative to their
+			// record, and links to the next record relative to the extended partition.
+			for (int i = 0; i < ebrs.size(); i++) {
+				var ebr = ebrs.get(i);
+				var ebrBytes = newBootRecord();
+				
+				var logical = volumes.get(volumes.size() - ebrs.size() + i);
+				putEntry(ebrBytes, 0, getPartitionType(logical), logical.start() - ebr.start(), logical.start(), logical.sectors());
+				if (i + 1 < ebrs.size()) {
+					var next = ebrs.get(i + 1);
+					putEntry(ebrBytes, 1, PartitionType.EXTENDED_LBA, next.start() - extendedStart, next.start(), next.sectors());
+				}
+				
+				disk.write(ebr.start() * sectorSize, ebrBytes.array());
+			}
+			
+			if (formatFAT) {
+				for (var volume : volumes) {
+					FATVolume.format(disk, volume.start(), volume.sectors(), reservedSectors, getFATType(volume));
+				}
+			}
+			
+			return disk.listPartitions();
+		}
+	}
+	
+	private FATVolume.FATType getFATType(Region volume) {
+		return (fatType != null) ? fatType : FATVolume.getFormatType(volume.sectors(), sectorSize);
+	}
+	
+	/** Partition type of a volume, as stored in its partition table entry. */
+	private PartitionType getPartitionType(Region volume) {
+		if (formatFAT && getFATType(volume) == FATVolume.FATType.FAT32) return PartitionType.FAT_32_LBA;
+		return PartitionType.FAT_1X_LBA;
+	}
+	
+	/** An empty boot record sector, with only its signature. */
+	private ByteBuffer newBootRecord() {
+		var bytes = ByteBuffer.allocate(sectorSize).order(ByteOrder.LITTLE_ENDIAN);
+		bytes.putShort(0x1FE, (short)0xAA55);
+		return bytes;
+	}
+	
+	/**
+	 * Fills a partition table entry of a boot record.
+	 *
+	 * @param record Boot record sector.
+	 * @param index Index of the entry in the table.
+	 * @param type Type of the partition.
+	 * @param relativeStart First sector, as stored in the entry.
+	 * @param absoluteStart First sector in the disk, used for the CHS addresses.
+	 * @param sectors Size of the partition in sectors.
+	 */
+	private static void putEntry(ByteBuffer record, int index, PartitionType type, long relativeStart, long absoluteStart, long sectors) {
+		int offset = 0x1BE + index * 16;
+		putCHS(record, offset + 0x01, absoluteStart);
+		record.put(offset + 0x04, (byte)type.typeId);
+		putCHS(record, offset + 0x05, absoluteStart + sectors - 1);
+		record.putInt(offset + 0x08, (int)relativeStart);
+		record.putInt(offset + 0x0C, (int)sectors);
+	}
+	
+	/**
+	 * Stores the CHS address of a sector, assuming 255 heads and 63 sectors
+	 * per track. Sectors beyond the reach of CHS get the maximum address.
+	 */
+	private static void putCHS(ByteBuffer record, int offset, long lba) {
+		long cylinder = lba / (255 * 63);
+		int head = (int)(lba / 63 % 255);
+		int sector = (int)(lba % 63) + 1;
+		
+		if (cylinder > 1023) {
+			cylinder = 1023;
+			head = 254;
+			sector = 63;
+		}
+		
+		record.put(offset, (byte)head);
+		record.put(offset + 1, (byte)(sector | (cylinder >> 2) & 0xC0));
+		record.put(offset + 2, (byte)cylinder);
+	}
+	
+	private long toSectors(long bytes) {
+		return (bytes + sectorSize - 1) / sectorSize;
+	}
+	
+	private static long align(long sector, long alignment) {
+		return (sector + alignment - 1) / alignment * alignment;
+	}
+	
+	/** A range of sectors of the disk. */
+	private record Region(long start, long sectors) {
+		long end() {
+			return start + sectors;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.andre.devtoolkit;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Clears the parts of a disk that hold no data, so the image can be stored
+ * in less space. The regions cleared are:
+ * <ul>
+ * <li>The free clusters of every formatted FAT volume.</li>
+ * <li>The end of each FAT volume past its last whole cluster, up to the end
+ * of its partition.</li>
+ * <li>The slack after each partition, up to the next partition, boot record
+ * or the end of the disk.</li>
+ * </ul>
+ * Everything before the first partition is left alone, as boot loaders are
+ * often stored there. Regions are only written where they hold something, so
+ * running it again costs only the reads.
+ *
+ * @author Andre
+ */
+public class DiskCompactor {
+	private final Disk disk;
+	
+	public DiskCompactor(Disk disk) {
+		this.disk = disk;
+	}
+	
+	/** Lists the regions of the disk that hold no data, in disk order. */
+	public List<Region> listUnusedRegions() {
+		var partitions = disk.listPartitions();
+		var regions = new ArrayList<Region>();
+		
+		// Sectors where a partition or a boot record starts. Slack runs up to the next one.
+		var starts = new ArrayList<Long>();
+		for (var p : partitions) {
+			if (p == null) continue;
+			
+			if (p.isLogical()) starts.add(p.getBootRecordSector());
+			if (!p.isExtended()) starts.add(p.getFirstSector());
+		}
+		
+		long diskSectors = disk.size() / disk.getSectorSize();
+		for (var p : partitions) {
+			if (p == null || p.isExtended()) continue;
+			
+			if (FATVolume.isPartitionFAT(p) && FATVolume.hasBootSector(p)) {
+				addVolumeRegions(new FATVolume(p), regions);
+			}
+			
+			long end = p.getFirstSector() + p.getSizeInSectors();
+			long next = starts.stream().filter((s) -> s >= end).min(Long::compare).orElse(diskSectors);
+			long slack = (Math.min(next, diskSectors) - end) * disk.getSectorSize();
+			regions.add(new Region(end * disk.getSectorSize(), slack, Region.Kind.PARTITION_SLACK));
+		}
+		
+		regions.removeIf((r) -> r.length() <= 0);
+		regions.sort(Comparator.comparingLong(Region::offset));
+		return regions;
+	}
+	
+	/**
+	 * Zeroes every unused region of the disk.
+	 *
+	 * @param dryRun Only count what would be zeroed, without writing anything.
+	 * @return What was found and zeroed.
+	 */
+	public Report compact(boolean dryRun) {
+		long start = System.nanoTime();
+		var regions = listUnusedRegions();
+		
+		long scanned = 0;
+		long zeroed = 0;
+		long freeClusterBytes = 0;
+		long slackBytes = 0;
+		for (var region : regions) {
+			scanned += region.length();
+			zeroed += disk.zero(region.offset(), region.length(), dryRun);
+			
+			if (region.kind() == Region.Kind.FREE_CLUSTERS) {
+				freeClusterBytes += region.length();
+			} else {
+				slackBytes += region.length();
+			}
+		}
+		
+		return new Report(regions.size(), scanned, freeClusterBytes, slackBytes, zeroed, System.nanoTime() - start);
+	}
+	
+	/** Adds the runs of free clusters of a volume, and its end past the last whole cluster. */
+	private static void addVolumeRegions(FATVolume volume, List<Region> regions) {
+		int clusterBytes = volume.getClusterBytes();
+		volume.forEachFreeRun((index, first, count) ->
+				regions.add(new Region(volume.clusterOffset(first), (long)count * clusterBytes, Region.Kind.FREE_CLUSTERS)));
+		
+		var part = volume.getPartition();
+		long dataEnd = volume.clusterOffset(volume.getTotalClusters() + 2);
+		long partEnd = part.getOffset() + part.getSizeInBytes();
+		regions.add(new Region(dataEnd, partEnd - dataEnd, Region.Kind.VOLUME_SLACK));
+	}
+	
+	/**
+	 * A part of the disk holding no data.
+	 *
+	 * @param offset Byte offset into the disk.
+	 * @param length Size of the region in bytes.
+	 * @param kind Why the region holds no data.
+	 */
+	public record Region(long offset, long length, Kind kind) {
+		public enum Kind {
+			/** Clusters marked free in the FAT. */
+			FREE_CLUSTERS,
+			/** Between the last whole cluster of a volume and the end of its partition. */
+			VOLUME_SLACK,
+			/** Between the end of a partition and whatever comes next. */
+			PARTITION_SLACK
+		}
+	}
+	
+	/**
+	 * Outcome of a compaction.
+	 *
+	 * @param regions How many unused regions were found.
+	 * @param scanned Total size of the unused regions.
+	 * @param freeClusterBytes How much of it is free clusters.
+	 * @param slackBytes How much of it is slack at the end of volumes and partitions.
+	 * @param zeroed How many bytes of the regions held stale data and were zeroed.
+	 * @param elapsedNanos Time taken.
+	 */
+	public record Report(int regions, long scanned, long freeClusterBytes, long slackBytes, long zeroed, long elapsedNanos) {}
+}
@@ -0,0 +1,241 @@
+package com.andre.devtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Storage backend of a {@link Disk}. Translates positions in the virtual disk
+ * into reads and writes on the image file. Images are also channels, so that
+ * {@link Burner} can move data in and out of them like any other file.
+ * 
+ * @author Andre
+ */
+public abstract class DiskImage implements SeekableByteChannel {
+	private long position;
+	
+	/**
+	 * Opens an image file. The format of the image is detected from its
+	 * contents: VHD files are recognized by their footer, and anything else is
+	 * treated as a raw image.
+	 * 
+	 * @param file Image file.
+	 * @param memoryMapped Whether the image should be accessed through memory
+	 * mappings instead of channel reads. Ignored for dynamic VHDs.
+	 * <br><br>
+	 * If the image has an overlay, the image itself is only read, and the
+	 * overlay is returned instead. See {@link OverlayImage}.
+	 * 
+	 * @return The image backend.
+	 */
+	public static DiskImage open(File file, boolean memoryMapped) {
+		if (!file.exists()) throw new CLIException("Disk '" + file + "' does not exist.");
+		
+		if (OverlayImage.hasOverlay(file)) {
+			var overlay = OverlayImage.getOverlayFile(file);
+			try {
+				return new OverlayImage(openImage(file, memoryMapped, false), file, overlay.canWrite());
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+		
+		return openImage(file, memoryMapped, file.canWrite());
+	}
+	
+	/**
+	 * Opens an image file by itself, ignoring any overlay it has.
+	 * 
+	 * @param file Image file.
+	 * @param memoryMapped Whether the image should be accessed through memory
+	 * mappings. Ignored for dynamic VHDs.
+	 * @param writable Whether the image is opened for writing too.
+	 * @return The image backend.
+	 */
+	static DiskImage openImage(File file, boolean memoryMapped, boolean writable) {
+		if (!file.exists()) throw new CLIException("Disk '" + file + "' does not exist.");
+		
+		try {
+			// Raw images are as large as their file
+			long diskSize = -1;
+			
+			try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				var footer = VHD.readFooter(channel);
+				
+				if (footer != null) {
+					switch (footer.getInt(VHD.FOOTER_DISK_TYPE)) {
+						case VHD.DISK_TYPE_FIXED -> diskSize = footer.getLong(VHD.FOOTER_CURRENT_SIZE);
+						case VHD.DISK_TYPE_DYNAMIC -> {
+							return new DynamicVHDImage(file, writable);
+						}
+						default -> throw new CLIException("Differencing VHDs are not supported.");
+					}
+				}
+			}
+			
+			if (memoryMapped) return new MappedImage(file, writable, diskSize);
+			return new FileImage(file, writable, diskSize);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Creates a new image file whose disk is entirely zeroed. The zeroes are
+	 * never written: raw and fixed VHD files are extended past their end,
+	 * leaving a hole where the filesystem supports it, and dynamic VHDs start
+	 * without any block stored.
+	 * 
+	 * @param file Image file. Overwritten if it already exists.
+	 * @param diskSize Size of the virtual disk in bytes.
+	 * @param format Format of the image file.
+	 */
+	public static void create(File file, long diskSize, Format format) {
+		try (var raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			
+			switch (format) {
+				case RAW -> raf.setLength(diskSize);
+				case FIXED_VHD -> {
+					raf.seek(diskSize);
+					raf.write(VHD.createFooter(diskSize, VHD.DISK_TYPE_FIXED));
+				}
+				case DYNAMIC_VHD -> {
+					int entries = (int)((diskSize + VHD.DEFAULT_BLOCK_SIZE - 1) / VHD.DEFAULT_BLOCK_SIZE);
+					var footer = VHD.createFooter(diskSize, VHD.DISK_TYPE_DYNAMIC);
+					
+					// No block is stored yet. The table is padded to a whole sector.
+					var table = new byte[(entries * 4 + VHD.SECTOR_SIZE - 1) / VHD.SECTOR_SIZE * VHD.SECTOR_SIZE];
+					Arrays.fill(table, (byte)0xFF);
+					
+					raf.write(footer);
+					raf.write(VHD.createDynamicHeader(entries, VHD.DEFAULT_BLOCK_SIZE));
+					raf.write(table);
+					raf.write(footer);
+				}
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Gives back the host disk space held by zeroed parts of an image file.
+	 * Dynamic VHDs drop the blocks that only hold zeroes and are truncated.
+	 * Java can't punch holes into an existing file, so raw images and fixed
+	 * VHDs are copied into a new sparse file instead, with their zeroed blocks
+	 * left as holes, which then replaces the original.
+	 * 
+	 * @param file Image file, without an overlay.
+	 * @return How many bytes of the file still hold data.
+	 */
+	public static long reclaimSpace(File file) {
+		if (OverlayImage.hasOverlay(file)) throw new CLIException("'" + file + "' has an overlay.");
+		
+		try {
+			try (var image = openImage(file, false, true)) {
+				if (image instanceof DynamicVHDImage vhd) {
+					vhd.compact();
+					return file.length();
+				}
+			}
+			
+			// The whole file is copied as it is, including the footer of fixed VHDs
+			var sparse = new File(file.getPath() + ".compact");
+			long stored;
+			try (var source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					var raf = new RandomAccessFile(sparse, "rw")) {
+				raf.setLength(0);
+				raf.setLength(source.size());
+				stored = Burner.copyNonZero(source, raf.getChannel(), source.size());
+			} catch (IOException | RuntimeException ex) {
+				sparse.delete();
+				throw ex;
+			}
+			
+			Files.move(sparse.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return stored;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Reads bytes starting at a disk position, without moving the channel position.
+	 * 
+	 * @return How many bytes were read, or -1 if the position is past the end of the disk.
+	 */
+	public abstract int read(ByteBuffer dst, long position) throws IOException;
+	
+	/**
+	 * Writes bytes starting at a disk position, without moving the channel position.
+	 * 
+	 * @return How many bytes were written.
+	 */
+	public abstract int write(ByteBuffer src, long position) throws IOException;
+	
+	/** Size of the virtual disk in bytes. */
+	@Override
+	public abstract long size() throws IOException;
+	
+	/**
+	 * Gives direct access to a range of the disk without copying it, if the
+	 * backend is able to.
+	 * 
+	 * @return A buffer over the range, or null if the range can only be read.
+	 */
+	public ByteBuffer map(long position, int length) {
+		return null;
+	}
+	
+	/**
+	 * If the disk bytes are stored as-is in a file, returns the channel of that
+	 * file. This lets bulk copies be delegated to the operating system.
+	 * 
+	 * @return The file channel, or null if the image has its own layout.
+	 */
+	public FileChannel getFlatChannel() {
+		return null;
+	}
+	
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int n = read(dst, position);
+		if (n > 0) position += n;
+		return n;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int n = write(src, position);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public long position() {
+		return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) {
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new UnsupportedOperationException("Disk images can't be truncated.");
+	}
+	
+	public enum Format {
+		RAW, FIXED_VHD, DYNAMIC_VHD
+	}
+}
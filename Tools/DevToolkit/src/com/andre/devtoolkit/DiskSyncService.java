@@ -1,146 +1,230 @@
 package com.andre.devtoolkit;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Watches a directory tree in this machine and mirrors the changes made to it
+ * into a directory of a FAT volume in a disk image. The volume is written
+ * in-process by {@link FATVolume}, so the disk image never has to be mounted.
+ * <br><br>
+ * Changes are not applied as soon as they're seen. They're collected into a
+ * batch, merging repeated events on the same path, and the batch is applied
+ * in a single disk session once no new events arrived for a short while.
+ * The whole tree is synced once when the service starts.
  *
  * @author Andre
  */
 public class DiskSyncService {
-	final int UNMOUNTING_DELAY = 1000;
+	/** How long the watched tree must stay quiet before a batch is applied, in milliseconds. */
+	static final int BATCH_WINDOW = 250;
 	
-	boolean diskMounted;
-	long lastTimeDiskMounted;
-	String diskFilePath;
-	Path srcPath;
-	Path diskPath;
+	/** Longest a change can wait in a batch while events keep arriving, in milliseconds. */
+	static final int MAX_BATCH_DELAY = 2000;
 	
-	public DiskSyncService(File diskFile, String srcPath, String diskPath) {
-		try {
-			this.diskFilePath = diskFile.getCanonicalPath();
-			this.srcPath = Path.of(srcPath);
-			this.diskPath = Path.of(diskPath);
-		} catch (IOException ex) {
-			throw new RuntimeException(ex);
-		}
+	final File diskFile;
+	final int partitionIndex;
+	final Path srcPath;
+	final String diskPath;
+	FATVolume.AllocationPolicy allocationPolicy = FATVolume.AllocationPolicy.FIRST_FIT;
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+	
+	// Changes waiting to be applied, by path relative to the watched directory
+	private final Map<Path, Change> pending = new LinkedHashMap<>();
+	private ScheduledFuture<?> scheduledBatch;
+	private long batchStart;
+	
+	/**
+	 * @param diskFile Disk image to be synced.
+	 * @param partitionIndex Index of the FAT partition to be written, or -1 to
+	 * use the first FAT partition of the disk.
+	 * @param srcPath Directory watched in this machine.
+	 * @param diskPath Directory in the volume that mirrors the watched directory.
+	 */
+	public DiskSyncService(File diskFile, int partitionIndex, String srcPath, String diskPath) {
+		this.diskFile = diskFile;
+		this.partitionIndex = partitionIndex;
+		this.srcPath = Path.of(srcPath);
+		this.diskPath = diskPath;
+	}
+	
+	public void setAllocationPolicy(FATVolume.AllocationPolicy policy) {
+		this.allocationPolicy = policy;
 	}
 	
 	public void run() {
 		System.out.println("-- Disk Syncing Utility --");
-		if (!Executor.hasElevatedPrivleges()) {
-			System.out.println("[!] WARNING: No elevated privleges. Mounting might fail.");
-		}
 		
 		try {
 			var watcher = FileSystems.getDefault().newWatchService();
-			srcPath.register(watcher,
-					StandardWatchEventKinds.ENTRY_CREATE,
-					StandardWatchEventKinds.ENTRY_MODIFY);
+			registerTree(watcher, srcPath);
 			
-			new Thread(() -> {
-				while (true) {
-					try {
-						Thread.sleep(1000);
-					
-						if (diskMounted) {
-							if (System.currentTimeMillis() - lastTimeDiskMounted > UNMOUNTING_DELAY) {
-								unmountDisk();
-							}
-						}
-					} catch (Exception ex) {}
-				}
-			}).start();
+			// Bring the disk up to date with whatever is already in the directory
+			queueTree(srcPath);
 			
 			while (true) {
 				var wkey = watcher.take();
+				var dir = watchedDirs.get(wkey);
 				
 				for (var ev : wkey.pollEvents()) {
 					var kind = ev.kind();
-					if (kind == StandardWatchEventKinds.OVERFLOW) continue;
-					
-					var event = (WatchEvent<Path>)ev;
-					var pathAltered = event.context();
-					
-					var srcFile = srcPath.resolve(pathAltered);
-					System.out.println("Modified: " + srcFile);
 					
-					var dstFile = diskPath.resolve(pathAltered);
-					System.out.println("Copying to: " + dstFile);
-					
-					try {
-						mountDisk();
-						System.out.println("    Mounted.");
-					} catch (Exception ex) {
-						System.out.println("[.] Could'nt mount.");
+					// Events were lost, so the whole tree has to be looked at again
+					if (kind == StandardWatchEventKinds.OVERFLOW) {
+						queueTree(srcPath);
+						continue;
 					}
 					
-					try {
-						Executor.execSilently("cmd", "/c", "copy", srcFile.toString(), dstFile.toString());
-						System.out.println("    Copied.");
-						diskMounted = true;
-					} catch (Exception ex) {
-						System.out.println("[!] Copy failed.");
+					@SuppressWarnings("unchecked")
+					var event = (WatchEvent<Path>)ev;
+					var pathAltered = dir.resolve(event.context());
+					
+					if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+						queue(pathAltered, Change.DELETE);
+					} else if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(pathAltered)) {
+						// New directories are watched too, and whatever was already put in them synced
+						registerTree(watcher, pathAltered);
+						queueTree(pathAltered);
+					} else {
+						queue(pathAltered, Change.COPY);
 					}
 				}
 				
-				if(!wkey.reset()) return;
+				if (!wkey.reset()) watchedDirs.remove(wkey);
 			}
 		} catch (Exception ex) {
 			throw new RuntimeException(ex);
+		} finally {
+			scheduler.shutdown();
 		}
 	}
 	
-	synchronized void mountDisk() {
-		diskMounted = true;
-		lastTimeDiskMounted = System.currentTimeMillis();
-			
-		try {
-			
-			var script = Files.createTempFile(null, ".dps");
-			var scriptFile = script.toFile();
-			
-			try (var writer = new FileWriter(scriptFile)) {
-				writer.write("select vdisk file=\"" + diskFilePath + "\"\n");
-				writer.write("attach vdisk");
+	/** Watches a directory and all its subdirectories. */
+	private void registerTree(WatchService watcher, Path root) throws IOException {
+		try (var dirs = Files.walk(root)) {
+			for (var dir : dirs.filter(Files::isDirectory).toList()) {
+				var key = dir.register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE);
+				
+				watchedDirs.put(key, dir);
 			}
-
-			int returnCode = Executor.execSilently("diskpart", "/s", script.toString());
-			if (returnCode != 0) {
-				System.out.println("[!] Disk attach failed.");
-				throw new CLIException("Diskpart failed with code " + returnCode);
+		}
+	}
+	
+	/** Queues every file and directory of a tree to be copied. */
+	private void queueTree(Path root) throws IOException {
+		try (var paths = Files.walk(root)) {
+			for (var path : paths.toList()) {
+				if (!path.equals(srcPath)) queue(path, Change.COPY);
 			}
-		} catch(Exception ex) {
-			throw new RuntimeException(ex);
 		}
 	}
 	
-	synchronized void unmountDisk() {
-		try {
-			diskMounted = false;
-			
-			var script = Files.createTempFile(null, ".dps");
-			var scriptFile = script.toFile();
+	/**
+	 * Adds a change to the current batch and pushes the batch deadline back,
+	 * unless the batch has already been waiting for too long.
+	 */
+	private synchronized void queue(Path path, Change change) {
+		pending.put(srcPath.relativize(path), change);
+		
+		long now = System.currentTimeMillis();
+		if (scheduledBatch == null) {
+			batchStart = now;
+		} else {
+			scheduledBatch.cancel(false);
+		}
+		
+		long delay = Math.min(BATCH_WINDOW, batchStart + MAX_BATCH_DELAY - now);
+		scheduledBatch = scheduler.schedule(this::applyBatch, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+	}
+	
+	/** Applies every pending change in a single disk session. */
+	private void applyBatch() {
+		Map<Path, Change> batch;
+		synchronized (this) {
+			batch = new LinkedHashMap<>(pending);
+			pending.clear();
+			scheduledBatch = null;
+		}
+		if (batch.isEmpty()) return;
+		
+		// Deletions go first, then parents are created before their children
+		var deletions = new ArrayList<Path>();
+		var copies = new ArrayList<Path>();
+		batch.forEach((path, change) -> (change == Change.DELETE ? deletions : copies).add(path));
+		copies.sort(Comparator.comparingInt(Path::getNameCount));
+		
+		long start = System.nanoTime();
+		long written = 0;
+		long skipped = 0;
+		
+		try (var disk = new Disk(diskFile)) {
+			var volume = FATVolume.open(disk, partitionIndex);
+			volume.setAllocationPolicy(allocationPolicy);
+			volume.makeDirectory(diskPath);
 			
-			try (var writer = new FileWriter(scriptFile)) {
-				writer.write("select vdisk file=\"" + diskFilePath + "\"\n");
-				writer.write("detach vdisk");
+			for (var path : deletions) {
+				try {
+					if (volume.delete(toDiskPath(path), true)) {
+						System.out.println("Deleted: " + path);
+					}
+				} catch (Exception ex) {
+					System.out.println("[!] Couldn't delete " + path + ": " + ex.getMessage());
+				}
 			}
-
-			int returnCode = Executor.execSilently("diskpart", "/s", script.toString());
-			if (returnCode != 0) {
-				System.out.println("[.] Disk unmounting failed.");
-				throw new CLIException("Diskpart failed with code " + returnCode);
+			
+			for (var path : copies) {
+				var srcFile = srcPath.resolve(path);
+				
+				try {
+					if (Files.isDirectory(srcFile)) {
+						volume.makeDirectory(toDiskPath(path));
+					} else if (Files.isRegularFile(srcFile)) {
+						var stats = volume.writeFile(toDiskPath(path), Files.readAllBytes(srcFile));
+						written += stats.written();
+						skipped += stats.skipped();
+						System.out.println("Copied: " + path);
+					}
+				} catch (Exception ex) {
+					System.out.println("[!] Couldn't copy " + path + ": " + ex.getMessage());
+				}
 			}
-			System.out.println("    Disk unmounted.");
-		} catch(Exception ex) {
-			throw new RuntimeException(ex);
+			
+			volume.flush();
+		} catch (Exception ex) {
+			System.out.println("[!] Sync failed: " + ex.getMessage());
+			return;
 		}
+		
+		double millis = (System.nanoTime() - start) / 1_000_000.0;
+		System.out.printf("    Synced %d changes in %.2f ms (%d bytes written, %d bytes unchanged)\n", batch.size(), millis, written, skipped);
+	}
+	
+	private String toDiskPath(Path relative) {
+		return diskPath + "/" + relative.toString().replace('\\', '/');
+	}
+	
+	private enum Change {
+		COPY, DELETE
 	}
 }
@@ -0,0 +1,284 @@
+package com.andre.devtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * Dynamic (sparse) VHD image. The disk is split into fixed-size blocks, and
+ * only the blocks that were ever written are stored in the file, located
+ * through the block allocation table. Blocks not stored read as zeroes, and a
+ * block is only appended to the file once non-zero data is written into it.
+ * 
+ * @author Andre
+ */
+public class DynamicVHDImage extends DiskImage {
+	private static final byte[] ZEROES = new byte[64 * 1024];
+	
+	private final FileChannel channel;
+	private final byte[] footer;
+	private final long diskSize;
+	private final int blockSize;
+	
+	// Each stored block starts with a bitmap of its sectors, padded to a whole sector
+	private final int bitmapSize;
+	
+	private final long tableOffset;
+	private final int[] allocationTable;
+	
+	// Where the footer copy at the end of the file is. New blocks are placed over it.
+	private long footerOffset;
+	
+	public DynamicVHDImage(File file, boolean writable) throws IOException {
+		if (writable) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		
+		var footerBuffer = VHD.readFooter(channel);
+		if (footerBuffer == null) throw new CLIException("'" + file + "' is not a VHD file.");
+		if (footerBuffer.getInt(VHD.FOOTER_DISK_TYPE) != VHD.DISK_TYPE_DYNAMIC) {
+			throw new CLIException("'" + file + "' is not a dynamic VHD.");
+		}
+		
+		footer = footerBuffer.array();
+		footerOffset = channel.size() - VHD.FOOTER_SIZE;
+		diskSize = footerBuffer.getLong(VHD.FOOTER_CURRENT_SIZE);
+		
+		// Read the dynamic disk header
+		long headerOffset = footerBuffer.getLong(VHD.FOOTER_DATA_OFFSET);
+		var header = read(channel, headerOffset, VHD.DYNAMIC_HEADER_SIZE);
+		if (!Arrays.equals(header.array(), 0, 8, VHD.DYNAMIC_COOKIE, 0, 8)) {
+			throw new CLIException("'" + file + "' has a corrupted dynamic disk header.");
+		}
+		
+		tableOffset = header.getLong(VHD.HEADER_TABLE_OFFSET);
+		blockSize = header.getInt(VHD.HEADER_BLOCK_SIZE);
+		bitmapSize = roundToSector(blockSize / VHD.SECTOR_SIZE / 8);
+		
+		// Read the block allocation table
+		int entries = header.getInt(VHD.HEADER_MAX_TABLE_ENTRIES);
+		var table = read(channel, tableOffset, entries * 4);
+		allocationTable = new int[entries];
+		table.asIntBuffer().get(allocationTable);
+	}
+	
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position >= diskSize) return -1;
+		
+		int total = 0;
+		while (dst.hasRemaining() && position < diskSize) {
+			int block = (int)(position / blockSize);
+			int inBlock = (int)(position % blockSize);
+			int len = (int)Math.min(Math.min(dst.remaining(), blockSize - inBlock), diskSize - position);
+			
+			if (allocationTable[block] == VHD.UNALLOCATED) {
+				// Blocks never written are all zeroes
+				for (int done = 0; done < len; done += ZEROES.length) {
+					dst.put(ZEROES, 0, Math.min(ZEROES.length, len - done));
+				}
+			} else {
+				var slice = dst.slice(dst.position(), len);
+				long offset = blockDataOffset(block) + inBlock;
+				while (slice.hasRemaining()) {
+					if (channel.read(slice, offset + slice.position()) == -1) break;
+				}
+				dst.position(dst.position() + len);
+			}
+			
+			position += len;
+			total += len;
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		if (position + src.remaining() > diskSize) throw new IOException("Write past the end of the disk.");
+		
+		int total = 0;
+		while (src.hasRemaining()) {
+			int block = (int)(position / blockSize);
+			int inBlock = (int)(position % blockSize);
+			int len = Math.min(src.remaining(), blockSize - inBlock);
+			var slice = src.slice(src.position(), len);
+			
+			// Writing zeroes over a block not stored changes nothing
+			if (allocationTable[block] == VHD.UNALLOCATED) {
+				if (isZero(slice)) {
+					src.position(src.position() + len);
+					position += len;
+					total += len;
+					continue;
+				}
+				
+				allocateBlock(block);
+			}
+			
+			long offset = blockDataOffset(block) + inBlock;
+			while (slice.hasRemaining()) {
+				channel.write(slice, offset + slice.position());
+			}
+			
+			src.position(src.position() + len);
+			position += len;
+			total += len;
+		}
+		return total;
+	}
+	
+	@Override
+	public long size() {
+		return diskSize;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	/** How many blocks are stored in the file. */
+	public int getAllocatedBlocks() {
+		int count = 0;
+		for (int entry : allocationTable) {
+			if (entry != VHD.UNALLOCATED) count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Drops the stored blocks that only hold zeroes, then moves the blocks at
+	 * the end of the file into the gaps left, so the file can be truncated.
+	 * Blocks are moved before their table entries are pointed at them, and the
+	 * file is only truncated once every block is in place.
+	 * 
+	 * @return How many bytes the file shrank by.
+	 */
+	public long compact() throws IOException {
+		long oldSize = channel.size();
+		long slotSize = bitmapSize + (long)blockSize;
+		
+		// Where every stored block is, and which of them are kept
+		var slots = new TreeMap<Long, Integer>();
+		var data = ByteBuffer.allocate(blockSize);
+		for (int block = 0; block < allocationTable.length; block++) {
+			if (allocationTable[block] == VHD.UNALLOCATED) continue;
+			
+			long slot = Integer.toUnsignedLong(allocationTable[block]) * VHD.SECTOR_SIZE;
+			data.clear();
+			while (data.hasRemaining()) {
+				if (channel.read(data, slot + bitmapSize + data.position()) == -1) break;
+			}
+			
+			if (isZero(data.flip())) {
+				setTableEntry(block, VHD.UNALLOCATED);
+				slots.put(slot, -1);
+			} else {
+				slots.put(slot, block);
+			}
+		}
+		if (slots.isEmpty()) return 0;
+		
+		// The blocks kept are packed into the first slots of the file
+		int kept = getAllocatedBlocks();
+		var offsets = new ArrayList<>(slots.keySet());
+		var gaps = new ArrayDeque<Long>();
+		for (int i = 0; i < kept; i++) {
+			if (slots.get(offsets.get(i)) == -1) gaps.add(offsets.get(i));
+		}
+		
+		var slotBuffer = ByteBuffer.allocate((int)slotSize);
+		for (int i = kept; i < offsets.size(); i++) {
+			int block = slots.get(offsets.get(i));
+			if (block == -1) continue;
+			
+			long target = gaps.remove();
+			slotBuffer.clear();
+			while (slotBuffer.hasRemaining()) {
+				if (channel.read(slotBuffer, offsets.get(i) + slotBuffer.position()) == -1) break;
+			}
+			writeFully(slotBuffer.flip(), target);
+			setTableEntry(block, (int)(target / VHD.SECTOR_SIZE));
+		}
+		
+		// Put the footer copy right after the last block and drop the rest
+		long newFooterOffset = (kept > 0) ? offsets.get(kept - 1) + slotSize : offsets.get(0);
+		writeFully(ByteBuffer.wrap(footer), newFooterOffset);
+		channel.truncate(newFooterOffset + VHD.FOOTER_SIZE);
+		footerOffset = newFooterOffset;
+		
+		return oldSize - channel.size();
+	}
+	
+	/**
+	 * Appends a block to the file, in the place of the footer copy at the end.
+	 * The block data is not written, it's left as a hole in the file.
+	 */
+	private void allocateBlock(int block) throws IOException {
+		long blockOffset = footerOffset;
+		long newFooterOffset = blockOffset + bitmapSize + blockSize;
+		
+		// Move the footer to the new end of the file first, so the file stays valid
+		writeFully(ByteBuffer.wrap(footer), newFooterOffset);
+		
+		// Every sector of the block is marked as present
+		var bitmap = new byte[bitmapSize];
+		Arrays.fill(bitmap, (byte)0xFF);
+		writeFully(ByteBuffer.wrap(bitmap), blockOffset);
+		
+		// Point the table entry to the block
+		setTableEntry(block, (int)(blockOffset / VHD.SECTOR_SIZE));
+		
+		footerOffset = newFooterOffset;
+	}
+	
+	/** Updates the allocation table entry of a block, in memory and in the file. */
+	private void setTableEntry(int block, int sector) throws IOException {
+		allocationTable[block] = sector;
+		writeFully(ByteBuffer.allocate(4).putInt(0, sector), tableOffset + block * 4L);
+	}
+	
+	private long blockDataOffset(int block) {
+		return Integer.toUnsignedLong(allocationTable[block]) * VHD.SECTOR_SIZE + bitmapSize;
+	}
+	
+	private void writeFully(ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining()) {
+			channel.write(src, position + src.position());
+		}
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		var buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("Unexpected end of VHD file.");
+			}
+		}
+		return buffer.clear();
+	}
+	
+	private static boolean isZero(ByteBuffer buffer) {
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			if (buffer.get(i) != 0) return false;
+		}
+		return true;
+	}
+	
+	private static int roundToSector(int bytes) {
+		return (bytes + VHD.SECTOR_SIZE - 1) / VHD.SECTOR_SIZE * VHD.SECTOR_SIZE;
+	}
+}
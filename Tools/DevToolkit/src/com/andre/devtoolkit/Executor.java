@@ -1,82 +1,129 @@
 package com.andre.devtoolkit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.prefs.Preferences;
 
 /**
+ * Runs external programs. Processes are started asynchronously, and their
+ * stdout and stderr are drained by buffered pumps running on virtual threads,
+ * so waiting on a program never spins a core and a chatty program can't block
+ * on a full pipe.
  *
  * @author Andre
  */
 public class Executor {
+	private static final int PUMP_BUFFER_SIZE = 8192;
+	
+	// Virtual threads are cheap, so every pump gets its own
+	private static final ExecutorService PUMPS = Executors.newVirtualThreadPerTaskExecutor();
+	
 	/**
 	 * Runs a program with optional CLI arguments. The program will have all of
 	 * its output redirected to stdout. This function only returns when the
 	 * process has finished running completely.
-	 * 
+	 *
 	 * @param cmd The program command followed by its arguments.
 	 * @return The return code of the program.
 	 */
 	static int exec(String... cmd) {
-		try {
-			Process proc;
-			
-			// Build the process and start it. If the program command couldn't be found, throw a dedicated exception.
-			try {
-				var procBuilder = new ProcessBuilder(cmd);
-				procBuilder.redirectErrorStream(true);
-				proc = procBuilder.start();
-			} catch(IOException e){
-				throw new ProgramNotFoundException(e);
-			}
-			
-			// While the program is running, print all its output.
-			var input = proc.getInputStream();
-			while (proc.isAlive()) {
-				int c = input.read();
-				if (c > 0) {
-					System.out.print((char) c);
-				}
-			}
-			
-			// After the program is done running, drain the rest of the output.
-			int returnCode = proc.waitFor();
-			int c;
-			while ((c = input.read()) > 0) {
-				System.out.print((char) c);
-			}
-
-			return returnCode;
-		} catch (Exception ex) {
-			throw new RuntimeException(ex);
-		}
+		return execAsync(System.out, cmd).join().exitCode();
 	}
 	
 	/**
-	 * Runs a program with optional CLI arguments. This function only returns when the
-	 * process has finished running completely.
-	 * 
+	 * Runs a program with optional CLI arguments. Its output is discarded. This
+	 * function only returns when the process has finished running completely.
+	 *
 	 * @param cmd The program command followed by its arguments.
 	 * @return The return code of the program.
 	 */
 	public static int execSilently(String... cmd) {
+		return execAsync(null, cmd).join().exitCode();
+	}
+	
+	/**
+	 * Starts a program and returns immediately.
+	 *
+	 * @param output Where the stdout and stderr of the program are written, or
+	 * null to discard them.
+	 * @param cmd The program command followed by its arguments.
+	 * @return A future completed once the program has exited and all of its
+	 * output was pumped.
+	 * @throws ProgramNotFoundException If the program couldn't be started.
+	 */
+	public static CompletableFuture<Result> execAsync(OutputStream output, String... cmd) {
+		long start = System.nanoTime();
+		Process proc;
+		
+		// Build the process and start it. If the program command couldn't be found, throw a dedicated exception.
 		try {
-			Process proc;
+			proc = new ProcessBuilder(cmd).start();
+		} catch (IOException e) {
+			throw new ProgramNotFoundException(e);
+		}
+		
+		// Nothing is ever written to the program
+		try {
+			proc.getOutputStream().close();
+		} catch (IOException ignored) {}
+		
+		var stdout = pump(proc.getInputStream(), output);
+		var stderr = pump(proc.getErrorStream(), output);
+		
+		return CompletableFuture.allOf(proc.onExit(), stdout, stderr)
+				.thenApply((v) -> new Result(List.of(cmd), proc.exitValue(), System.nanoTime() - start));
+	}
+	
+	/**
+	 * Runs several programs at the same time. The output of each program is
+	 * held until it finishes, and then printed at once, so outputs never mix.
+	 *
+	 * @param cmds Commands to run, each followed by its arguments.
+	 * @return The results, in the same order as the commands.
+	 */
+	public static List<Result> execAll(List<String[]> cmds) {
+		var futures = new ArrayList<CompletableFuture<Result>>();
+		for (var cmd : cmds) {
+			var output = new ByteArrayOutputStream();
+			futures.add(execAsync(output, cmd).thenApply((result) -> {
+				synchronized (System.out) {
+					System.out.write(output.toByteArray(), 0, output.size());
+					System.out.flush();
+				}
+				return result;
+			}));
+		}
+		
+		return futures.stream().map(CompletableFuture::join).toList();
+	}
+	
+	/** Copies a stream into an output on a virtual thread, until the stream ends. */
+	private static CompletableFuture<Void> pump(InputStream input, OutputStream output) {
+		return CompletableFuture.runAsync(() -> {
+			var buffer = new byte[PUMP_BUFFER_SIZE];
 			
-			// Build the process and start it. If the program command couldn't be found, throw a dedicated exception.
-			try {
-				var procBuilder = new ProcessBuilder(cmd);
-				procBuilder.redirectErrorStream(true);
-				proc = procBuilder.start();
-			} catch(IOException e){
-				throw new ProgramNotFoundException(e);
+			try (input) {
+				int n;
+				while ((n = input.read(buffer)) != -1) {
+					if (output == null) continue;
+					
+					// Both pumps of a program may share the same output
+					synchronized (output) {
+						output.write(buffer, 0, n);
+						output.flush();
+					}
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
 			}
-						
-			// After the program is done running, drain the rest of the output.
-			int returnCode = proc.waitFor();
-			return returnCode;
-		} catch (Exception ex) {
-			throw new RuntimeException(ex);
-		}
+		}, PUMPS);
 	}
 	
 	public static boolean hasElevatedPrivleges() {
@@ -92,4 +139,20 @@ public class Executor {
 		}
 	}
 	
+	/**
+	 * Outcome of a program run.
+	 *
+	 * @param command The program command followed by its arguments.
+	 * @param exitCode Return code of the program.
+	 * @param elapsedNanos Time from the program start until its output was drained.
+	 */
+	public record Result(List<String> command, int exitCode, long elapsedNanos) {
+		public double elapsedMillis() {
+			return elapsedNanos / 1_000_000.0;
+		}
+		
+		public boolean succeeded() {
+			return exitCode == 0;
+		}
+	}
 }
@@ -0,0 +1,309 @@
+package com.andre.devtoolkit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks the consistency of a FAT volume without changing it. Every FAT copy
+ * is loaded into an int array, and the directory tree is walked in parallel on
+ * a ForkJoin pool, with each directory checked by its own task. Chains are
+ * followed on the first FAT copy, and the clusters owned by each subtree are
+ * kept in bitsets, merged as the tasks join.
+ * <br><br>
+ * The problems found are:
+ * <ul>
+ * <li>FAT copies that differ from the first one.</li>
+ * <li>Chains that point to free, reserved or out of range clusters, or that loop.</li>
+ * <li>Clusters owned by more than one file or directory (cross-linked).</li>
+ * <li>Allocated clusters that no file or directory owns (lost).</li>
+ * <li>Files whose size doesn't match the length of their chain.</li>
+ * <li>Directories that contain one of their own parents.</li>
+ * </ul>
+ *
+ * @author Andre
+ */
+public class FATChecker {
+	/** How many clusters are listed at most in the details of a problem. */
+	private static final int LISTED_CLUSTERS = 8;
+	
+	private final FATVolume volume;
+	private int[] fat;
+	
+	public FATChecker(FATVolume volume) {
+		this.volume = volume;
+	}
+	
+	/**
+	 * Runs every check over the volume.
+	 *
+	 * @return What was checked and the problems found.
+	 */
+	public Report check() {
+		long start = System.nanoTime();
+		var problems = new ArrayList<Problem>();
+		
+		// Load every FAT copy. The first one is the one followed by the walk.
+		var copies = new int[volume.getFATCount()][];
+		for (int i = 0; i < copies.length; i++) {
+			copies[i] = volume.readFATCopy(i);
+		}
+		fat = copies[0];
+		checkCopies(copies, problems);
+		
+		// Walk the whole tree. Outside of FAT32, the root directory lives outside of the data region.
+		int rootCluster = volume.getRootCluster();
+		var rootChain = walkChain(rootCluster, "/", problems);
+		var rootAncestors = (rootCluster != 0) ? new int[] { rootCluster } : new int[0];
+		
+		var scan = new DirectoryTask(0, rootChain, "", rootAncestors).invoke();
+		scan.claim("/", rootChain);
+		problems.addAll(scan.problems);
+		
+		checkCrossLinks(scan, problems);
+		checkLostClusters(scan.owned, problems);
+		
+		return new Report(scan.files, scan.directories, problems, System.nanoTime() - start);
+	}
+	
+	/** Compares every FAT copy against the first one. */
+	private void checkCopies(int[][] copies, List<Problem> problems) {
+		for (int i = 1; i < copies.length; i++) {
+			int first = Arrays.mismatch(copies[0], copies[i]);
+			if (first == -1) continue;
+			
+			int differing = 0;
+			for (int c = first; c < copies[i].length; c++) {
+				if (copies[0][c] != copies[i][c]) differing++;
+			}
+			
+			problems.add(new Problem(Problem.Kind.FAT_MISMATCH, "FAT " + (i + 1),
+					String.format("Differs from FAT 1 in %d entries, first at cluster %d.", differing, first)));
+		}
+	}
+	
+	/** Names the files owning each cluster claimed more than once. */
+	private void checkCrossLinks(Scan scan, List<Problem> problems) {
+		if (scan.crossLinked.isEmpty()) return;
+		
+		for (var chain : scan.chains) {
+			var shared = new BitSet();
+			for (int c : chain.clusters()) {
+				if (scan.crossLinked.get(c)) shared.set(c);
+			}
+			if (shared.isEmpty()) continue;
+			
+			problems.add(new Problem(Problem.Kind.CROSS_LINKED, chain.path(),
+					String.format("Shares %d clusters with other entries: %s", shared.cardinality(), listClusters(shared))));
+		}
+	}
+	
+	/** Finds allocated clusters that nothing owns, and counts the chains they form. */
+	private void checkLostClusters(BitSet owned, List<Problem> problems) {
+		var lost = new BitSet();
+		for (int c = 2; c < fat.length; c++) {
+			int value = fat[c];
+			if (value != 0 && !volume.isBadCluster(value) && !owned.get(c)) lost.set(c);
+		}
+		if (lost.isEmpty()) return;
+		
+		// Lost clusters pointed to by other lost clusters aren't the start of a chain
+		var linked = new BitSet();
+		for (int c = lost.nextSetBit(0); c >= 0; c = lost.nextSetBit(c + 1)) {
+			if (volume.isDataCluster(fat[c]) && lost.get(fat[c])) linked.set(fat[c]);
+		}
+		var heads = (BitSet)lost.clone();
+		heads.andNot(linked);
+		
+		problems.add(new Problem(Problem.Kind.LOST_CLUSTERS, "",
+				String.format("%d clusters in %d chains are allocated but not owned: %s",
+						lost.cardinality(), Math.max(heads.cardinality(), 1), listClusters(lost))));
+	}
+	
+	/**
+	 * Follows a chain on the first FAT copy.
+	 *
+	 * @return The clusters of the chain, up to where it breaks.
+	 */
+	private int[] walkChain(int first, String path, List<Problem> problems) {
+		if (first == 0) return new int[0];
+		if (!volume.isDataCluster(first)) {
+			problems.add(new Problem(Problem.Kind.BROKEN_CHAIN, path, "First cluster " + first + " is outside of the volume."));
+			return new int[0];
+		}
+		
+		var chain = new int[16];
+		var visited = new BitSet();
+		int length = 0;
+		int cluster = first;
+		while (true) {
+			if (length == chain.length) chain = Arrays.copyOf(chain, length * 2);
+			chain[length++] = cluster;
+			visited.set(cluster);
+			
+			int next = fat[cluster];
+			if (volume.isEndOfChain(next)) break;
+			if (!volume.isDataCluster(next)) {
+				problems.add(new Problem(Problem.Kind.BROKEN_CHAIN, path,
+						String.format("Cluster %d points to 0x%X instead of a cluster or an end of chain.", cluster, next)));
+				break;
+			}
+			
+			// Stop at the first repeated cluster, so the chain only holds each cluster once
+			if (visited.get(next)) {
+				problems.add(new Problem(Problem.Kind.BROKEN_CHAIN, path,
+						String.format("Cluster %d points back to cluster %d, the chain loops on itself.", cluster, next)));
+				break;
+			}
+			
+			cluster = next;
+		}
+		return Arrays.copyOf(chain, length);
+	}
+	
+	private static String listClusters(BitSet clusters) {
+		var str = new StringBuilder();
+		int listed = 0;
+		for (int c = clusters.nextSetBit(0); c >= 0; c = clusters.nextSetBit(c + 1)) {
+			if (listed == LISTED_CLUSTERS) return str.append(", ...").toString();
+			if (listed++ > 0) str.append(", ");
+			str.append(c);
+		}
+		return str.toString();
+	}
+	
+	/** Checks a directory and forks a task for each of its subdirectories. */
+	private class DirectoryTask extends RecursiveTask<Scan> {
+		private final int cluster;
+		private final int[] chain;
+		private final String path;
+		
+		// First clusters of the directories above this one, to catch loops in the tree
+		private final int[] ancestors;
+		
+		DirectoryTask(int cluster, int[] chain, String path, int[] ancestors) {
+			this.cluster = cluster;
+			this.chain = chain;
+			this.path = path;
+			this.ancestors = ancestors;
+		}
+		
+		@Override
+		protected Scan compute() {
+			var scan = new Scan();
+			
+			// The disk session isn't thread-safe, only reading the entries is serialized
+			List<FATVolume.DirEntry> entries;
+			synchronized (volume) {
+				entries = volume.listDirectory(cluster, chain);
+			}
+			
+			var children = new ArrayList<DirectoryTask>();
+			for (var entry : entries) {
+				if (entry.name().equals(".") || entry.name().equals("..")) continue;
+				
+				var entryPath = path + "/" + entry.name();
+				int reported = scan.problems.size();
+				var entryChain = walkChain(entry.firstCluster(), entryPath, scan.problems);
+				boolean broken = scan.problems.size() != reported;
+				scan.claim(entryPath, entryChain);
+				
+				if (!entry.isDirectory()) {
+					scan.files++;
+					
+					// A broken chain was already reported, its length says nothing about the size
+					long expected = (entry.size() + volume.getClusterBytes() - 1) / volume.getClusterBytes();
+					if (!broken && expected != entryChain.length) {
+						scan.problems.add(new Problem(Problem.Kind.SIZE_MISMATCH, entryPath,
+								String.format("Size of %d bytes needs %d clusters, but the chain has %d.", entry.size(), expected, entryChain.length)));
+					}
+					continue;
+				}
+				
+				scan.directories++;
+				if (entryChain.length == 0) {
+					scan.problems.add(new Problem(Problem.Kind.BROKEN_CHAIN, entryPath, "Directory has no clusters."));
+					continue;
+				}
+				
+				int first = entry.firstCluster();
+				if (first == cluster || Arrays.stream(ancestors).anyMatch((a) -> a == first)) {
+					scan.problems.add(new Problem(Problem.Kind.DIRECTORY_LOOP, entryPath, "Directory contains one of its parents."));
+					continue;
+				}
+				
+				var childAncestors = Arrays.copyOf(ancestors, ancestors.length + 1);
+				childAncestors[ancestors.length] = cluster;
+				children.add(new DirectoryTask(first, entryChain, entryPath, childAncestors));
+			}
+			
+			for (var child : invokeAll(children)) {
+				scan.merge(child.join());
+			}
+			return scan;
+		}
+	}
+	
+	/** Results of checking a subtree. */
+	private static class Scan {
+		final BitSet owned = new BitSet();
+		final BitSet crossLinked = new BitSet();
+		final List<OwnedChain> chains = new ArrayList<>();
+		final List<Problem> problems = new ArrayList<>();
+		int files;
+		int directories;
+		
+		/** Marks the clusters of an entry as owned. Clusters already owned are cross-linked. */
+		void claim(String path, int[] clusters) {
+			for (int c : clusters) {
+				if (owned.get(c)) crossLinked.set(c);
+				owned.set(c);
+			}
+			if (clusters.length > 0) chains.add(new OwnedChain(path, clusters));
+		}
+		
+		void merge(Scan other) {
+			var shared = (BitSet)owned.clone();
+			shared.and(other.owned);
+			crossLinked.or(shared);
+			crossLinked.or(other.crossLinked);
+			owned.or(other.owned);
+			
+			chains.addAll(other.chains);
+			problems.addAll(other.problems);
+			files += other.files;
+			directories += other.directories;
+		}
+	}
+	
+	private record OwnedChain(String path, int[] clusters) {}
+	
+	/**
+	 * Something wrong found in the volume.
+	 *
+	 * @param kind What is wrong.
+	 * @param path Entry or structure where it was found. Empty if it concerns the whole volume.
+	 * @param detail Description of the problem.
+	 */
+	public record Problem(Kind kind, String path, String detail) {
+		public enum Kind {
+			FAT_MISMATCH, BROKEN_CHAIN, CROSS_LINKED, LOST_CLUSTERS, SIZE_MISMATCH, DIRECTORY_LOOP
+		}
+	}
+	
+	/**
+	 * Outcome of a check.
+	 *
+	 * @param files How many files were checked.
+	 * @param directories How many directories were checked, besides the root.
+	 * @param problems Problems found, empty if the volume is consistent.
+	 * @param elapsedNanos Time taken by the check.
+	 */
+	public record Report(int files, int directories, List<Problem> problems, long elapsedNanos) {
+		public boolean isConsistent() {
+			return problems.isEmpty();
+		}
+	}
+}
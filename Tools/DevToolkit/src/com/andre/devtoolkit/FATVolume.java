@@ -1,111 +1,872 @@
 package com.andre.devtoolkit;
 
 import java.io.File;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
+ * FAT12/FAT16/FAT32 volume stored in a partition of a disk. Besides burning boot
+ * code into the volume, this class is able to read, create, overwrite and
+ * delete files and directories directly inside the disk image.
+ * <br><br>
+ * Only 8.3 short names are supported when creating entries. Long file name
+ * entries are skipped when reading and removed along their short entry.
+ * <br><br>
+ * Changes to the allocation table are kept in memory until {@link #flush()}
+ * is called. File and directory contents are written immediately.
+ * <br><br>
+ * On FAT32 volumes, the root directory is a cluster chain like any other
+ * directory, and the free cluster count is taken from the FSInfo sector, so it
+ * is known without scanning the FAT. The count is kept up to date as clusters
+ * are allocated and freed, and written back on flush.
+ * <br><br>
+ * How clusters are picked for new file data is decided by the
+ * {@link AllocationPolicy}. The contiguous policy keeps every written file in a
+ * single run of clusters, so boot stages walking the FAT can load it with a
+ * single multi-sector read.
  *
  * @author Andre
  */
 public class FATVolume {
-
+	static final int ATTR_READ_ONLY = 0x01;
+	static final int ATTR_HIDDEN = 0x02;
+	static final int ATTR_SYSTEM = 0x04;
+	static final int ATTR_VOLUME_ID = 0x08;
+	static final int ATTR_DIRECTORY = 0x10;
+	static final int ATTR_ARCHIVE = 0x20;
+	static final int ATTR_LONG_NAME = 0x0F;
+	
+	static final int DIR_ENTRY_SIZE = 32;
+	
+	/** Largest cluster created when formatting. Larger clusters aren't understood by every system. */
+	private static final int MAX_CLUSTER_BYTES = 32768;
+	
+	// Parts of the boot sector taken from a VBR input. Everything in between is the BPB.
+	static final int VBR_JUMP_SIZE = 3;
+	static final int VBR_CODE_OFFSET = 0x3E;
+	static final int VBR_CODE_OFFSET_FAT32 = 0x5A;
+	static final int VBR_MAX_SIZE = 0x200;
+	
+	// FSInfo sector signatures and fields
+	private static final int FSINFO_LEAD_SIGNATURE = 0x41615252;
+	private static final int FSINFO_STRUCT_SIGNATURE = 0x61417272;
+	private static final int FSINFO_TRAIL_SIGNATURE = 0xAA550000;
+	private static final int FSINFO_FREE_COUNT = 488;
+	private static final int FSINFO_NEXT_FREE = 492;
+	
 	private final Partition partition;
-	private final int reservedSectors;
-	private final int totalLogicalSectors;
+	private final Disk disk;
+	private int reservedSectors;
+	private long totalLogicalSectors;
 	
 	// Cluster size in logical sectors
 	private final int clusterSize;
 	
 	private final int logicalSectorSize;
+	private final int fatCount;
+	private final int rootEntryCount;
+	private final int sectorsPerFAT;
+	
+	// FAT32 only. First cluster of the root directory, and sectors of the
+	// FSInfo and backup boot sector, 0 if the volume has none.
+	private final int rootCluster;
+	private final int fsInfoSector;
+	private final int backupBootSector;
 	
-	private final int totalClusters;
+	// Amount of clusters in the data region
+	private int totalClusters;
 	
-	private final FATType fatType;
+	private FATType fatType;
+	
+	// Absolute disk offsets of each region of the volume
+	private final long volumeOffset;
+	private long fatOffset;
+	private long rootDirOffset;
+	private long dataOffset;
+	private final int clusterBytes;
+	
+	// In-memory copy of the first FAT, and which of its sectors must be written back
+	private byte[] fatBytes;
+	private final BitSet dirtyFATSectors = new BitSet();
+	private int nextFreeHint = 2;
+	
+	// Free clusters in the volume, or -1 if not known yet
+	private long freeClusters = -1;
+	private boolean fsInfoDirty;
+	
+	private AllocationPolicy allocationPolicy = AllocationPolicy.FIRST_FIT;
 	
 	public FATVolume(Partition partition) {
 		if (!isPartitionFAT(partition)) throw new RuntimeException("Partition is not of FAT type.");
 		this.partition = partition;
+		this.disk = partition.getDisk();
 		
 		// Read BIOS parameter block
-		var offset = partition.getFirstSector() * 0x200 + 0x0B;
-		byte[] bpb = Burner.readBytes(partition.getDisk(), offset, 13);
+		volumeOffset = partition.getOffset();
+		var bpb = disk.view(volumeOffset, 0x5A);
 		
 		// Read properties
-		logicalSectorSize = Numbers.byteArrayToShort(bpb, 0x00);
-		reservedSectors = Numbers.byteArrayToShort(bpb, 0x03);
-		totalLogicalSectors = Numbers.byteArrayToShort(bpb, 0x08);
-		clusterSize = bpb[0x02] & 0xFF;
-		totalClusters = totalLogicalSectors / clusterSize;
+		logicalSectorSize = bpb.getShort(0x0B) & 0xFFFF;
+		clusterSize = bpb.get(0x0D) & 0xFF;
+		reservedSectors = bpb.getShort(0x0E) & 0xFFFF;
+		fatCount = bpb.get(0x10) & 0xFF;
+		rootEntryCount = bpb.getShort(0x11) & 0xFFFF;
 		
-		// Can't deal with sectors other than 512 bytes in size
-		assert logicalSectorSize == 512;
+		// FAT32 volumes store the FAT size in the extended BPB instead
+		int sectorsPerFAT16 = bpb.getShort(0x16) & 0xFFFF;
+		sectorsPerFAT = (sectorsPerFAT16 != 0) ? sectorsPerFAT16 : bpb.getInt(0x24);
 		
-		assert totalClusters > 0;
+		// Volumes with 65536 sectors or more store their size in the 32-bit field instead
+		int sectors16 = bpb.getShort(0x13) & 0xFFFF;
+		totalLogicalSectors = (sectors16 != 0) ? sectors16 : Integer.toUnsignedLong(bpb.getInt(0x20));
 		
-		// Determine fat type based on cluster amount
-		if (totalClusters <= 4084) {
-			fatType = FATType.FAT12;
-		} else if (totalClusters <= 65524) {
-			fatType = FATType.FAT16;
+		// Logical sectors larger than the disk's aren't supported
+		if (logicalSectorSize != disk.getSectorSize()) {
+			throw new CLIException("The volume has " + logicalSectorSize + " byte sectors, but the disk has " + disk.getSectorSize() + " byte sectors.");
+		}
+		
+		clusterBytes = clusterSize * logicalSectorSize;
+		layOutRegions();
+		
+		if (fatType == FATType.FAT32) {
+			rootCluster = bpb.getInt(0x2C);
+			fsInfoSector = bpb.getShort(0x30) & 0xFFFF;
+			backupBootSector = bpb.getShort(0x32) & 0xFFFF;
+			readFSInfo();
 		} else {
-			fatType = FATType.FAT32;
+			rootCluster = 0;
+			fsInfoSector = 0;
+			backupBootSector = 0;
 		}
 	}
+	
+	/** Takes the free cluster count and the next free cluster hint from the FSInfo sector, if they're valid. */
+	private void readFSInfo() {
+		if (fsInfoSector == 0 || fsInfoSector >= reservedSectors) return;
+		
+		var info = disk.view(volumeOffset + (long)fsInfoSector * logicalSectorSize, logicalSectorSize);
+		if (info.getInt(0) != FSINFO_LEAD_SIGNATURE || info.getInt(484) != FSINFO_STRUCT_SIGNATURE
+				|| info.getInt(508) != FSINFO_TRAIL_SIGNATURE) return;
+		
+		long free = Integer.toUnsignedLong(info.getInt(FSINFO_FREE_COUNT));
+		if (free <= totalClusters) freeClusters = free;
+		
+		int next = info.getInt(FSINFO_NEXT_FREE);
+		if (next >= 2 && next < totalClusters + 2) nextFreeHint = next;
+	}
+	
+	/** Computes where each region of the volume is from the BPB properties. */
+	private void layOutRegions() {
+		fatOffset = volumeOffset + (long)reservedSectors * logicalSectorSize;
+		rootDirOffset = fatOffset + (long)fatCount * sectorsPerFAT * logicalSectorSize;
+		dataOffset = rootDirOffset + (long)getRootDirSectors() * logicalSectorSize;
+		totalClusters = countClusters(reservedSectors, totalLogicalSectors);
+		
+		assert totalClusters > 0;
 		
-	public void burnVBR(File input, int inputOffset, long inputSize) {
+		fatType = typeOf(totalClusters);
+	}
+	
+	/** How many data clusters the volume would have with the given reserved and total sectors. */
+	private int countClusters(int reserved, long totalSectors) {
+		long dataSectors = totalSectors - reserved - (long)fatCount * sectorsPerFAT - getRootDirSectors();
+		return (int)(dataSectors / clusterSize);
+	}
+	
+	private int getRootDirSectors() {
+		return (rootEntryCount * DIR_ENTRY_SIZE + logicalSectorSize - 1) / logicalSectorSize;
+	}
+	
+	/** Determines the FAT type based on the amount of clusters. */
+	private static FATType typeOf(int clusters) {
+		if (clusters <= 4084) return FATType.FAT12;
+		if (clusters <= 65524) return FATType.FAT16;
+		return FATType.FAT32;
+	}
+	
+	public long burnVBR(File input, int inputOffset, long inputSize) {
 		// Limit file size
 		inputSize = capInputSize(input, inputSize);
-
-		long startByte = partition.getFirstSector() * 0x200L;
 		
-		if (inputSize - 0x3E > 0x1C2) {
+		long startByte = volumeOffset;
+		
+		if (inputSize > VBR_MAX_SIZE) {
 			throw new RuntimeException("Bootloader input size would overwrite data after the VBR. Data size: [" + inputSize + "]");
 		}
 		
 		// Burn jump instruction start and the rest of the file body
 		var disk = partition.getDisk();
-		Burner.transfer(input, inputOffset + 0x00, disk, startByte + 0x00, 3);
-		Burner.transfer(input, inputOffset + 0x3E, disk, startByte + 0x3E, inputSize - 0x3E);
-	}	
+		long written = disk.burn(input, inputOffset + 0x00, startByte + 0x00, VBR_JUMP_SIZE);
+		int codeOffset = getVBRCodeOffset();
+		written += disk.burn(input, inputOffset + codeOffset, startByte + codeOffset, inputSize - codeOffset);
+		return written;
+	}
 	
-	public void burnReservedSectors(File input, int inputOffset, long inputSize) {
+	public long burnReservedSectors(File input, int inputOffset, long inputSize) {
 		// Limit file size
 		inputSize = capInputSize(input, inputSize);
-			
+		
 		// Get position of the first byte of the sector after the VBR
-		long diskOffset = (partition.getFirstSector() + 1) * 0x200L;
-		int inputSectors = (int)(inputSize / 512 + 1);
+		long diskOffset = volumeOffset + logicalSectorSize;
 		
 		// Reserved sector count is inferior to the required amount
-		if (reservedSectors - 1 < inputSectors) {
-			expandReservedSectors(inputSectors);
+		int required = getRequiredReservedSectors(inputSize);
+		checkReservedArea(required);
+		if (reservedSectors < required) {
+			expandReservedSectors(required, false);
 		}
 		
 		// File body
-		Burner.transfer(input, inputOffset, partition.getDisk(), diskOffset, inputSize);
+		return partition.getDisk().burn(input, inputOffset, diskOffset, inputSize);
 	}
+	
+	/**
+	 * Burns a VBR already read into memory, as {@link #burnVBR(File, int, long)} does.
+	 * 
+	 * @return How many bytes were written.
+	 */
+	public long burnVBR(byte[] data) {
+		if (data.length > VBR_MAX_SIZE) {
+			throw new RuntimeException("Bootloader input size would overwrite data after the VBR. Data size: [" + data.length + "]");
+		}
 		
-	private void expandReservedSectors(int sectors) {
-		throw new CLIException("Reserved sector expansion not implemented yet.");
+		long startByte = volumeOffset;
+		long written = disk.burn(data, 0, Math.min(data.length, VBR_JUMP_SIZE), startByte);
+		int codeOffset = getVBRCodeOffset();
+		written += disk.burn(data, codeOffset, data.length - codeOffset, startByte + codeOffset);
+		return written;
+	}
+	
+	/**
+	 * Burns reserved sectors already read into memory, as
+	 * {@link #burnReservedSectors(File, int, long)} does.
+	 * 
+	 * @return How many bytes were written.
+	 */
+	public long burnReservedSectors(byte[] data) {
+		int required = getRequiredReservedSectors(data.length);
+		checkReservedArea(required);
+		if (reservedSectors < required) {
+			expandReservedSectors(required, false);
+		}
 		
-		/*if (reservedSectors - 1 >= sectors) return;
+		return disk.burn(data, 0, data.length, volumeOffset + logicalSectorSize);
+	}
+	
+	/**
+	 * Fails if burning a given amount of bytes after the boot sector would
+	 * overwrite the FSInfo or backup boot sector, as the reserved sector burns do.
+	 */
+	void validateReservedBurn(long bytes) {
+		checkReservedArea(getRequiredReservedSectors(bytes));
+	}
+	
+	/** Fails if burning the given amount of reserved sectors would overwrite the FSInfo or backup boot sector. */
+	private void checkReservedArea(int sectors) {
+		if (fsInfoSector != 0 && fsInfoSector < sectors) {
+			throw new CLIException("The input would overwrite the FSInfo sector of the volume, at reserved sector " + fsInfoSector + ".");
+		}
+		if (backupBootSector != 0 && backupBootSector < sectors) {
+			throw new CLIException("The input would overwrite the backup boot sector of the volume, at reserved sector " + backupBootSector + ".");
+		}
+	}
+	
+	/** Where the boot code starts in the boot sector, past the BPB. FAT32 has a longer BPB. */
+	public int getVBRCodeOffset() {
+		return (fatType == FATType.FAT32) ? VBR_CODE_OFFSET_FAT32 : VBR_CODE_OFFSET;
+	}
+	
+	/** How many reserved sectors are needed to hold the boot sector followed by a given amount of bytes. */
+	public int getRequiredReservedSectors(long bytes) {
+		return (int)((bytes + logicalSectorSize - 1) / logicalSectorSize) + 1;
+	}
+	
+	/**
+	 * Grows the reserved area at the start of the volume. The FATs, the root
+	 * directory and the data region are shifted forward in place, moved back to
+	 * front in large blocks. Free clusters at the end of the volume aren't moved.
+	 * <br><br>
+	 * The volume grows into any unused space left at the end of its partition.
+	 * Whatever doesn't fit there is taken from the end of the data region, so
+	 * the clusters lost must not be in use.
+	 * 
+	 * @param sectors New amount of reserved sectors, including the boot sector.
+	 * @param dryRun Only check whether the expansion is possible and how much
+	 * data it would move, without writing anything.
+	 * @return How many bytes were moved, or would be moved on a dry run.
+	 */
+	public long expandReservedSectors(int sectors, boolean dryRun) {
+		if (sectors <= reservedSectors) return 0;
+		if (sectors > 0xFFFF) throw new CLIException("A FAT volume can't have more than 65535 reserved sectors.");
+		
+		int delta = sectors - reservedSectors;
+		long newTotalSectors = Math.min(totalLogicalSectors + delta, partition.getSizeInSectors());
+		int newClusters = countClusters(sectors, newTotalSectors);
 		
-		var buffer1 = ByteBuffer.allocate((reservedSectors - 1 - sectors) * 512);
-		var buffer2 = ByteBuffer.allocate((reservedSectors - 1 - sectors) * 512);
+		// The type of a FAT is given by its cluster count, so it can't change
+		if (typeOf(newClusters) != fatType) {
+			throw new CLIException("Expanding the reserved sectors would turn the volume into " + typeOf(newClusters) + ".");
+		}
+		
+		// Clusters beyond the new end of the volume must be free
+		for (int c = newClusters + 2; c < totalClusters + 2; c++) {
+			if (getFATEntry(c) != 0) {
+				throw new CLIException("Not enough free space at the end of the volume to grow the reserved sectors by " + delta + ".");
+			}
+		}
 		
-		long sector = partition.startSector + 1;
-		while (sector < partition.startSector + partition.sizeInSectors) {
+		// Only the data up to the last cluster in use has to be moved
+		int lastUsed = newClusters + 1;
+		while (lastUsed >= 2 && getFATEntry(lastUsed) == 0) lastUsed--;
+		
+		long moveEnd = (lastUsed >= 2) ? clusterOffset(lastUsed) + clusterBytes : dataOffset;
+		long bytes = moveEnd - fatOffset;
+		if (dryRun) return bytes;
+		
+		// The FAT is moved as is on the disk, so pending changes must be there
+		flush();
+		
+		long shift = (long)delta * logicalSectorSize;
+		disk.move(fatOffset, fatOffset + shift, bytes);
+		
+		// Old FAT bytes left behind become reserved sectors
+		disk.write(fatOffset, new byte[(int)shift]);
+		
+		// Update the BPB last. The volume is unusable mid-move either way.
+		var bpb = new byte[0x24];
+		System.arraycopy(disk.read(volumeOffset, bpb.length), 0, bpb, 0, bpb.length);
+		putShort(bpb, 0x0E, sectors);
+		if (newTotalSectors < 0x10000) {
+			putShort(bpb, 0x13, (int)newTotalSectors);
+			putInt(bpb, 0x20, 0);
+		} else {
+			putShort(bpb, 0x13, 0);
+			putInt(bpb, 0x20, (int)newTotalSectors);
+		}
+		disk.write(volumeOffset, bpb);
+		if (backupBootSector != 0) disk.write(volumeOffset + (long)backupBootSector * logicalSectorSize, bpb);
+		
+		// Clusters were gained or lost at the end of the volume, all of them free
+		if (freeClusters >= 0) {
+			freeClusters += newClusters - totalClusters;
+			fsInfoDirty = true;
+		}
+		
+		reservedSectors = sectors;
+		totalLogicalSectors = newTotalSectors;
+		layOutRegions();
+		
+		nextFreeHint = 2;
+		writeFSInfo();
+		return bytes;
+	}
+	
+	public int getReservedSectors() {
+		return reservedSectors;
+	}
+	
+	/**
+	 * Looks up an entry by its path in the volume.
+	 *
+	 * @param path Path separated by slashes or backslashes. A leading drive
+	 * letter, such as "Z:", is ignored.
+	 * @return The entry, or null if nothing exists at that path.
+	 */
+	public DirEntry find(String path) {
+		var parts = splitPath(path);
+		
+		int dirCluster = 0;
+		DirEntry entry = null;
+		for (int i = 0; i < parts.size(); i++) {
+			entry = findInDirectory(readDirectory(dirCluster), parts.get(i));
+			if (entry == null) return null;
 			
-		}*/
+			if (i < parts.size() - 1) {
+				if (!entry.isDirectory()) return null;
+				dirCluster = entry.firstCluster();
+			}
+		}
+		return entry;
 	}
 	
-	/*private int getReservedSectorCount() {
-		var bytes = Burner.readBytes(partition.getDisk(), partition.getFirstSector() * 0x200 + 0x0E, 2);
-		return Numbers.byteArrayToShort(bytes, 0);
-	}*/
+	/**
+	 * Lists the entries of a directory, skipping the "." and ".." entries.
+	 *
+	 * @param path Path of the directory. An empty path lists the root directory.
+	 */
+	public List<DirEntry> listDirectory(String path) {
+		var entries = parseEntries(readDirectory(resolveDirectory(path)));
+		entries.removeIf((e) -> e.name().equals(".") || e.name().equals(".."));
+		return entries;
+	}
+	
+	/** Reads the whole contents of a file. */
+	public byte[] readFile(String path) {
+		var entry = find(path);
+		if (entry == null) throw new CLIException("File '" + path + "' does not exist in the volume.");
+		if (entry.isDirectory()) throw new CLIException("'" + path + "' is a directory.");
+		
+		var data = new byte[(int)entry.size()];
+		var chain = getChain(entry.firstCluster());
+		
+		forEachRun(chain, (index, first, count) -> {
+			int from = index * clusterBytes;
+			int len = Math.min(data.length - from, count * clusterBytes);
+			if (len <= 0) return;
+			
+			var bytes = disk.read(clusterOffset(first), len);
+			System.arraycopy(bytes, 0, data, from, len);
+		});
+		return data;
+	}
+	
+	/**
+	 * Creates or overwrites a file with the given contents. The parent
+	 * directory must already exist. When a file is overwritten, its cluster
+	 * chain is reused and only grown or shrunk as needed, unless the contiguous
+	 * allocation policy requires it to be moved. Clusters kept from the old
+	 * chain are compared against the new contents and only rewritten if they
+	 * differ.
+	 *
+	 * @param path Path of the file in the volume.
+	 * @param data The new contents of the file.
+	 * @return How many bytes were written and how many were already up to date.
+	 */
+	public WriteStats writeFile(String path, byte[] data) {
+		var parts = splitPath(path);
+		if (parts.isEmpty()) throw new CLIException("No file name was given.");
+		
+		var name = parts.get(parts.size() - 1);
+		int parentCluster = resolveDirectory(parts.subList(0, parts.size() - 1));
+		var dir = readDirectory(parentCluster);
+		var existing = findInDirectory(dir, name);
+		
+		int clusters = (data.length + clusterBytes - 1) / clusterBytes;
+		if (existing != null) {
+			if (existing.isDirectory()) throw new CLIException("'" + path + "' is a directory.");
+			
+			var oldChain = getChain(existing.firstCluster());
+			int first = allocateFileChain(existing, clusters);
+			var stats = writeChainData(first, data, oldChain);
+			updateEntry(existing.location(), first, data.length);
+			return stats;
+		} else {
+			var shortName = toShortName(name);
+			int first = allocateFileChain(null, clusters);
+			var stats = writeChainData(first, data, new int[0]);
+			
+			long location = allocateEntry(dir);
+			disk.write(location, createEntry(shortName, ATTR_ARCHIVE, first, data.length));
+			return stats;
+		}
+	}
+	
+	/**
+	 * @param written Bytes of file data written into the disk.
+	 * @param skipped Bytes of file data that were already on disk and didn't need writing.
+	 */
+	public record WriteStats(long written, long skipped) {}
+	
+	/**
+	 * Creates a directory, along any of its missing parents.
+	 *
+	 * @param path Path of the directory in the volume.
+	 */
+	public void makeDirectory(String path) {
+		int dirCluster = 0;
+		
+		for (var part : splitPath(path)) {
+			var dir = readDirectory(dirCluster);
+			var entry = findInDirectory(dir, part);
+			
+			if (entry != null) {
+				if (!entry.isDirectory()) throw new CLIException("'" + part + "' exists and is not a directory.");
+				dirCluster = entry.firstCluster();
+				continue;
+			}
+			
+			// Allocate and clear the directory cluster
+			var shortName = toShortName(part);
+			int cluster = allocateClusters(1)[0];
+			disk.write(clusterOffset(cluster), new byte[clusterBytes]);
+			
+			// Every subdirectory starts with the "." and ".." entries
+			disk.write(clusterOffset(cluster), createEntry(".          ".getBytes(), ATTR_DIRECTORY, cluster, 0));
+			disk.write(clusterOffset(cluster) + DIR_ENTRY_SIZE, createEntry("..         ".getBytes(), ATTR_DIRECTORY, dirCluster, 0));
+			
+			long location = allocateEntry(dir);
+			disk.write(location, createEntry(shortName, ATTR_DIRECTORY, cluster, 0));
+			dirCluster = cluster;
+		}
+	}
+	
+	/**
+	 * Deletes a file or directory.
+	 *
+	 * @param path Path of the entry in the volume.
+	 * @param recursive If the entry is a directory, whether to delete everything
+	 * inside it as well. Otherwise, the directory must be empty.
+	 * @return Whether something was deleted.
+	 */
+	public boolean delete(String path, boolean recursive) {
+		var entry = find(path);
+		if (entry == null) return false;
+		
+		if (entry.isDirectory()) {
+			var children = parseEntries(readDirectory(entry.firstCluster()));
+			children.removeIf((e) -> e.name().equals(".") || e.name().equals(".."));
+			
+			if (!children.isEmpty()) {
+				if (!recursive) throw new CLIException("Directory '" + path + "' is not empty.");
+				for (var child : children) {
+					delete(path + "/" + child.name(), true);
+				}
+			}
+		}
+		
+		resizeChain(entry.firstCluster(), 0);
+		
+		var parts = splitPath(path);
+		removeEntry(readDirectory(resolveDirectory(parts.subList(0, parts.size() - 1))), entry);
+		return true;
+	}
+	
+	/**
+	 * Visits every file and directory of the volume, parents before their children.
+	 * 
+	 * @param visitor Receives the full path of each entry and the entry itself.
+	 */
+	public void walk(BiConsumer<String, DirEntry> visitor) {
+		walk(0, "", visitor);
+	}
+	
+	private void walk(int dirCluster, String path, BiConsumer<String, DirEntry> visitor) {
+		for (var entry : parseEntries(readDirectory(dirCluster))) {
+			if (entry.name().equals(".") || entry.name().equals("..")) continue;
+			
+			var entryPath = path + "/" + entry.name();
+			visitor.accept(entryPath, entry);
+			
+			if (entry.isDirectory()) walk(entry.firstCluster(), entryPath, visitor);
+		}
+	}
+	
+	/**
+	 * Counts in how many runs of consecutive clusters each file is split.
+	 * 
+	 * @return Every file of the volume with its fragment count.
+	 */
+	public List<FileFragments> listFragmentation() {
+		var files = new ArrayList<FileFragments>();
+		
+		walk((path, entry) -> {
+			if (entry.isDirectory()) return;
+			
+			var chain = getChain(entry.firstCluster());
+			int[] runs = new int[1];
+			forEachRun(chain, (index, first, count) -> runs[0]++);
+			files.add(new FileFragments(path, chain.length, runs[0]));
+		});
+		
+		return files;
+	}
+	
+	/**
+	 * @param path Full path of the file.
+	 * @param clusters Length of the file chain.
+	 * @param fragments How many runs of consecutive clusters form the chain.
+	 */
+	public record FileFragments(String path, int clusters, int fragments) {
+		public boolean isFragmented() {
+			return fragments > 1;
+		}
+	}
+	
+	/** Writes the changes made to the allocation table into every FAT copy, and the FSInfo sector. */
+	public void flush() {
+		writeFSInfo();
+		if (fatBytes == null) return;
+		
+		int sector = dirtyFATSectors.nextSetBit(0);
+		while (sector >= 0) {
+			// Write each run of dirty sectors at once
+			int end = dirtyFATSectors.nextClearBit(sector);
+			int from = sector * logicalSectorSize;
+			int len = (end - sector) * logicalSectorSize;
+			
+			for (int copy = 0; copy < fatCount; copy++) {
+				long fatCopyOffset = fatOffset + (long)copy * sectorsPerFAT * logicalSectorSize;
+				disk.write(fatCopyOffset + from, fatBytes, from, len);
+			}
+			
+			sector = dirtyFATSectors.nextSetBit(end);
+		}
+		
+		dirtyFATSectors.clear();
+	}
+	
+	/** Stores the free cluster count and next free cluster hint in the FSInfo sector, if they changed. */
+	private void writeFSInfo() {
+		if (!fsInfoDirty || fsInfoSector == 0) return;
+		
+		var fields = new byte[8];
+		putInt(fields, 0, (int)freeClusters);
+		putInt(fields, 4, nextFreeHint);
+		disk.write(volumeOffset + (long)fsInfoSector * logicalSectorSize + FSINFO_FREE_COUNT, fields);
+		fsInfoDirty = false;
+	}
+	
+	/**
+	 * How many clusters of the volume are free. On FAT32 volumes, the count
+	 * stored in the FSInfo sector is trusted. Otherwise, the FAT is scanned on
+	 * the first call.
+	 */
+	public long getFreeClusters() {
+		if (freeClusters < 0) {
+			long free = 0;
+			for (int c = 2; c < totalClusters + 2; c++) {
+				if (getFATEntry(c) == 0) free++;
+			}
+			
+			freeClusters = free;
+			fsInfoDirty = true;
+		}
+		return freeClusters;
+	}
+	
+	/**
+	 * Splits the free clusters of the volume into runs of consecutive clusters.
+	 * The index given to the consumer counts the runs.
+	 */
+	public void forEachFreeRun(RunConsumer consumer) {
+		int runs = 0;
+		int c = 2;
+		while (c < totalClusters + 2) {
+			if (getFATEntry(c) != 0) {
+				c++;
+				continue;
+			}
+			
+			int end = c + 1;
+			while (end < totalClusters + 2 && getFATEntry(end) == 0) end++;
+			
+			consumer.accept(runs++, c, end - c);
+			c = end;
+		}
+	}
+	
+	public void setAllocationPolicy(AllocationPolicy policy) {
+		this.allocationPolicy = policy;
+	}
+	
+	public FATType getFATType() {
+		return fatType;
+	}
+	
+	public Partition getPartition() {
+		return partition;
+	}
+	
+	/** Size of a cluster in bytes. */
+	public int getClusterBytes() {
+		return clusterBytes;
+	}
+	
+	public int getTotalClusters() {
+		return totalClusters;
+	}
+	
+	/** First cluster of the root directory on FAT32 volumes, 0 on others. */
+	public int getRootCluster() {
+		return rootCluster;
+	}
+	
+	/**
+	 * Opens a FAT volume of a disk.
+	 * 
+	 * @param disk Disk session.
+	 * @param partitionIndex Index of the partition, as listed by
+	 * {@link Disk#listPartitions()}, or -1 to open the first FAT partition.
+	 * @return The volume.
+	 */
+	public static FATVolume open(Disk disk, int partitionIndex) {
+		var partitions = disk.listPartitions();
+		
+		if (partitionIndex != -1) {
+			if (partitionIndex >= partitions.size() || partitions.get(partitionIndex) == null) {
+				throw new CLIException("Partition " + partitionIndex + " does not exist.");
+			}
+			return new FATVolume(partitions.get(partitionIndex));
+		}
+		
+		for (var part : partitions) {
+			if (part != null && isPartitionFAT(part)) return new FATVolume(part);
+		}
+		throw new CLIException("The disk has no FAT partition.");
+	}
+	
+	/** Whether a partition starts with what looks like a valid FAT boot sector, as in a formatted volume. */
+	public static boolean hasBootSector(Partition part) {
+		var bs = part.getDisk().view(part.getOffset(), 0x200);
+		int sectorSize = bs.getShort(0x0B) & 0xFFFF;
+		int clusterSize = bs.get(0x0D) & 0xFF;
+		
+		return (bs.getShort(0x1FE) & 0xFFFF) == 0xAA55 && sectorSize == part.getDisk().getSectorSize()
+				&& Integer.bitCount(clusterSize) == 1 && bs.get(0x10) != 0;
+	}
 	
 	public static boolean isPartitionFAT(Partition part) {
-		if (part.getType() == PartitionType.FAT_1X_LBA) return true;
-		return false;
+		return switch (part.getType()) {
+			case FAT_12, FAT_16_SMALL, FAT_16, FAT_1X_LBA, FAT_32, FAT_32_LBA -> true;
+			default -> false;
+		};
+	}
+	
+	/**
+	 * Picks the FAT type a region of a disk would be formatted with: FAT16 if
+	 * the volume fits its limits, FAT32 otherwise.
+	 * 
+	 * @param sectors Size of the volume in sectors.
+	 * @param sectorSize Size of a sector in bytes.
+	 */
+	public static FATType getFormatType(long sectors, int sectorSize) {
+		// With the largest clusters, FAT16 reaches about 2 GiB
+		return (sectors * sectorSize / MAX_CLUSTER_BYTES <= 65524) ? FATType.FAT16 : FATType.FAT32;
+	}
+	
+	/**
+	 * Formats a region of a disk as an empty FAT16 or FAT32 volume, with two
+	 * FATs. FAT16 volumes have room for 512 entries in the root directory, and
+	 * use the smallest cluster size that keeps the cluster count within FAT16
+	 * limits. FAT32 volumes follow the cluster sizes recommended by Microsoft,
+	 * and have their FSInfo sector at reserved sector 1 and a backup of the boot
+	 * sector at reserved sector 6. Sectors are of the size of the disk's, and
+	 * clusters are never made larger than 32 KiB.
+	 * <br><br>
+	 * Only the boot sector, the FSInfo sector and the first sector of each FAT
+	 * are written. The rest of the volume is expected to be zeroed already, as
+	 * in a newly created disk image.
+	 * 
+	 * @param disk Disk session.
+	 * @param firstSector First sector of the volume.
+	 * @param sectors Size of the volume in sectors.
+	 * @param reservedSectors Sectors reserved at the start of the volume,
+	 * including the boot sector. FAT32 volumes get at least 32.
+	 * @param type FAT16 or FAT32.
+	 */
+	public static void format(Disk disk, long firstSector, long sectors, int reservedSectors, FATType type) {
+		final int sectorSize = disk.getSectorSize();
+		final int fatCount = 2;
+		final boolean fat32 = (type == FATType.FAT32);
+		final int rootEntryCount = fat32 ? 0 : 512;
+		int rootDirSectors = rootEntryCount * DIR_ENTRY_SIZE / sectorSize;
+		
+		if (type != FATType.FAT16 && type != FATType.FAT32) throw new CLIException("Only FAT16 and FAT32 volumes can be created.");
+		if (sectors > 0xFFFFFFFFL) throw new CLIException("Volume is too large for FAT.");
+		if (fat32) reservedSectors = Math.max(reservedSectors, 32);
+		
+		// FAT16 starts from the smallest clusters. FAT32 starts from the recommended size for the volume.
+		final int maxClusterSize = MAX_CLUSTER_BYTES / sectorSize;
+		int clusterSize = 1;
+		if (fat32) {
+			long bytes = sectors * sectorSize;
+			if (bytes > (32L << 30)) clusterSize = 32768 / sectorSize;
+			else if (bytes > (16L << 30)) clusterSize = 16384 / sectorSize;
+			else if (bytes > (8L << 30)) clusterSize = 8192 / sectorSize;
+			else clusterSize = 4096 / sectorSize;
+		}
+		
+		int sectorsPerFAT;
+		long clusters;
+		final int entriesPerSector = sectorSize / (fat32 ? 4 : 2);
+		while (true) {
+			// Smallest FAT with an entry for every cluster, and for the two reserved entries
+			long available = sectors - reservedSectors - rootDirSectors;
+			long divisor = (long)entriesPerSector * clusterSize + fatCount;
+			
+			sectorsPerFAT = (int)((available + 2L * clusterSize + divisor - 1) / divisor);
+			clusters = (available - (long)fatCount * sectorsPerFAT) / clusterSize;
+			
+			if (fat32) {
+				// Small FAT32 volumes need smaller clusters to stay FAT32
+				if (clusters >= 65525 || clusterSize == 1) break;
+				clusterSize /= 2;
+			} else {
+				if (clusters <= 65524) break;
+				if (clusterSize == maxClusterSize) throw new CLIException("Volume is too large for FAT16.");
+				clusterSize *= 2;
+			}
+		}
+		if (!fat32 && clusters < 4085) throw new CLIException("Volume is too small for FAT16.");
+		if (fat32 && clusters < 65525) throw new CLIException("Volume is too small for FAT32.");
+		if (fat32 && clusters > 0x0FFFFFF5) throw new CLIException("Volume is too large for FAT32.");
+		
+		// Boot sector, with an empty boot code area
+		var bs = new byte[sectorSize];
+		bs[0] = (byte)0xEB; bs[1] = (byte)(fat32 ? 0x58 : 0x3C); bs[2] = (byte)0x90;
+		System.arraycopy("MSWIN4.1".getBytes(), 0, bs, 0x03, 8);
+		putShort(bs, 0x0B, sectorSize);
+		bs[0x0D] = (byte)clusterSize;
+		putShort(bs, 0x0E, reservedSectors);
+		bs[0x10] = fatCount;
+		putShort(bs, 0x11, rootEntryCount);
+		if (sectors < 0x10000 && !fat32) {
+			putShort(bs, 0x13, (int)sectors);
+		} else {
+			putInt(bs, 0x20, (int)sectors);
+		}
+		bs[0x15] = (byte)0xF8;
+		putShort(bs, 0x18, 63);
+		putShort(bs, 0x1A, 255);
+		putInt(bs, 0x1C, (int)firstSector);
+		
+		// Extended boot record. FAT32 has its own fields before it.
+		int ebr = 0x24;
+		if (fat32) {
+			putInt(bs, 0x24, sectorsPerFAT);
+			putInt(bs, 0x2C, 2);
+			putShort(bs, 0x30, 1);
+			putShort(bs, 0x32, 6);
+			ebr = 0x40;
+		} else {
+			putShort(bs, 0x16, sectorsPerFAT);
+		}
+		bs[ebr] = (byte)0x80;
+		bs[ebr + 2] = 0x29;
+		putInt(bs, ebr + 3, (int)System.currentTimeMillis());
+		System.arraycopy((fat32 ? "NO NAME    FAT32   " : "NO NAME    FAT16   ").getBytes(), 0, bs, ebr + 7, 19);
+		bs[510] = 0x55; bs[511] = (byte)0xAA;
+		
+		long volumeOffset = firstSector * sectorSize;
+		disk.write(volumeOffset, bs);
+		
+		if (fat32) {
+			// All clusters but the root directory's are free
+			var info = new byte[sectorSize];
+			putInt(info, 0, FSINFO_LEAD_SIGNATURE);
+			putInt(info, 484, FSINFO_STRUCT_SIGNATURE);
+			putInt(info, FSINFO_FREE_COUNT, (int)(clusters - 1));
+			putInt(info, FSINFO_NEXT_FREE, 3);
+			putInt(info, 508, FSINFO_TRAIL_SIGNATURE);
+			
+			disk.write(volumeOffset + sectorSize, info);
+			disk.write(volumeOffset + 6L * sectorSize, bs);
+			disk.write(volumeOffset + 7L * sectorSize, info);
+		}
+		
+		// The first two FAT entries hold the media descriptor and an end of chain
+		// mark. On FAT32, the root directory cluster follows, as a chain of its own.
+		var fatStart = fat32
+				? new byte[] { (byte)0xF8, (byte)0xFF, (byte)0xFF, 0x0F, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F }
+				: new byte[] { (byte)0xF8, (byte)0xFF, (byte)0xFF, (byte)0xFF };
+		for (int i = 0; i < fatCount; i++) {
+			disk.write(volumeOffset + (reservedSectors + (long)i * sectorsPerFAT) * sectorSize, fatStart);
+		}
 	}
 	
 	private static long capInputSize(File input, long size) {
@@ -114,7 +875,796 @@ public class FATVolume {
 		if (size < 0) return input.length();
 		return Math.min(input.length(), size);
 	}
-
+	
+	/* ---- Allocation table ---- */
+	
+	/** Loads the first FAT into memory on the first access. */
+	private void loadFAT() {
+		if (fatBytes != null) return;
+		
+		fatBytes = disk.read(fatOffset, sectorsPerFAT * logicalSectorSize);
+	}
+	
+	/**
+	 * Reads and decodes one of the FAT copies straight from the disk, without
+	 * touching the copy kept in memory.
+	 *
+	 * @param copy Index of the FAT copy, from 0.
+	 * @return The entry of each cluster, including the two reserved entries.
+	 */
+	int[] readFATCopy(int copy) {
+		var bytes = disk.read(fatOffset + (long)copy * sectorsPerFAT * logicalSectorSize, sectorsPerFAT * logicalSectorSize);
+		
+		// A FAT too small for the volume leaves the clusters past its end as free
+		var entries = new int[totalClusters + 2];
+		for (int cluster = 0; cluster < entries.length; cluster++) {
+			if (fatType == FATType.FAT12) {
+				int off = cluster + cluster / 2;
+				if (off + 1 >= bytes.length) break;
+				
+				int value = (bytes[off] & 0xFF) | ((bytes[off + 1] & 0xFF) << 8);
+				entries[cluster] = ((cluster & 1) == 0) ? value & 0xFFF : value >>> 4;
+			} else if (fatType == FATType.FAT32) {
+				int off = cluster * 4;
+				if (off + 3 >= bytes.length) break;
+				
+				entries[cluster] = Numbers.byteArrayToInt(bytes, off) & 0x0FFFFFFF;
+			} else {
+				int off = cluster * 2;
+				if (off + 1 >= bytes.length) break;
+				
+				entries[cluster] = (bytes[off] & 0xFF) | ((bytes[off + 1] & 0xFF) << 8);
+			}
+		}
+		return entries;
+	}
+	
+	int getFATCount() {
+		return fatCount;
+	}
+	
+	int getFATEntry(int cluster) {
+		loadFAT();
+		
+		if (fatType == FATType.FAT12) {
+			int off = cluster + cluster / 2;
+			int value = (fatBytes[off] & 0xFF) | ((fatBytes[off + 1] & 0xFF) << 8);
+			return ((cluster & 1) == 0) ? value & 0xFFF : value >>> 4;
+		}
+		
+		// The top 4 bits of FAT32 entries are reserved
+		if (fatType == FATType.FAT32) return Numbers.byteArrayToInt(fatBytes, cluster * 4) & 0x0FFFFFFF;
+		
+		int off = cluster * 2;
+		return (fatBytes[off] & 0xFF) | ((fatBytes[off + 1] & 0xFF) << 8);
+	}
+	
+	void setFATEntry(int cluster, int value) {
+		loadFAT();
+		
+		// Keep the free count in step with clusters being allocated and freed
+		if (freeClusters >= 0 && (getFATEntry(cluster) == 0) != (value == 0)) {
+			freeClusters += (value == 0) ? 1 : -1;
+			fsInfoDirty = true;
+		}
+		
+		int off;
+		int length = 2;
+		if (fatType == FATType.FAT12) {
+			off = cluster + cluster / 2;
+			int old = (fatBytes[off] & 0xFF) | ((fatBytes[off + 1] & 0xFF) << 8);
+			
+			// Entries share a nibble with their neighbour
+			int packed = ((cluster & 1) == 0)
+					? (old & 0xF000) | (value & 0xFFF)
+					: (old & 0x000F) | ((value & 0xFFF) << 4);
+			
+			fatBytes[off] = (byte)packed;
+			fatBytes[off + 1] = (byte)(packed >>> 8);
+		} else if (fatType == FATType.FAT32) {
+			off = cluster * 4;
+			length = 4;
+			int old = Numbers.byteArrayToInt(fatBytes, off);
+			putInt(fatBytes, off, (old & 0xF0000000) | (value & 0x0FFFFFFF));
+		} else {
+			off = cluster * 2;
+			fatBytes[off] = (byte)value;
+			fatBytes[off + 1] = (byte)(value >>> 8);
+		}
+		
+		dirtyFATSectors.set(off / logicalSectorSize);
+		dirtyFATSectors.set((off + length - 1) / logicalSectorSize);
+	}
+	
+	boolean isEndOfChain(int value) {
+		return switch (fatType) {
+			case FAT12 -> value >= 0xFF8;
+			case FAT32 -> value >= 0x0FFFFFF8;
+			default -> value >= 0xFFF8;
+		};
+	}
+	
+	/** Whether a value read from the FAT marks a bad cluster. */
+	boolean isBadCluster(int value) {
+		return switch (fatType) {
+			case FAT12 -> value == 0xFF7;
+			case FAT32 -> value == 0x0FFFFFF7;
+			default -> value == 0xFFF7;
+		};
+	}
+	
+	private int endOfChainMark() {
+		return switch (fatType) {
+			case FAT12 -> 0xFFF;
+			case FAT32 -> 0x0FFFFFFF;
+			default -> 0xFFFF;
+		};
+	}
+	
+	/** Whether a value read from the FAT points to a valid data cluster. */
+	boolean isDataCluster(int value) {
+		return value >= 2 && value < totalClusters + 2;
+	}
+	
+	/**
+	 * Lists the clusters of a chain in order.
+	 *
+	 * @param first First cluster of the chain. 0 yields an empty chain.
+	 */
+	int[] getChain(int first) {
+		if (!isDataCluster(first)) return new int[0];
+		
+		var chain = new int[16];
+		int length = 0;
+		int cluster = first;
+		
+		while (isDataCluster(cluster)) {
+			// A chain longer than the volume is looping on itself
+			if (length > totalClusters) throw new CLIException("Cluster chain starting at " + first + " loops.");
+			if (length == chain.length) chain = Arrays.copyOf(chain, length * 2);
+			
+			chain[length++] = cluster;
+			cluster = getFATEntry(cluster);
+		}
+		
+		return Arrays.copyOf(chain, length);
+	}
+	
+	/**
+	 * Finds and links free clusters into a new chain.
+	 *
+	 * @param count How many clusters to allocate.
+	 * @return The clusters allocated, in chain order.
+	 */
+	int[] allocateClusters(int count) {
+		// A known free count saves scanning a full FAT just to fail
+		if (freeClusters >= 0 && count > freeClusters) throw new CLIException("Not enough free space in the volume.");
+		
+		var clusters = new int[count];
+		int found = 0;
+		
+		// First fit, starting from where the last allocation ended
+		for (int i = 0; i < totalClusters && found < count; i++) {
+			int cluster = 2 + (nextFreeHint - 2 + i) % totalClusters;
+			if (getFATEntry(cluster) == 0) clusters[found++] = cluster;
+		}
+		
+		if (found < count) throw new CLIException("Not enough free space in the volume.");
+		
+		linkChain(clusters);
+		nextFreeHint = clusters[count - 1] + 1;
+		return clusters;
+	}
+	
+	/** Links the given clusters in order and terminates the chain. */
+	private void linkChain(int[] clusters) {
+		for (int i = 0; i < clusters.length - 1; i++) {
+			setFATEntry(clusters[i], clusters[i + 1]);
+		}
+		setFATEntry(clusters[clusters.length - 1], endOfChainMark());
+	}
+	
+	/**
+	 * Grows or shrinks a chain to a length, freeing or allocating clusters at its end.
+	 *
+	 * @param first First cluster of the chain, or 0 to create a new one.
+	 * @param clusters The new chain length.
+	 * @return The first cluster of the resulting chain, or 0 if it's empty.
+	 */
+	private int resizeChain(int first, int clusters) {
+		var chain = getChain(first);
+		if (clusters == chain.length) return first;
+		
+		if (clusters < chain.length) {
+			for (int i = clusters; i < chain.length; i++) {
+				setFATEntry(chain[i], 0);
+			}
+			
+			if (clusters == 0) return 0;
+			setFATEntry(chain[clusters - 1], endOfChainMark());
+			return first;
+		}
+		
+		var extra = allocateClusters(clusters - chain.length);
+		if (chain.length == 0) return extra[0];
+		
+		setFATEntry(chain[chain.length - 1], extra[0]);
+		return first;
+	}
+	
+	/**
+	 * Gives a file the chain it needs to hold a number of clusters, following
+	 * the allocation policy.
+	 * 
+	 * @param existing Entry of the file if it already exists, or null.
+	 * @param clusters Length of the chain.
+	 * @return First cluster of the chain, or 0 if it's empty.
+	 */
+	private int allocateFileChain(DirEntry existing, int clusters) {
+		int first = (existing == null) ? 0 : existing.firstCluster();
+		if (allocationPolicy == AllocationPolicy.FIRST_FIT) return resizeChain(first, clusters);
+		
+		var chain = getChain(first);
+		if (clusters <= chain.length && isContiguous(chain)) return resizeChain(first, clusters);
+		
+		// Try to grow the file into the free clusters right after it
+		if (chain.length > 0 && isContiguous(chain) && isFreeRun(chain[chain.length - 1] + 1, clusters - chain.length)) {
+			var run = new int[clusters];
+			for (int i = 0; i < clusters; i++) run[i] = first + i;
+			
+			linkChain(run);
+			return first;
+		}
+		
+		// Otherwise the file gets a new home
+		resizeChain(first, 0);
+		if (clusters == 0) return 0;
+		
+		long ignoredEntry = (existing == null) ? -1 : existing.location();
+		return allocateContiguous(clusters, ignoredEntry);
+	}
+	
+	/**
+	 * Allocates a chain made of a single run of clusters. If no free run is long
+	 * enough, clusters of other files are relocated to make room.
+	 * 
+	 * @param count Length of the chain.
+	 * @param ignoredEntry Location of a directory entry whose chain was
+	 * already freed and must not be considered as owning clusters, or -1.
+	 * @return First cluster of the chain.
+	 */
+	private int allocateContiguous(int count, long ignoredEntry) {
+		int start = findFreeRun(count);
+		if (start == -1) start = makeRoom(count, ignoredEntry);
+		
+		var run = new int[count];
+		for (int i = 0; i < count; i++) run[i] = start + i;
+		
+		linkChain(run);
+		nextFreeHint = start + count;
+		return start;
+	}
+	
+	/** Returns the first cluster of a free run of the given length, or -1. */
+	private int findFreeRun(int count) {
+		int runStart = 2;
+		int runLength = 0;
+		
+		for (int c = 2; c < totalClusters + 2; c++) {
+			if (getFATEntry(c) != 0) {
+				runStart = c + 1;
+				runLength = 0;
+				continue;
+			}
+			
+			if (++runLength == count) return runStart;
+		}
+		return -1;
+	}
+	
+	private boolean isFreeRun(int first, int count) {
+		if (first + count > totalClusters + 2) return false;
+		
+		for (int c = first; c < first + count; c++) {
+			if (getFATEntry(c) != 0) return false;
+		}
+		return true;
+	}
+	
+	private static boolean isContiguous(int[] chain) {
+		for (int i = 1; i < chain.length; i++) {
+			if (chain[i] != chain[i - 1] + 1) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Frees a run of clusters by moving the file clusters inside it elsewhere.
+	 * The window chosen is the one with the least clusters in use. Directory
+	 * clusters and clusters not owned by any file are never moved.
+	 * 
+	 * @return First cluster of the freed run.
+	 */
+	private int makeRoom(int count, long ignoredEntry) {
+		int free = 0;
+		for (int c = 2; c < totalClusters + 2; c++) {
+			if (getFATEntry(c) == 0) free++;
+		}
+		if (free < count) throw new CLIException("Not enough free space in the volume.");
+		
+		var owners = new ClusterOwners(ignoredEntry);
+		
+		// Slide a window over the data region looking for the cheapest movable run
+		int best = -1;
+		int bestCost = Integer.MAX_VALUE;
+		int used = 0;
+		int pinned = 0;
+		for (int c = 2; c < totalClusters + 2; c++) {
+			if (getFATEntry(c) != 0) used++;
+			if (owners.pinned.get(c)) pinned++;
+			
+			int out = c - count;
+			if (out >= 2) {
+				if (getFATEntry(out) != 0) used--;
+				if (owners.pinned.get(out)) pinned--;
+			}
+			
+			if (c - count + 1 >= 2 && pinned == 0 && used < bestCost) {
+				best = c - count + 1;
+				bestCost = used;
+			}
+		}
+		
+		if (best == -1) throw new CLIException("Can't make a contiguous run of " + count + " clusters in the volume.");
+		
+		// Move every used cluster of the window to a free cluster outside of it
+		int target = 2;
+		for (int c = best; c < best + count; c++) {
+			if (getFATEntry(c) == 0) continue;
+			
+			while (getFATEntry(target) != 0 || (target >= best && target < best + count)) target++;
+			owners.move(c, target);
+		}
+		
+		return best;
+	}
+	
+	/** Who links to each cluster of the volume, so clusters can be moved around. */
+	private class ClusterOwners {
+		// Previous cluster in the chain, or 0 if the cluster is the first of a file
+		final int[] previous = new int[totalClusters + 2];
+		
+		// Directory entry location of the first cluster of each file
+		final HashMap<Integer, Long> heads = new HashMap<>();
+		
+		// Clusters that can't be moved
+		final BitSet pinned = new BitSet();
+		
+		ClusterOwners(long ignoredEntry) {
+			var owned = new BitSet();
+			
+			walk((path, entry) -> {
+				if (entry.location() == ignoredEntry) return;
+				
+				var chain = getChain(entry.firstCluster());
+				for (int i = 0; i < chain.length; i++) {
+					owned.set(chain[i]);
+					if (entry.isDirectory()) pinned.set(chain[i]);
+					previous[chain[i]] = (i == 0) ? 0 : chain[i - 1];
+				}
+				
+				if (chain.length > 0) heads.put(chain[0], entry.location());
+			});
+			
+			for (int c = 2; c < totalClusters + 2; c++) {
+				if (getFATEntry(c) != 0 && !owned.get(c)) pinned.set(c);
+			}
+		}
+		
+		/** Moves a cluster contents and relinks whoever pointed to it. */
+		void move(int from, int to) {
+			disk.write(clusterOffset(to), disk.read(clusterOffset(from), clusterBytes));
+			
+			int next = getFATEntry(from);
+			setFATEntry(to, next);
+			setFATEntry(from, 0);
+			
+			int prev = previous[from];
+			if (prev != 0) {
+				setFATEntry(prev, to);
+			} else {
+				long location = heads.remove(from);
+				disk.write(location + 26, new byte[] { (byte)to, (byte)(to >>> 8) });
+				if (fatType == FATType.FAT32) disk.write(location + 20, new byte[] { (byte)(to >>> 16), (byte)(to >>> 24) });
+				heads.put(to, location);
+			}
+			
+			previous[to] = prev;
+			if (isDataCluster(next)) previous[next] = to;
+		}
+	}
+	
+	/* ---- Data region ---- */
+	
+	/** Absolute disk offset of a data cluster. */
+	long clusterOffset(int cluster) {
+		return dataOffset + (long)(cluster - 2) * clusterBytes;
+	}
+	
+	/**
+	 * Writes data over a chain, one write per run of consecutive clusters.
+	 * Clusters that are in the same chain position as in the old chain of the
+	 * file are compared first, and left alone if they already hold the data.
+	 * 
+	 * @param first First cluster of the chain.
+	 * @param data Data to write.
+	 * @param oldChain Chain the file had before, empty for new files.
+	 */
+	private WriteStats writeChainData(int first, byte[] data, int[] oldChain) {
+		long[] stats = new long[2];
+		
+		forEachRun(getChain(first), (index, firstCluster, count) -> {
+			int from = index * clusterBytes;
+			int len = Math.min(data.length - from, count * clusterBytes);
+			if (len <= 0) return;
+			
+			// How much of the run start was already part of the file at the same position
+			int reused = 0;
+			while (reused < count && index + reused < oldChain.length && oldChain[index + reused] == firstCluster + reused) reused++;
+			int reusedLen = Math.min(len, reused * clusterBytes);
+			
+			long runOffset = clusterOffset(firstCluster);
+			if (reusedLen > 0) {
+				var current = disk.read(runOffset, reusedLen);
+				
+				int pos = 0;
+				while (pos < reusedLen) {
+					if (clusterMatches(current, data, from, pos, reusedLen)) {
+						int end = Math.min(pos + clusterBytes, reusedLen);
+						stats[1] += end - pos;
+						pos = end;
+						continue;
+					}
+					
+					// Write every differing cluster in a row at once
+					int start = pos;
+					while (pos < reusedLen && !clusterMatches(current, data, from, pos, reusedLen)) {
+						pos = Math.min(pos + clusterBytes, reusedLen);
+					}
+					
+					disk.write(runOffset + start, data, from + start, pos - start);
+					stats[0] += pos - start;
+				}
+			}
+			
+			// The rest of the run is new to the file
+			if (len > reusedLen) {
+				disk.write(runOffset + reusedLen, data, from + reusedLen, len - reusedLen);
+				stats[0] += len - reusedLen;
+			}
+		});
+		
+		return new WriteStats(stats[0], stats[1]);
+	}
+	
+	/**
+	 * Compares the cluster starting at a position of a run read from disk with
+	 * the same position of the data being written.
+	 */
+	private boolean clusterMatches(byte[] current, byte[] data, int dataFrom, int pos, int limit) {
+		int end = Math.min(pos + clusterBytes, limit);
+		return Arrays.equals(current, pos, end, data, dataFrom + pos, dataFrom + end);
+	}
+	
+	/** Splits a chain into runs of consecutive clusters. */
+	static void forEachRun(int[] chain, RunConsumer consumer) {
+		int i = 0;
+		while (i < chain.length) {
+			int j = i + 1;
+			while (j < chain.length && chain[j] == chain[j - 1] + 1) j++;
+			
+			consumer.accept(i, chain[i], j - i);
+			i = j;
+		}
+	}
+	
+	@FunctionalInterface
+	public interface RunConsumer {
+		/**
+		 * @param index Position of the run in the chain.
+		 * @param firstCluster First cluster of the run.
+		 * @param count How many clusters are in the run.
+		 */
+		void accept(int index, int firstCluster, int count);
+	}
+	
+	/* ---- Directories ---- */
+	
+	/**
+	 * Raw contents of a directory, with the disk location of each entry slot.
+	 *
+	 * @param cluster First cluster of the directory, 0 for the root directory.
+	 */
+	private record DirectoryData(int cluster, byte[] bytes, long[] locations) {
+		int slots() {
+			return locations.length;
+		}
+	}
+	
+	/**
+	 * An entry of a directory.
+	 *
+	 * @param name Displayable 8.3 name, such as "STAGE2.IMG".
+	 * @param attributes Attribute flags of the entry.
+	 * @param firstCluster First cluster of the entry data.
+	 * @param size Size of the file in bytes. Always 0 for directories.
+	 * @param location Absolute disk offset of the entry, used to update it.
+	 */
+	public record DirEntry(String name, int attributes, int firstCluster, long size, long location) {
+		public boolean isDirectory() {
+			return (attributes & ATTR_DIRECTORY) != 0;
+		}
+	}
+	
+	private DirectoryData readDirectory(int cluster) {
+		return readDirectory(cluster, getChain((cluster == 0) ? rootCluster : cluster));
+	}
+	
+	/**
+	 * Lists the entries of a directory stored in the given clusters, without
+	 * following its chain through the FAT. Used by {@link FATChecker}, which
+	 * walks chains on its own copy of the FAT.
+	 *
+	 * @param cluster First cluster of the directory, 0 for the root directory.
+	 * @param chain Clusters of the directory. Ignored for the root directory,
+	 * unless the volume is FAT32.
+	 */
+	List<DirEntry> listDirectory(int cluster, int[] chain) {
+		return parseEntries(readDirectory(cluster, chain));
+	}
+	
+	private DirectoryData readDirectory(int cluster, int[] chain) {
+		// Outside of FAT32, the root directory has a fixed region of its own
+		if (cluster == 0 && fatType != FATType.FAT32) {
+			var locations = new long[rootEntryCount];
+			for (int i = 0; i < rootEntryCount; i++) {
+				locations[i] = rootDirOffset + (long)i * DIR_ENTRY_SIZE;
+			}
+			
+			return new DirectoryData(0, disk.read(rootDirOffset, rootEntryCount * DIR_ENTRY_SIZE), locations);
+		}
+		
+		int entriesPerCluster = clusterBytes / DIR_ENTRY_SIZE;
+		var bytes = new byte[chain.length * clusterBytes];
+		var locations = new long[chain.length * entriesPerCluster];
+		
+		for (int c = 0; c < chain.length; c++) {
+			long offset = clusterOffset(chain[c]);
+			System.arraycopy(disk.read(offset, clusterBytes), 0, bytes, c * clusterBytes, clusterBytes);
+			
+			for (int i = 0; i < entriesPerCluster; i++) {
+				locations[c * entriesPerCluster + i] = offset + (long)i * DIR_ENTRY_SIZE;
+			}
+		}
+		
+		return new DirectoryData(cluster, bytes, locations);
+	}
+	
+	/** Parses the short name entries of a directory, skipping long names and volume labels. */
+	private List<DirEntry> parseEntries(DirectoryData dir) {
+		var entries = new ArrayList<DirEntry>();
+		var bytes = dir.bytes();
+		
+		for (int i = 0; i < dir.slots(); i++) {
+			int off = i * DIR_ENTRY_SIZE;
+			int first = bytes[off] & 0xFF;
+			if (first == 0x00) break;
+			if (first == 0xE5) continue;
+			
+			int attr = bytes[off + 11] & 0xFF;
+			if ((attr & ATTR_LONG_NAME) == ATTR_LONG_NAME) continue;
+			if ((attr & ATTR_VOLUME_ID) != 0) continue;
+			
+			int cluster = (bytes[off + 26] & 0xFF) | ((bytes[off + 27] & 0xFF) << 8);
+			if (fatType == FATType.FAT32) cluster |= ((bytes[off + 20] & 0xFF) | ((bytes[off + 21] & 0xFF) << 8)) << 16;
+			long size = Integer.toUnsignedLong(Numbers.byteArrayToInt(bytes, off + 28));
+			
+			entries.add(new DirEntry(toDisplayName(bytes, off), attr, cluster, size, dir.locations()[i]));
+		}
+		
+		return entries;
+	}
+	
+	private DirEntry findInDirectory(DirectoryData dir, String name) {
+		if (name.equals(".") || name.equals("..")) return null;
+		
+		for (var entry : parseEntries(dir)) {
+			if (entry.name().equalsIgnoreCase(name)) return entry;
+		}
+		return null;
+	}
+	
+	/** Follows a path of directories and returns the first cluster of the last one. */
+	private int resolveDirectory(List<String> parts) {
+		int dirCluster = 0;
+		for (var part : parts) {
+			var entry = findInDirectory(readDirectory(dirCluster), part);
+			if (entry == null || !entry.isDirectory()) {
+				throw new CLIException("Directory '" + String.join("/", parts) + "' does not exist in the volume.");
+			}
+			
+			dirCluster = entry.firstCluster();
+		}
+		return dirCluster;
+	}
+	
+	private int resolveDirectory(String path) {
+		return resolveDirectory(splitPath(path));
+	}
+	
+	/**
+	 * Finds a free entry slot in a directory. Directories other than the root
+	 * grow by one cluster if they're full.
+	 *
+	 * @return Disk location of the slot.
+	 */
+	private long allocateEntry(DirectoryData dir) {
+		var bytes = dir.bytes();
+		for (int i = 0; i < dir.slots(); i++) {
+			int first = bytes[i * DIR_ENTRY_SIZE] & 0xFF;
+			if (first == 0x00 || first == 0xE5) return dir.locations()[i];
+		}
+		
+		if (dir.cluster() == 0 && fatType != FATType.FAT32) throw new CLIException("The root directory is full.");
+		
+		// Extend the directory with a cleared cluster
+		var chain = getChain((dir.cluster() == 0) ? rootCluster : dir.cluster());
+		int cluster = allocateClusters(1)[0];
+		setFATEntry(chain[chain.length - 1], cluster);
+		disk.write(clusterOffset(cluster), new byte[clusterBytes]);
+		return clusterOffset(cluster);
+	}
+	
+	/**
+	 * Marks an entry as deleted, along with the long name entries right before
+	 * it. Only slots of the entry's own directory are touched, following its
+	 * cluster chain, so a long name may start in a previous cluster.
+	 *
+	 * @param dir Directory holding the entry.
+	 */
+	private void removeEntry(DirectoryData dir, DirEntry entry) {
+		int index = 0;
+		while (index < dir.slots() && dir.locations()[index] != entry.location()) index++;
+		if (index == dir.slots()) throw new CLIException("Entry '" + entry.name() + "' is not in the directory.");
+		
+		disk.write(entry.location(), new byte[] { (byte)0xE5 });
+		
+		// Long name entries are stored backwards before the short entry
+		var bytes = dir.bytes();
+		for (int i = index - 1; i >= 0; i--) {
+			int off = i * DIR_ENTRY_SIZE;
+			if ((bytes[off + 11] & ATTR_LONG_NAME) != ATTR_LONG_NAME || (bytes[off] & 0xFF) == 0xE5) break;
+			
+			disk.write(dir.locations()[i], new byte[] { (byte)0xE5 });
+			
+			// The entry with the 0x40 flag is the first of the long name
+			if ((bytes[off] & 0x40) != 0) break;
+		}
+	}
+	
+	/** Updates the first cluster, size and modification time of an entry. */
+	private void updateEntry(long location, int firstCluster, long size) {
+		var entry = disk.read(location, DIR_ENTRY_SIZE);
+		int[] stamp = dosTimestamp(LocalDateTime.now());
+		
+		putShort(entry, 22, stamp[0]);
+		putShort(entry, 24, stamp[1]);
+		putShort(entry, 20, firstCluster >>> 16);
+		putShort(entry, 26, firstCluster);
+		putInt(entry, 28, (int)size);
+		
+		disk.write(location, entry);
+	}
+	
+	private static byte[] createEntry(byte[] shortName, int attributes, int firstCluster, long size) {
+		var entry = new byte[DIR_ENTRY_SIZE];
+		int[] stamp = dosTimestamp(LocalDateTime.now());
+		
+		System.arraycopy(shortName, 0, entry, 0, 11);
+		entry[11] = (byte)attributes;
+		putShort(entry, 14, stamp[0]); // Creation time
+		putShort(entry, 16, stamp[1]); // Creation date
+		putShort(entry, 18, stamp[1]); // Last access date
+		putShort(entry, 22, stamp[0]); // Modification time
+		putShort(entry, 24, stamp[1]); // Modification date
+		putShort(entry, 20, firstCluster >>> 16); // High word, always 0 outside of FAT32
+		putShort(entry, 26, firstCluster);
+		putInt(entry, 28, (int)size);
+		return entry;
+	}
+	
+	/* ---- Names and paths ---- */
+	
+	/** Splits a volume path into its components, ignoring drive letters and empty parts. */
+	static List<String> splitPath(String path) {
+		if (path.length() >= 2 && path.charAt(1) == ':') path = path.substring(2);
+		
+		var parts = new ArrayList<String>();
+		for (var part : path.split("[/\\\\]")) {
+			if (part.isEmpty() || part.equals(".")) continue;
+			parts.add(part);
+		}
+		return parts;
+	}
+	
+	/**
+	 * Converts a file name into the 11 bytes of its 8.3 entry name.
+	 *
+	 * @throws CLIException If the name can't be stored as an 8.3 name.
+	 */
+	static byte[] toShortName(String name) {
+		name = name.toUpperCase();
+		
+		int dot = name.lastIndexOf('.');
+		var base = (dot == -1) ? name : name.substring(0, dot);
+		var ext = (dot == -1) ? "" : name.substring(dot + 1);
+		
+		if (base.isEmpty() || base.length() > 8 || ext.length() > 3 || !isValidShortName(base) || !isValidShortName(ext)) {
+			throw new CLIException("'" + name + "' is not a valid 8.3 file name.");
+		}
+		
+		var shortName = new byte[11];
+		Arrays.fill(shortName, (byte)' ');
+		for (int i = 0; i < base.length(); i++) shortName[i] = (byte)base.charAt(i);
+		for (int i = 0; i < ext.length(); i++) shortName[8 + i] = (byte)ext.charAt(i);
+		
+		// A leading 0xE5 would mark the entry as deleted
+		if ((shortName[0] & 0xFF) == 0xE5) shortName[0] = 0x05;
+		return shortName;
+	}
+	
+	private static boolean isValidShortName(String part) {
+		for (int i = 0; i < part.length(); i++) {
+			char c = part.charAt(i);
+			if (c < 0x20 || c > 0x7E || "\"*+,./:;<=>?[\\]| ".indexOf(c) != -1) return false;
+		}
+		return true;
+	}
+	
+	private static String toDisplayName(byte[] entry, int offset) {
+		var base = new String(entry, offset, 8).stripTrailing();
+		var ext = new String(entry, offset + 8, 3).stripTrailing();
+		if ((entry[offset] & 0xFF) == 0x05) base = (char)0xE5 + base.substring(1);
+		
+		if (ext.isEmpty()) return base;
+		return base + "." + ext;
+	}
+	
+	/** Returns the DOS time and date words of a moment. */
+	private static int[] dosTimestamp(LocalDateTime time) {
+		int dosTime = (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() / 2);
+		int dosDate = ((Math.max(time.getYear(), 1980) - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth();
+		return new int[] { dosTime, dosDate };
+	}
+	
+	private static void putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte)value;
+		bytes[offset + 1] = (byte)(value >>> 8);
+	}
+	
+	private static void putInt(byte[] bytes, int offset, int value) {
+		putShort(bytes, offset, value);
+		putShort(bytes, offset + 2, value >>> 16);
+	}
+	
+	public enum AllocationPolicy {
+		/** Use the first free clusters found, even if scattered. */
+		FIRST_FIT,
+		
+		/** Store each written file in a single run of clusters, moving other files if needed. */
+		CONTIGUOUS
+	}
+	
 	public enum FATType {
 		NOT_FAT, FAT12, FAT16, FAT32
 	}
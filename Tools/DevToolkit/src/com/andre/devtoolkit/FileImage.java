@@ -0,0 +1,79 @@
+package com.andre.devtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Image whose file holds the disk bytes as-is, such as raw images and fixed
+ * VHDs. Every access is a positional read or write on the file channel.
+ * Fixed VHDs have their footer after the disk bytes, so their disk size is
+ * smaller than the file.
+ * 
+ * @author Andre
+ */
+public class FileImage extends DiskImage {
+	private final FileChannel channel;
+	private final long diskSize;
+	
+	/**
+	 * @param file Image file.
+	 * @param writable Whether the image is opened for writing too.
+	 * @param diskSize Size of the disk stored in the file, or -1 if it spans the whole file.
+	 */
+	public FileImage(File file, boolean writable, long diskSize) throws IOException {
+		this.diskSize = diskSize;
+		
+		if (writable) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+	}
+	
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		// Don't let reads reach into a VHD footer
+		if (diskSize != -1 && position + dst.remaining() > diskSize) {
+			if (position >= diskSize) return -1;
+			
+			var slice = dst.slice(dst.position(), (int)(diskSize - position));
+			int n = channel.read(slice, position);
+			if (n > 0) dst.position(dst.position() + n);
+			return n;
+		}
+		
+		return channel.read(dst, position);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		// Don't let writes reach into a VHD footer either
+		if (diskSize != -1 && position + src.remaining() > diskSize) throw new IOException("Write past the end of the disk.");
+		
+		return channel.write(src, position);
+	}
+
+	@Override
+	public long size() throws IOException {
+		if (diskSize != -1) return diskSize;
+		return channel.size();
+	}
+
+	@Override
+	public FileChannel getFlatChannel() {
+		return channel;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
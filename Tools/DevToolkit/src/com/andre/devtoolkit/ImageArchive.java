@@ -0,0 +1,390 @@
+package com.andre.devtoolkit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed archive of a whole disk, meant for storing and moving test
+ * images around. The disk is split into chunks of a fixed size. Chunks that
+ * are all zeroes aren't stored at all, and the rest are compressed with
+ * Deflate, each on its own, so they can be compressed and decompressed in
+ * parallel across every core.
+ * <br><br>
+ * The file is laid out as a header, followed by the stored chunks in disk
+ * order, and then an index with the position, stored length and CRC32C of
+ * each of them. The index lets any range of the disk be restored by itself,
+ * such as a single partition. Chunks that Deflate can't shrink are stored as
+ * they are.
+ *
+ * @author Andre
+ */
+public class ImageArchive implements Closeable {
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	
+	private static final byte[] MAGIC = "DTKARCHV".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	
+	// Header fields
+	private static final int HEADER_SIZE = 64;
+	private static final int HEADER_VERSION = 0x08;
+	private static final int HEADER_CHUNK_SIZE = 0x0C;
+	private static final int HEADER_DISK_SIZE = 0x10;
+	private static final int HEADER_STORED_CHUNKS = 0x18;
+	private static final int HEADER_INDEX_OFFSET = 0x20;
+	
+	// Index entries: chunk number, file offset, stored length and checksum
+	private static final int INDEX_ENTRY_SIZE = 20;
+	
+	/** How many chunks each thread may have in flight, so reading never waits on one slow chunk. */
+	private static final int CHUNKS_PER_THREAD = 4;
+	
+	private final FileChannel channel;
+	private final int chunkSize;
+	private final long diskSize;
+	
+	// Index entry of every chunk of the disk, null for the chunks not stored
+	private final Entry[] entries;
+	private final int storedChunks;
+	
+	private ImageArchive(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			var header = readFully(0, HEADER_SIZE);
+			if (!Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+				throw new CLIException("'" + file + "' is not a disk archive.");
+			}
+			if (header.getInt(HEADER_VERSION) != VERSION) {
+				throw new CLIException("'" + file + "' was written by an unsupported version.");
+			}
+			
+			chunkSize = header.getInt(HEADER_CHUNK_SIZE);
+			diskSize = header.getLong(HEADER_DISK_SIZE);
+			storedChunks = header.getInt(HEADER_STORED_CHUNKS);
+			long indexOffset = header.getLong(HEADER_INDEX_OFFSET);
+			if (indexOffset == 0) throw new CLIException("'" + file + "' is incomplete, it has no index.");
+			
+			entries = new Entry[(int)((diskSize + chunkSize - 1) / chunkSize)];
+			var index = readFully(indexOffset, storedChunks * INDEX_ENTRY_SIZE);
+			for (int i = 0; i < storedChunks; i++) {
+				int chunk = index.getInt();
+				entries[chunk] = new Entry(index.getLong(), index.getInt(), index.getInt());
+			}
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Opens an archive for restoring.
+	 *
+	 * @param file Archive file.
+	 * @return The archive, with its index loaded.
+	 */
+	public static ImageArchive open(File file) {
+		if (!file.isFile()) throw new CLIException("Archive '" + file + "' does not exist.");
+		
+		try {
+			return new ImageArchive(file);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Archives a whole disk. Chunks are read in disk order, compressed by a
+	 * pool of threads, and written in disk order again as they complete.
+	 *
+	 * @param image Disk image to archive.
+	 * @param output Archive file. Overwritten if it already exists.
+	 * @param chunkSize Size of each chunk in bytes.
+	 * @param level Deflate compression level, from 1 to 9.
+	 * @param threads How many threads compress chunks.
+	 * @return What was archived.
+	 */
+	public static Stats write(DiskImage image, File output, int chunkSize, int level, int threads) {
+		long start = System.nanoTime();
+		var pool = Executors.newFixedThreadPool(threads);
+		
+		try (var raf = new RandomAccessFile(output, "rw")) {
+			raf.setLength(0);
+			var out = raf.getChannel();
+			
+			long diskSize = image.size();
+			int chunks = (int)((diskSize + chunkSize - 1) / chunkSize);
+			var zeroes = new byte[chunkSize];
+			
+			// The header is written last, once the index is in place
+			long offset = HEADER_SIZE;
+			var index = ByteBuffer.allocate(chunks * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			int stored = 0;
+			
+			var pending = new ArrayDeque<Future<Chunk>>();
+			for (int c = 0; c < chunks || !pending.isEmpty(); ) {
+				// Keep every thread busy, but don't read too far ahead of the writes
+				if (c < chunks && pending.size() < threads * CHUNKS_PER_THREAD) {
+					int number = c++;
+					var data = new byte[(int)Math.min(chunkSize, diskSize - (long)number * chunkSize)];
+					readFully(image, ByteBuffer.wrap(data), (long)number * chunkSize);
+					pending.add(pool.submit(() -> compress(number, data, zeroes, level)));
+					continue;
+				}
+				
+				var chunk = pending.remove().get();
+				if (chunk.stored() == null) continue;
+				
+				writeFully(out, ByteBuffer.wrap(chunk.stored()), offset);
+				index.putInt(chunk.number()).putLong(offset).putInt(chunk.stored().length).putInt(chunk.checksum());
+				offset += chunk.stored().length;
+				stored++;
+			}
+			
+			writeFully(out, index.flip(), offset);
+			
+			var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(0, MAGIC);
+			header.putInt(HEADER_VERSION, VERSION);
+			header.putInt(HEADER_CHUNK_SIZE, chunkSize);
+			header.putLong(HEADER_DISK_SIZE, diskSize);
+			header.putInt(HEADER_STORED_CHUNKS, stored);
+			header.putLong(HEADER_INDEX_OFFSET, offset);
+			writeFully(out, header, 0);
+			
+			return new Stats(diskSize, chunks, stored, out.size(), System.nanoTime() - start);
+		} catch (IOException | InterruptedException | ExecutionException ex) {
+			output.delete();
+			throw new RuntimeException(ex);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Restores a range of the archived disk into an image. Stored chunks are
+	 * decompressed and checked by a pool of threads, and written into the image
+	 * in disk order.
+	 *
+	 * @param target Image to write into. Must be as large as the archived disk.
+	 * @param offset Byte offset of the range.
+	 * @param length Size of the range in bytes.
+	 * @param zeroGaps Whether the chunks not stored must be written as zeroes.
+	 * Images just created are already zeroed and can skip them.
+	 * @param threads How many threads decompress chunks.
+	 * @return What was restored.
+	 */
+	public Stats restore(DiskImage target, long offset, long length, boolean zeroGaps, int threads) {
+		long start = System.nanoTime();
+		if (offset < 0 || offset + length > diskSize) throw new CLIException("Range is outside of the archived disk.");
+		
+		var pool = Executors.newFixedThreadPool(threads);
+		try {
+			int first = (int)(offset / chunkSize);
+			int last = (int)((offset + length - 1) / chunkSize);
+			var zeroes = new byte[chunkSize];
+			
+			int restored = 0;
+			var pending = new ArrayDeque<Future<Chunk>>();
+			for (int c = first; c <= last || !pending.isEmpty(); ) {
+				if (c <= last && pending.size() < threads * CHUNKS_PER_THREAD) {
+					int number = c++;
+					pending.add(pool.submit(() -> new Chunk(number, (entries[number] != null) ? readChunk(number) : null, 0)));
+					continue;
+				}
+				
+				var chunk = pending.remove().get();
+				var data = chunk.stored();
+				if (data == null) {
+					if (!zeroGaps) continue;
+					data = zeroes;
+				} else {
+					restored++;
+				}
+				
+				// Only the part of the chunk inside the range is written
+				long chunkStart = (long)chunk.number() * chunkSize;
+				long from = Math.max(chunkStart, offset);
+				long to = Math.min(Math.min(chunkStart + chunkSize, diskSize), offset + length);
+				var slice = ByteBuffer.wrap(data, (int)(from - chunkStart), (int)(to - from));
+				while (slice.hasRemaining()) {
+					target.write(slice, chunkStart + slice.position());
+				}
+			}
+			
+			return new Stats(length, last - first + 1, restored, channel.size(), System.nanoTime() - start);
+		} catch (IOException | InterruptedException ex) {
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof CLIException cli) throw cli;
+			throw new RuntimeException(ex);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Reads a range of the archived disk, decompressing the chunks it covers.
+	 *
+	 * @return The bytes of the range.
+	 */
+	public byte[] read(long offset, int length) {
+		length = (int)Math.max(0, Math.min(diskSize - offset, length));
+		var bytes = new byte[length];
+		
+		for (long pos = offset; pos < offset + length; ) {
+			int chunk = (int)(pos / chunkSize);
+			int inChunk = (int)(pos % chunkSize);
+			int len = (int)Math.min(chunkSize - inChunk, offset + length - pos);
+			
+			if (entries[chunk] != null) {
+				System.arraycopy(readChunk(chunk), inChunk, bytes, (int)(pos - offset), len);
+			}
+			pos += len;
+		}
+		return bytes;
+	}
+	
+	public long getDiskSize() {
+		return diskSize;
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/** How many chunks hold something and are stored in the archive. */
+	public int getStoredChunks() {
+		return storedChunks;
+	}
+	
+	public int getChunkCount() {
+		return entries.length;
+	}
+	
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** Compresses a chunk, or leaves it out if it only holds zeroes. */
+	private static Chunk compress(int number, byte[] data, byte[] zeroes, int level) {
+		if (Arrays.mismatch(data, 0, data.length, zeroes, 0, data.length) == -1) return new Chunk(number, null, 0);
+		
+		var crc = new CRC32C();
+		crc.update(data);
+		
+		// Anything that doesn't come out smaller is stored as it is
+		var deflater = new Deflater(level);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			
+			var out = new byte[data.length];
+			int n = 0;
+			while (!deflater.finished() && n < out.length) {
+				n += deflater.deflate(out, n, out.length - n);
+			}
+			
+			var stored = (deflater.finished() && n < data.length) ? Arrays.copyOf(out, n) : data;
+			return new Chunk(number, stored, (int)crc.getValue());
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/** Reads, decompresses and checks a stored chunk. Safe to call from several threads. */
+	private byte[] readChunk(int number) {
+		var entry = entries[number];
+		int rawLength = (int)Math.min(chunkSize, diskSize - (long)number * chunkSize);
+		
+		try {
+			var stored = readFully(entry.offset(), entry.length()).array();
+			var data = stored;
+			
+			if (entry.length() < rawLength) {
+				var inflater = new Inflater();
+				try {
+					inflater.setInput(stored);
+					data = new byte[rawLength];
+					int n = 0;
+					while (!inflater.finished() && n < rawLength) {
+						int r = inflater.inflate(data, n, rawLength - n);
+						if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+						n += r;
+					}
+					if (!inflater.finished() || n != rawLength) throw new DataFormatException("Chunk ended early.");
+				} finally {
+					inflater.end();
+				}
+			}
+			
+			var crc = new CRC32C();
+			crc.update(data);
+			if ((int)crc.getValue() != entry.checksum()) throw new DataFormatException("Checksum mismatch.");
+			
+			return data;
+		} catch (DataFormatException ex) {
+			throw new CLIException("Chunk " + number + " of the archive is corrupted: " + ex.getMessage());
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("Unexpected end of archive file.");
+			}
+		}
+		return buffer.clear();
+	}
+	
+	private static void readFully(DiskImage image, ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			if (image.read(dst, position + dst.position()) == -1) throw new IOException("Disk ended early.");
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining()) {
+			channel.write(src, position + src.position());
+		}
+	}
+	
+	/** Index entry of a stored chunk. */
+	private record Entry(long offset, int length, int checksum) {}
+	
+	/** A chunk on its way in or out of the archive. Stored bytes are null for chunks left out. */
+	private record Chunk(int number, byte[] stored, int checksum) {}
+	
+	/**
+	 * Outcome of archiving or restoring.
+	 *
+	 * @param diskBytes How many bytes of the disk were covered.
+	 * @param chunks How many chunks the covered bytes span.
+	 * @param storedChunks How many of the chunks were stored, and not left out as zeroes.
+	 * @param archiveBytes Size of the archive file.
+	 * @param elapsedNanos Time taken.
+	 */
+	public record Stats(long diskBytes, int chunks, int storedChunks, long archiveBytes, long elapsedNanos) {}
+}
@@ -0,0 +1,166 @@
+package com.andre.devtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Image accessed through memory mappings. The start of the image, up to the
+ * mapping window, is mapped in fixed-size regions on first access. Reads and
+ * writes inside the window don't cost a system call, and small structures can
+ * be parsed straight from the mapping. Anything past the window falls back to
+ * regular channel reads and writes.
+ * 
+ * @author Andre
+ */
+public class MappedImage extends DiskImage {
+	/** Size of each mapped region. */
+	static final int REGION_SIZE = 64 * 1024 * 1024;
+	
+	/** How much of the image can be mapped at most. */
+	static final long MAPPING_WINDOW = 1024L * 1024 * 1024;
+	
+	private final FileChannel channel;
+	private final FileChannel.MapMode mapMode;
+	private final long windowSize;
+	private final MappedByteBuffer[] regions;
+	private final long diskSize;
+	
+	/**
+	 * @param file Image file.
+	 * @param writable Whether the image is opened for writing too.
+	 * @param diskSize Size of the disk stored in the file, or -1 if it spans the whole file.
+	 */
+	public MappedImage(File file, boolean writable, long diskSize) throws IOException {
+		if (writable) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			mapMode = FileChannel.MapMode.READ_WRITE;
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			mapMode = FileChannel.MapMode.READ_ONLY;
+		}
+		
+		this.diskSize = (diskSize == -1) ? channel.size() : diskSize;
+		windowSize = Math.min(this.diskSize, MAPPING_WINDOW);
+		regions = new MappedByteBuffer[(int)((windowSize + REGION_SIZE - 1) / REGION_SIZE)];
+	}
+	
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		// Don't let reads reach into a VHD footer
+		if (position + dst.remaining() > diskSize) {
+			if (position >= diskSize) return -1;
+			
+			var slice = dst.slice(dst.position(), (int)(diskSize - position));
+			int n = read(slice, position);
+			if (n > 0) dst.position(dst.position() + n);
+			return n;
+		}
+		
+		if (position >= windowSize) return channel.read(dst, position);
+		
+		// Copy from as many regions as needed, stopping at the window end
+		int total = 0;
+		while (dst.hasRemaining() && position < windowSize) {
+			var region = getRegion(position);
+			int index = (int)(position % REGION_SIZE);
+			int len = Math.min(dst.remaining(), region.capacity() - index);
+			
+			dst.put(dst.position(), region, index, len);
+			dst.position(dst.position() + len);
+			position += len;
+			total += len;
+		}
+		
+		// The request continued past the window
+		if (dst.hasRemaining()) {
+			int r = channel.read(dst, position);
+			if (r > 0) total += r;
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		// Don't let writes reach into a VHD footer either
+		if (position + src.remaining() > diskSize) throw new IOException("Write past the end of the disk.");
+		
+		if (position >= windowSize || mapMode == FileChannel.MapMode.READ_ONLY) {
+			return channel.write(src, position);
+		}
+		
+		int total = 0;
+		while (src.hasRemaining() && position < windowSize) {
+			var region = getRegion(position);
+			int index = (int)(position % REGION_SIZE);
+			int len = Math.min(src.remaining(), region.capacity() - index);
+			
+			region.put(index, src, src.position(), len);
+			src.position(src.position() + len);
+			position += len;
+			total += len;
+		}
+		
+		if (src.hasRemaining()) {
+			total += channel.write(src, position);
+		}
+		return total;
+	}
+	
+	/**
+	 * Returns a slice of the mapping over the given range. Only ranges that lie
+	 * inside a single region can be sliced.
+	 */
+	@Override
+	public ByteBuffer map(long position, int length) {
+		if (position + length > windowSize) return null;
+		
+		int index = (int)(position % REGION_SIZE);
+		if (index + length > REGION_SIZE) return null;
+		
+		try {
+			return getRegion(position).slice(index, length);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	@Override
+	public long size() {
+		return diskSize;
+	}
+	
+	@Override
+	public FileChannel getFlatChannel() {
+		return channel;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mapMode == FileChannel.MapMode.READ_WRITE) {
+			for (var region : regions) {
+				if (region != null) region.force();
+			}
+		}
+		
+		channel.close();
+	}
+	
+	private MappedByteBuffer getRegion(long position) throws IOException {
+		int i = (int)(position / REGION_SIZE);
+		if (regions[i] == null) {
+			long start = (long)i * REGION_SIZE;
+			long length = Math.min(REGION_SIZE, windowSize - start);
+			regions[i] = channel.map(mapMode, start, length);
+		}
+		return regions[i];
+	}
+}
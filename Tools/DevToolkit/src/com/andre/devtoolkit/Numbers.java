@@ -15,6 +15,24 @@ public class Numbers {
 		return sb.toString();
 	}
 	
+	/**
+	 * Formats a byte count into a short human readable string, using the
+	 * largest binary unit that keeps the value above 1.
+	 */
+	public static String toSizeString(long bytes) {
+		if (bytes < 1024) return bytes + " B";
+		
+		String[] units = {"KiB", "MiB", "GiB", "TiB"};
+		double value = bytes;
+		int unit = -1;
+		while (value >= 1024 && unit < units.length - 1) {
+			value /= 1024;
+			unit++;
+		}
+		
+		return String.format("%.2f %s", value, units[unit]);
+	}
+	
   public static int byteArrayToInt(byte[] bytes, int offset) {
         return  ((bytes[offset + 3] & 0xFF) << 24) |
                 ((bytes[offset + 2] & 0xFF) << 16) |
@@ -0,0 +1,385 @@
+package com.andre.devtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Copy-on-write overlay over another image. The base image is only read, and
+ * every write lands in a delta file next to it, named after the base with an
+ * {@code .overlay} extension. The delta keeps a bitmap with one bit per
+ * sector of the disk: sectors marked in it are read from the delta, and every
+ * other sector from the base.
+ * <br><br>
+ * The delta file is laid out as a header sector, the sector bitmap, and then
+ * the sectors of the disk, each at its own disk offset. Sectors never written
+ * are left as holes, so the delta only takes the space of what was written.
+ * Discarding it truncates the file, which takes the same time no matter how
+ * large the disk is.
+ * <br><br>
+ * The header records the size and modification time of the base file. If the
+ * base is changed behind the overlay's back, the overlay refuses to open.
+ *
+ * @author Andre
+ */
+public class OverlayImage extends DiskImage {
+	public static final String EXTENSION = ".overlay";
+	
+	private static final byte[] MAGIC = "DTKOVRLY".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	
+	/** Sectors tracked by the overlay. Disk sectors are multiples of them, so they're always covered whole. */
+	private static final int SECTOR_SIZE = 512;
+	
+	// Header fields
+	private static final int HEADER_SIZE = SECTOR_SIZE;
+	private static final int HEADER_VERSION = 0x08;
+	private static final int HEADER_SECTOR_SIZE = 0x0C;
+	private static final int HEADER_DISK_SIZE = 0x10;
+	private static final int HEADER_BASE_LENGTH = 0x18;
+	private static final int HEADER_BASE_MODIFIED = 0x20;
+	private static final int HEADER_DATA_OFFSET = 0x28;
+	
+	private final DiskImage base;
+	private final FileChannel channel;
+	private final long diskSize;
+	private final long dataOffset;
+	
+	// One bit per sector, set if the sector is stored in the delta
+	private final long[] bitmap;
+	
+	/**
+	 * @param base The base image. Only read from, and closed along with the
+	 * overlay, or right away if the overlay can't be opened.
+	 * @param baseFile File of the base image.
+	 * @param writable Whether the delta is opened for writing too.
+	 */
+	public OverlayImage(DiskImage base, File baseFile, boolean writable) throws IOException {
+		var file = getOverlayFile(baseFile);
+		this.base = base;
+		
+		try {
+			if (writable) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			} else {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			}
+		} catch (IOException ex) {
+			base.close();
+			throw ex;
+		}
+		
+		try {
+			var header = readFully(0, HEADER_SIZE);
+			if (!Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+				throw new CLIException("'" + file + "' is not an overlay file.");
+			}
+			if (header.getInt(HEADER_VERSION) != VERSION || header.getInt(HEADER_SECTOR_SIZE) != SECTOR_SIZE) {
+				throw new CLIException("Overlay '" + file + "' has an unsupported version.");
+			}
+			
+			diskSize = header.getLong(HEADER_DISK_SIZE);
+			dataOffset = header.getLong(HEADER_DATA_OFFSET);
+			if (diskSize != base.size()
+					|| header.getLong(HEADER_BASE_LENGTH) != baseFile.length()
+					|| header.getLong(HEADER_BASE_MODIFIED) != baseFile.lastModified()) {
+				throw new CLIException("'" + baseFile + "' was changed after its overlay was created. Use overlay-discard to start a new one.");
+			}
+			
+			// Load the whole bitmap. A 1 TiB disk takes a 256 MiB bitmap.
+			bitmap = new long[getBitmapWords(diskSize)];
+			readFully(HEADER_SIZE, bitmap.length * 8).asLongBuffer().get(bitmap);
+		} catch (IOException | RuntimeException ex) {
+			try (base) {
+				channel.close();
+			}
+			throw ex;
+		}
+	}
+	
+	/** The delta file of an image, whether it exists or not. */
+	public static File getOverlayFile(File baseFile) {
+		return new File(baseFile.getPath() + EXTENSION);
+	}
+	
+	/** Whether an image has an overlay in use. */
+	public static boolean hasOverlay(File baseFile) {
+		return getOverlayFile(baseFile).exists();
+	}
+	
+	/**
+	 * Creates an empty overlay over an image. From then on, every write to the
+	 * image goes into the overlay.
+	 *
+	 * @param baseFile Image file.
+	 */
+	public static void create(File baseFile) {
+		if (hasOverlay(baseFile)) throw new CLIException("'" + baseFile + "' already has an overlay.");
+		
+		reset(baseFile);
+	}
+	
+	/**
+	 * Drops everything written to the overlay of an image, leaving it empty.
+	 *
+	 * @param baseFile Image file.
+	 */
+	public static void discard(File baseFile) {
+		if (!hasOverlay(baseFile)) throw new CLIException("'" + baseFile + "' has no overlay.");
+		
+		reset(baseFile);
+	}
+	
+	/**
+	 * Writes every sector stored in the overlay of an image back into the image
+	 * itself, and then empties the overlay.
+	 *
+	 * @param baseFile Image file.
+	 * @return How many bytes were written into the image.
+	 */
+	public static long commit(File baseFile) {
+		if (!hasOverlay(baseFile)) throw new CLIException("'" + baseFile + "' has no overlay.");
+		
+		long written = 0;
+		var base = DiskImage.openImage(baseFile, false, true);
+		try (var overlay = new OverlayImage(base, baseFile, false)) {
+			// Copy each run of stored sectors in one transfer
+			long sectors = (overlay.diskSize + SECTOR_SIZE - 1) / SECTOR_SIZE;
+			long lba = overlay.nextStored(0, sectors);
+			while (lba < sectors) {
+				long runEnd = overlay.nextFree(lba, sectors);
+				long offset = lba * SECTOR_SIZE;
+				long length = Math.min(runEnd * SECTOR_SIZE, overlay.diskSize) - offset;
+				
+				written += Burner.transfer(overlay.channel, overlay.dataOffset + offset, base, offset, length);
+				lba = overlay.nextStored(runEnd, sectors);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		
+		// The base changed, so the overlay must be stamped again
+		reset(baseFile);
+		return written;
+	}
+	
+	/**
+	 * Writes the disk of an image, as seen through its overlay, into a new
+	 * image file. Neither the image nor the overlay are changed.
+	 *
+	 * @param baseFile Image file.
+	 * @param output New image file. Overwritten if it already exists.
+	 * @param format Format of the new image.
+	 * @return How many bytes were written into the new image.
+	 */
+	public static long flatten(File baseFile, File output, DiskImage.Format format) {
+		try (var source = DiskImage.open(baseFile, false)) {
+			long diskSize = source.size();
+			DiskImage.create(output, diskSize, format);
+			
+			// The new image starts zeroed, so zeroes don't need to be copied
+			try (var target = DiskImage.openImage(output, false, true)) {
+				return Burner.copyNonZero(source, target, diskSize);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** Writes an empty delta file, stamped with the current state of the base. */
+	private static void reset(File baseFile) {
+		long diskSize;
+		try (var base = DiskImage.openImage(baseFile, false, false)) {
+			diskSize = base.size();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		
+		long bitmapSize = getBitmapWords(diskSize) * 8L;
+		long dataOffset = (HEADER_SIZE + bitmapSize + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE;
+		
+		var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(HEADER_VERSION, VERSION);
+		header.putInt(HEADER_SECTOR_SIZE, SECTOR_SIZE);
+		header.putLong(HEADER_DISK_SIZE, diskSize);
+		header.putLong(HEADER_BASE_LENGTH, baseFile.length());
+		header.putLong(HEADER_BASE_MODIFIED, baseFile.lastModified());
+		header.putLong(HEADER_DATA_OFFSET, dataOffset);
+		
+		// Truncating drops the old sectors at once. The bitmap is left as a zeroed hole.
+		try (var raf = new RandomAccessFile(getOverlayFile(baseFile), "rw")) {
+			raf.setLength(0);
+			raf.write(header.array());
+			raf.setLength(dataOffset);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position >= diskSize) return -1;
+		
+		int total = 0;
+		while (dst.hasRemaining() && position < diskSize) {
+			// Find the run of sectors stored in the same place as the current one
+			long lba = position / SECTOR_SIZE;
+			long lastLBA = (position + Math.min(dst.remaining(), diskSize - position) - 1) / SECTOR_SIZE;
+			boolean stored = isStored(lba);
+			long runEnd = stored ? nextFree(lba, lastLBA + 1) : nextStored(lba, lastLBA + 1);
+			
+			int len = (int)Math.min(Math.min(dst.remaining(), runEnd * SECTOR_SIZE - position), diskSize - position);
+			var slice = dst.slice(dst.position(), len);
+			while (slice.hasRemaining()) {
+				int r = stored ? channel.read(slice, dataOffset + position + slice.position()) : base.read(slice, position + slice.position());
+				
+				// Stored sectors past the end of the delta file were never written
+				if (r == -1) {
+					while (slice.hasRemaining()) slice.put((byte)0);
+				}
+			}
+			dst.position(dst.position() + len);
+			
+			position += len;
+			total += len;
+		}
+		return total;
+	}
+	
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		int len = src.remaining();
+		if (position + len > diskSize) throw new IOException("Write past the end of the disk.");
+		if (len == 0) return 0;
+		
+		long firstLBA = position / SECTOR_SIZE;
+		long lastLBA = (position + len - 1) / SECTOR_SIZE;
+		
+		// Sectors only partially written must be brought over from the base first
+		copyUp(firstLBA);
+		if (lastLBA != firstLBA) copyUp(lastLBA);
+		
+		// The data goes in before the bitmap marks it, so an interrupted write never exposes garbage
+		var slice = src.slice();
+		while (slice.hasRemaining()) {
+			channel.write(slice, dataOffset + position + slice.position());
+		}
+		src.position(src.position() + len);
+		
+		markStored(firstLBA, lastLBA);
+		return len;
+	}
+	
+	@Override
+	public long size() {
+		return diskSize;
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try (base) {
+			channel.close();
+		}
+	}
+	
+	/** How many sectors are stored in the delta. */
+	public long getStoredSectors() {
+		long count = 0;
+		for (long word : bitmap) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+	
+	/** Copies a sector of the base into the delta, unless it's already there. */
+	private void copyUp(long lba) throws IOException {
+		if (isStored(lba)) return;
+		
+		var sector = ByteBuffer.allocate(SECTOR_SIZE);
+		long offset = lba * SECTOR_SIZE;
+		while (sector.hasRemaining()) {
+			if (base.read(sector, offset + sector.position()) == -1) break;
+		}
+		
+		sector.clear();
+		while (sector.hasRemaining()) {
+			channel.write(sector, dataOffset + offset + sector.position());
+		}
+	}
+	
+	/** Sets the bits of a range of sectors and writes the words holding them back to the file. */
+	private void markStored(long firstLBA, long lastLBA) throws IOException {
+		int firstWord = (int)(firstLBA >>> 6);
+		int lastWord = (int)(lastLBA >>> 6);
+		
+		boolean changed = false;
+		for (int w = firstWord; w <= lastWord; w++) {
+			long from = (w == firstWord) ? firstLBA & 63 : 0;
+			long to = (w == lastWord) ? lastLBA & 63 : 63;
+			long mask = (-1L >>> (63 - to)) & (-1L << from);
+			
+			if ((bitmap[w] & mask) != mask) changed = true;
+			bitmap[w] |= mask;
+		}
+		if (!changed) return;
+		
+		var words = ByteBuffer.allocate((lastWord - firstWord + 1) * 8).order(ByteOrder.LITTLE_ENDIAN);
+		words.asLongBuffer().put(bitmap, firstWord, lastWord - firstWord + 1);
+		while (words.hasRemaining()) {
+			channel.write(words, HEADER_SIZE + firstWord * 8L + words.position());
+		}
+	}
+	
+	private boolean isStored(long lba) {
+		return (bitmap[(int)(lba >>> 6)] & (1L << lba)) != 0;
+	}
+	
+	/** First sector from lba on that is stored in the delta, or end if none is. */
+	private long nextStored(long lba, long end) {
+		while (lba < end) {
+			long word = bitmap[(int)(lba >>> 6)] & (-1L << lba);
+			if (word != 0) return Math.min(end, (lba & ~63L) + Long.numberOfTrailingZeros(word));
+			lba = (lba | 63) + 1;
+		}
+		return end;
+	}
+	
+	/** First sector from lba on that is not stored in the delta, or end if all are. */
+	private long nextFree(long lba, long end) {
+		while (lba < end) {
+			long word = ~bitmap[(int)(lba >>> 6)] & (-1L << lba);
+			if (word != 0) return Math.min(end, (lba & ~63L) + Long.numberOfTrailingZeros(word));
+			lba = (lba | 63) + 1;
+		}
+		return end;
+	}
+	
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				// The bitmap may still be a hole past the end of the file
+				if (position < HEADER_SIZE) throw new IOException("Unexpected end of overlay file.");
+				break;
+			}
+		}
+		return buffer.clear();
+	}
+	
+	private static int getBitmapWords(long diskSize) {
+		long sectors = (diskSize + SECTOR_SIZE - 1) / SECTOR_SIZE;
+		return (int)((sectors + 63) / 64);
+	}
+}
@@ -1,42 +1,50 @@
 package com.andre.devtoolkit;
 
-import java.io.File;
+import java.nio.ByteBuffer;
 
 /**
  *
  * @author Andre
  */
 public class Partition {
-	private final File disk;
+	private final Disk disk;
 	private final int index;
 	private PartitionType type;
 	private int typeId;
 	private long firstSector;
 	private int sizeInSectors;
 	private boolean isLogicalPartition;
+	private long bootRecordSector;
 	
-	public Partition(int id, File disk) {
+	public Partition(int id, Disk disk) {
 		this.index = id;
 		this.disk = disk;
 	}
 
-	public void fromMBR(byte[] entry, int offset) {
-		this.typeId = entry[offset + 0x04] & 0xFF;
+	/**
+	 * Reads a partition table entry.
+	 * 
+	 * @param entry Little-endian buffer containing the entry.
+	 * @param offset Offset of the entry in the buffer.
+	 */
+	public void fromMBR(ByteBuffer entry, int offset) {
+		this.typeId = entry.get(offset + 0x04) & 0xFF;
 		type = PartitionType.fromByteId(typeId);
 		if (this.typeId == 0) return;
 		
-		int sectors = Numbers.byteArrayToInt(entry, offset + 0x0C);
+		int sectors = entry.getInt(offset + 0x0C);
 		this.sizeInSectors = sectors;
 		
-		int start = Numbers.byteArrayToInt(entry, offset + 0x08);
-		this.firstSector = start;
+		int start = entry.getInt(offset + 0x08);
+		this.firstSector = Integer.toUnsignedLong(start);
 	}
 	
-	public void fromEBR(long ebrLBA, byte[] entry, int offset) {
+	public void fromEBR(long ebrLBA, ByteBuffer entry, int offset) {
 		fromMBR(entry, offset);
 		if (this.typeId == 0) return;
 		
 		this.isLogicalPartition = true;
+		this.bootRecordSector = ebrLBA;
 		this.firstSector += ebrLBA;
 	}
 	
@@ -44,14 +52,32 @@ public class Partition {
 		return index;
 	}
 	
-	public File getDisk() {
+	public Disk getDisk() {
 		return disk;
 	}
 	
+	/** Sector of the boot record holding the entry of this partition. 0 for the MBR. */
+	public long getBootRecordSector() {
+		return bootRecordSector;
+	}
+	
 	public long getFirstSector() {
 		return firstSector;
 	}
 	
+	public long getSizeInSectors() {
+		return Integer.toUnsignedLong(sizeInSectors);
+	}
+	
+	/** Byte offset of the partition in the disk. */
+	public long getOffset() {
+		return firstSector * disk.getSectorSize();
+	}
+	
+	public long getSizeInBytes() {
+		return getSizeInSectors() * disk.getSectorSize();
+	}
+	
 	public PartitionType getType() {
 		return type;
 	}
@@ -69,17 +95,17 @@ public class Partition {
 	}
 	
 	public String getSizeString() {
-		int sizeInKB = sizeInSectors / 2;
+		long sizeInKB = getSizeInBytes() / 1024;
 		if (sizeInKB < 8192) {
 			return sizeInKB + " KiB";
 		}
 		
-		int sizeInMB = sizeInKB / 1024;
+		long sizeInMB = sizeInKB / 1024;
 		if (sizeInMB < 8192) {
 			return sizeInMB + " MiB";
 		}
 		
-		int sizeInGB = sizeInMB / 1024;
+		long sizeInGB = sizeInMB / 1024;
 		return sizeInGB + " GiB";
 	}
 	
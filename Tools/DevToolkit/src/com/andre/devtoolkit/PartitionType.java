@@ -9,6 +9,12 @@ import java.util.Arrays;
 public enum PartitionType {
 	UNKNOWN(-1, "Unknown"),
 	EMPTY(0, "Empty"),
+	FAT_12(0x01, "FAT 12"),
+	FAT_16_SMALL(0x04, "FAT 16 (< 32 MiB)"),
+	EXTENDED(0x05, "Extended"),
+	FAT_16(0x06, "FAT 16"),
+	FAT_32(0x0B, "FAT 32"),
+	FAT_32_LBA(0x0C, "FAT 32 (LBA)"),
 	FAT_1X_LBA(0x0E, "FAT 1X (LBA)"),
 	EXTENDED_LBA(0x0F, "Extended (LBA)");
 	
@@ -30,6 +36,6 @@ public enum PartitionType {
 	}
 	
 	public boolean isExtended() {
-		return this == EXTENDED_LBA;
+		return this == EXTENDED || this == EXTENDED_LBA;
 	}
 } 
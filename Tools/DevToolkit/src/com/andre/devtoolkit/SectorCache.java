@@ -0,0 +1,73 @@
+package com.andre.devtoolkit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of disk sectors, indexed by their LBA. Keeps count
+ * of how many lookups were served from memory and how many missed.
+ * 
+ * @author Andre
+ */
+public class SectorCache {
+	private final LinkedHashMap<Long, byte[]> sectors;
+	private long hits;
+	private long misses;
+	
+	/**
+	 * @param capacity How many bytes of sectors to keep. Every sector cached is
+	 * expected to be of the same size.
+	 */
+	public SectorCache(int capacity) {
+		this.sectors = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return (long)size() * eldest.getValue().length > capacity;
+			}
+		};
+	}
+	
+	/** Returns the cached sector or null, counting the lookup as a hit or miss. */
+	public byte[] get(long lba) {
+		var sector = sectors.get(lba);
+		if (sector != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return sector;
+	}
+	
+	public void put(long lba, byte[] sector) {
+		sectors.put(lba, sector);
+	}
+	
+	/** Drops every cached sector that overlaps the given sector range. */
+	public void invalidate(long firstLBA, long count) {
+		if (count > sectors.size()) {
+			sectors.keySet().removeIf((lba) -> lba >= firstLBA && lba < firstLBA + count);
+			return;
+		}
+		
+		for (long lba = firstLBA; lba < firstLBA + count; lba++) {
+			sectors.remove(lba);
+		}
+	}
+	
+	public void clear() {
+		sectors.clear();
+	}
+	
+	public long getHits() {
+		return hits;
+	}
+	
+	public long getMisses() {
+		return misses;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Sector cache: %d hits, %d misses", hits, misses);
+	}
+}
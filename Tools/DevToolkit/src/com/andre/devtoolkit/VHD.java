@@ -0,0 +1,189 @@
+package com.andre.devtoolkit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Constants and helpers for the Microsoft Virtual Hard Disk format. Every
+ * VHD ends with a 512 byte footer describing the disk. Fixed disks store the
+ * disk bytes as-is before the footer, while dynamic disks have a header and a
+ * block allocation table pointing at the blocks actually stored in the file.
+ * All fields are big-endian.
+ * 
+ * @author Andre
+ */
+public class VHD {
+	static final int FOOTER_SIZE = 512;
+	
+	/** VHD structures always count in 512 byte sectors, whatever the sector size of the disk inside. */
+	static final int SECTOR_SIZE = 512;
+	static final int DYNAMIC_HEADER_SIZE = 1024;
+	
+	static final int DISK_TYPE_FIXED = 2;
+	static final int DISK_TYPE_DYNAMIC = 3;
+	static final int DISK_TYPE_DIFFERENCING = 4;
+	
+	/** Block allocation table entry of a block not stored in the file. */
+	static final int UNALLOCATED = 0xFFFFFFFF;
+	
+	/** Block size used for new dynamic disks, the same used by Windows. */
+	static final int DEFAULT_BLOCK_SIZE = 2 * 1024 * 1024;
+	
+	/** Offset of the dynamic header in new dynamic disks, right after the footer copy. */
+	static final int DYNAMIC_HEADER_OFFSET = FOOTER_SIZE;
+	
+	/** Offset of the block allocation table in new dynamic disks, right after the header. */
+	static final int TABLE_OFFSET = DYNAMIC_HEADER_OFFSET + DYNAMIC_HEADER_SIZE;
+	
+	static final byte[] FOOTER_COOKIE = "conectix".getBytes();
+	static final byte[] DYNAMIC_COOKIE = "cxsparse".getBytes();
+	
+	// Offsets of the footer fields
+	static final int FOOTER_FEATURES = 0x08;
+	static final int FOOTER_FORMAT_VERSION = 0x0C;
+	static final int FOOTER_DATA_OFFSET = 0x10;
+	static final int FOOTER_TIMESTAMP = 0x18;
+	static final int FOOTER_CREATOR_APP = 0x1C;
+	static final int FOOTER_CREATOR_VERSION = 0x20;
+	static final int FOOTER_CREATOR_HOST = 0x24;
+	static final int FOOTER_ORIGINAL_SIZE = 0x28;
+	static final int FOOTER_CURRENT_SIZE = 0x30;
+	static final int FOOTER_GEOMETRY = 0x38;
+	static final int FOOTER_DISK_TYPE = 0x3C;
+	static final int FOOTER_CHECKSUM = 0x40;
+	static final int FOOTER_UNIQUE_ID = 0x44;
+	
+	// Offsets of the dynamic header fields
+	static final int HEADER_DATA_OFFSET = 0x08;
+	static final int HEADER_TABLE_OFFSET = 0x10;
+	static final int HEADER_VERSION = 0x18;
+	static final int HEADER_MAX_TABLE_ENTRIES = 0x1C;
+	static final int HEADER_BLOCK_SIZE = 0x20;
+	static final int HEADER_CHECKSUM = 0x24;
+	
+	/**
+	 * Reads the footer at the end of a file.
+	 * 
+	 * @return The footer, or null if the file isn't a VHD.
+	 */
+	static ByteBuffer readFooter(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < FOOTER_SIZE) return null;
+		
+		var footer = ByteBuffer.allocate(FOOTER_SIZE);
+		while (footer.hasRemaining()) {
+			if (channel.read(footer, size - FOOTER_SIZE + footer.position()) == -1) return null;
+		}
+		
+		if (!Arrays.equals(footer.array(), 0, 8, FOOTER_COOKIE, 0, 8)) return null;
+		return footer.clear();
+	}
+	
+	/**
+	 * Computes the checksum of a footer or header: the one's complement of the
+	 * sum of all bytes, with the checksum field itself left out.
+	 */
+	static int checksum(byte[] bytes, int checksumOffset) {
+		int sum = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (i >= checksumOffset && i < checksumOffset + 4) continue;
+			sum += bytes[i] & 0xFF;
+		}
+		return ~sum;
+	}
+	
+	/**
+	 * Builds the footer of a new disk.
+	 * 
+	 * @param diskSize Size of the virtual disk in bytes.
+	 * @param diskType {@link #DISK_TYPE_FIXED} or {@link #DISK_TYPE_DYNAMIC}.
+	 * @return The footer bytes, with its checksum filled in.
+	 */
+	static byte[] createFooter(long diskSize, int diskType) {
+		var footer = ByteBuffer.allocate(FOOTER_SIZE);
+		footer.put(0, FOOTER_COOKIE);
+		footer.putInt(FOOTER_FEATURES, 0x2);
+		footer.putInt(FOOTER_FORMAT_VERSION, 0x00010000);
+		footer.putLong(FOOTER_DATA_OFFSET, diskType == DISK_TYPE_DYNAMIC ? DYNAMIC_HEADER_OFFSET : -1);
+		footer.putInt(FOOTER_TIMESTAMP, timestamp());
+		footer.put(FOOTER_CREATOR_APP, "dtk ".getBytes());
+		footer.putInt(FOOTER_CREATOR_VERSION, 0x00010000);
+		footer.put(FOOTER_CREATOR_HOST, "Wi2k".getBytes());
+		footer.putLong(FOOTER_ORIGINAL_SIZE, diskSize);
+		footer.putLong(FOOTER_CURRENT_SIZE, diskSize);
+		footer.putInt(FOOTER_GEOMETRY, geometry(diskSize));
+		footer.putInt(FOOTER_DISK_TYPE, diskType);
+		
+		var id = UUID.randomUUID();
+		footer.putLong(FOOTER_UNIQUE_ID, id.getMostSignificantBits());
+		footer.putLong(FOOTER_UNIQUE_ID + 8, id.getLeastSignificantBits());
+		
+		footer.putInt(FOOTER_CHECKSUM, checksum(footer.array(), FOOTER_CHECKSUM));
+		return footer.array();
+	}
+	
+	/**
+	 * Builds the header of a new dynamic disk, with its block allocation table
+	 * at {@link #TABLE_OFFSET}.
+	 * 
+	 * @param tableEntries How many blocks the disk has.
+	 * @param blockSize Size of each block in bytes.
+	 */
+	static byte[] createDynamicHeader(int tableEntries, int blockSize) {
+		var header = ByteBuffer.allocate(DYNAMIC_HEADER_SIZE);
+		header.put(0, DYNAMIC_COOKIE);
+		header.putLong(HEADER_DATA_OFFSET, -1);
+		header.putLong(HEADER_TABLE_OFFSET, TABLE_OFFSET);
+		header.putInt(HEADER_VERSION, 0x00010000);
+		header.putInt(HEADER_MAX_TABLE_ENTRIES, tableEntries);
+		header.putInt(HEADER_BLOCK_SIZE, blockSize);
+		header.putInt(HEADER_CHECKSUM, checksum(header.array(), HEADER_CHECKSUM));
+		return header.array();
+	}
+	
+	/** Seconds since January 1st 2000, as stored in the footer. */
+	private static int timestamp() {
+		return (int)(Instant.now().getEpochSecond() - 946684800L);
+	}
+	
+	/**
+	 * Computes the CHS geometry stored in the footer, following the algorithm
+	 * given in the VHD specification.
+	 * 
+	 * @return Cylinders, heads and sectors per track packed as stored in the footer.
+	 */
+	private static int geometry(long diskSize) {
+		long totalSectors = Math.min(diskSize / SECTOR_SIZE, 65535L * 16 * 255);
+		long cylinderTimesHeads;
+		int heads;
+		int sectorsPerTrack;
+		
+		if (totalSectors >= 65535L * 16 * 63) {
+			sectorsPerTrack = 255;
+			heads = 16;
+			cylinderTimesHeads = totalSectors / sectorsPerTrack;
+		} else {
+			sectorsPerTrack = 17;
+			cylinderTimesHeads = totalSectors / sectorsPerTrack;
+			
+			heads = (int)Math.max((cylinderTimesHeads + 1023) / 1024, 4);
+			if (cylinderTimesHeads >= heads * 1024L || heads > 16) {
+				sectorsPerTrack = 31;
+				heads = 16;
+				cylinderTimesHeads = totalSectors / sectorsPerTrack;
+			}
+			if (cylinderTimesHeads >= heads * 1024L) {
+				sectorsPerTrack = 63;
+				heads = 16;
+				cylinderTimesHeads = totalSectors / sectorsPerTrack;
+			}
+		}
+		
+		int cylinders = (int)(cylinderTimesHeads / heads);
+		return (cylinders << 16) | (heads << 8) | sectorsPerTrack;
+	}
+}
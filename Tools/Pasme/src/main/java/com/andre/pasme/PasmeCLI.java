@@ -1,13 +1,22 @@
 package com.andre.pasme;
 
+import com.andre.pasme.transpiler.DependencyFile;
+import com.andre.pasme.transpiler.IncludeCache;
+import com.andre.pasme.transpiler.TranspileCache;
 import com.andre.pasme.transpiler.Transpiler;
 import com.andre.pasme.transpiler.TranspilerException;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * CLI interface of Pasme. It must be instantiated and have its run() method
@@ -32,7 +41,7 @@ public class PasmeCLI {
 			System.out.println("Nothing to do here. To view a list of possible commands, run 'pasme help'.");
 			return true;
 		}
-
+		
 		return interpretOrder(args);
 	}
 	
@@ -53,21 +62,34 @@ public class PasmeCLI {
 		return true;
 	}
 	
-	/** Invokes the Pasme transpiler on an input file and saves
-	 * the resulting assembly on another file.
+	/** Invokes the Pasme transpiler on one or many input files and saves
+	 * the resulting assembly on other files. Many inputs are transpiled at
+	 * the same time, sharing the files they include. See {@link IncludeCache}.
 	 * <br><br>
 	 * Switches: <br>
-	 * -to: Specifies where to save the .asm file
-	 * -I: Specifies an include directory
-	 * -D: Defines a preprocessor string 
+	 * -to: Specifies where to save the .asm file <br>
+	 * -out-dir: Specifies a folder to save the files of many inputs <br>
+	 * -list: Specifies a file listing inputs, one per line <br>
+	 * -threads: How many inputs to transpile at the same time <br>
+	 * -I: Specifies an include directory <br>
+	 * -D: Defines a preprocessor string <br>
+	 * -no-cache: Transpiles even if nothing changed since the last time. See {@link TranspileCache}. <br>
+	 * -MD: Specifies where to save a Make dependency file. See {@link DependencyFile}. <br>
+	 * -MT: Specifies the target of the dependency file rule, the output by default.
 	 * 
 	 * @param orderLine A transpile order followed by its switches and arguments.
 	 **/
 	boolean transpileOrder(String[] orderLine) {
-		String input = null;
+		List<String> inputs = new ArrayList<>();
 		String output = null;
+		String outputDir = null;
+		String listFile = null;
+		int threads = Runtime.getRuntime().availableProcessors();
 		List<String> includes = new ArrayList<>();
 		Map<String, String> defines = new HashMap<>();
+		boolean useCache = true;
+		String depFile = null;
+		String depTarget = null;
 		
 		// Interpret order arguments
 		for (int i = 1; i < orderLine.length; i++) {
@@ -76,7 +98,13 @@ public class PasmeCLI {
 			if (arg.startsWith("-")) {
 				switch (arg) {
 					case "-to" -> output = orderLine[++i];
+					case "-out-dir" -> outputDir = orderLine[++i];
+					case "-list" -> listFile = orderLine[++i];
+					case "-threads" -> threads = parseThreads(orderLine[++i]);
 					case "-I" -> includes.add(orderLine[++i]);
+					case "-no-cache" -> useCache = false;
+					case "-MD" -> depFile = orderLine[++i];
+					case "-MT" -> depTarget = orderLine[++i];
 					case "-D" -> {
 						// Get define string from the order 
 						var defineExpr = orderLine[++i];
@@ -90,41 +118,146 @@ public class PasmeCLI {
 						} else {
 							defines.put(defineExpr, "");
 						}
-						
+					
 					}
 				}
 			} else {
-				if (input != null) {
-					throw new CLIException("Argument " + arg + " specifies an input but an input was already provided before.");
-				}
-				
-				input = arg;
+				inputs.add(arg);
 			}
 		}
 		
-		if (input == null) throw new CLIException("No input was specified!");
-		if (output == null) throw new CLIException("No output was specified! Use the -to switch do so.");
+		if (listFile != null) inputs.addAll(readInputList(listFile));
 		
-		System.out.println("Transpiling '" + input + "' to '" + output + "'");
+		if (inputs.isEmpty()) throw new CLIException("No input was specified!");
+		
+		// A single input goes to the file specified with -to
+		if (outputDir == null) {
+			if (inputs.size() > 1) throw new CLIException("Many inputs were specified. Use the -out-dir switch to choose where to save them.");
+			if (output == null) throw new CLIException("No output was specified! Use the -to switch do so.");
+			
+			var dependencies = (depFile == null) ? null : new DependencyFile(Path.of(depFile), (depTarget == null) ? output : depTarget);
+			return transpileFile(new File(inputs.get(0)), new File(output), includes, defines, useCache, null, dependencies);
+		}
+		
+		if (output != null) throw new CLIException("The -to switch can't be used along with -out-dir.");
+		if (depFile != null || depTarget != null) throw new CLIException("The -MD and -MT switches can only be used with a single input.");
+		
+		// Each output is named after its input
+		var outputs = new LinkedHashMap<File, File>();
+		var names = new HashMap<String, String>();
+		for (var input : inputs) {
+			var name = new File(input).getName();
+			int dot = name.lastIndexOf('.');
+			if (dot > 0) name = name.substring(0, dot);
+			name += ".nasm";
+			
+			var other = names.putIfAbsent(name, input);
+			if (other != null) {
+				throw new CLIException("Inputs '" + other + "' and '" + input + "' would both be saved as '" + name + "'.");
+			}
+			outputs.put(new File(input), new File(outputDir, name));
+		}
+		
+		new File(outputDir).mkdirs();
+		
+		var includeCache = new IncludeCache();
+		var pool = new ForkJoinPool(Math.min(threads, outputs.size()));
+		long startTime = System.nanoTime();
+		
+		// One transpiler per input, as they keep state between lines
+		boolean cached = useCache;
+		var tasks = new ArrayList<ForkJoinTask<Boolean>>();
+		for (var entry : outputs.entrySet()) {
+			tasks.add(pool.submit(() -> transpileFile(entry.getKey(), entry.getValue(), includes, defines, cached, includeCache, null)));
+		}
+		
+		int failures = 0;
+		try {
+			for (var task : tasks) {
+				if (!task.join()) failures++;
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		long time = (System.nanoTime() - startTime) / 1000000;
+		System.out.println("Finished " + outputs.size() + " files in " + time + " ms, " + includeCache.size() + " included files were read.");
+		
+		if (failures != 0) {
+			System.err.println("-- " + failures + " of " + outputs.size() + " files failed to transpile! --");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Transpiles an input file, unless the cache says its output is up to date.
+	 * 
+	 * @param includeCache Included files shared with other inputs, or null.
+	 * @param dependencies Where to save the Make dependencies, or null.
+	 * @return Whether the input was transpiled without errors.
+	 */
+	boolean transpileFile(File inputFile, File outputFile, List<String> includes, Map<String, String> defines, boolean useCache, IncludeCache includeCache, DependencyFile dependencies) {
+		var input = inputFile.getPath();
+		var output = outputFile.getPath();
 		
 		var tr = new Transpiler();
 		tr.setIncludePaths(includes);
 		tr.setDefines(defines);
+		tr.setIncludeCache(includeCache);
+		
+		var cache = new TranspileCache(outputFile);
+		if (useCache && cache.isUpToDate(tr, inputFile)) {
+			System.out.println("'" + output + "' is up to date.");
+			
+			// The dependency file might have been deleted since
+			if (dependencies != null) dependencies.write(tr);
+			return true;
+		}
+		
+		System.out.println("Transpiling '" + input + "' to '" + output + "'");
 		
 		try {
-			tr.transpile(new File(input), new File(output));
+			if (!tr.transpile(inputFile, outputFile)) {
+				System.out.println("The output didn't change, '" + output + "' was kept as it was.");
+			}
+			cache.store(tr);
+			if (dependencies != null) dependencies.write(tr);
 		} catch(TranspilerException te) {
-			System.err.println("-- Transpilation of '" + input + "' failed! --");
+			// Printed all at once, so the errors of inputs transpiled at the same time don't mix
+			var message = new StringBuilder("-- Transpilation of '" + input + "' failed! --\n");
 			Throwable cause = te;
 			while (cause != null) {
-				System.err.println(": " + cause.getMessage());
+				message.append(": ").append(cause.getMessage()).append('\n');
 				cause = cause.getCause();
 			}
+			System.err.print(message);
 			return false;
 		}
 		return true;
 	}
+	
+	/** Reads a list of inputs. Blank lines and lines starting with # are ignored. */
+	List<String> readInputList(String listFile) {
+		try {
+			return Files.readAllLines(Path.of(listFile)).stream()
+				.map(String::trim)
+				.filter(line -> !line.isEmpty() && !line.startsWith("#"))
+				.toList();
+		} catch (IOException ex) {
+			throw new CLIException("The input list '" + listFile + "' couldn't be read.");
+		}
+	}
+	
+	int parseThreads(String str) {
+		try {
+			int threads = Integer.parseInt(str);
+			if (threads > 0) return threads;
+		} catch (NumberFormatException ex) {}
 		
+		throw new CLIException("The number of threads must be a positive integer, not '" + str + "'.");
+	}
+	
 	/**
 	 * Prints the CLI help text on the console.
 	 * 
@@ -141,7 +274,7 @@ public class PasmeCLI {
 			}
 		}
 	}
-		
+	
 	/** Prints the Pasme header with version. */
 	void printHeader() {
 		System.out.println("-- Pasme Version " + VERSION_STR);
@@ -0,0 +1,107 @@
+package com.andre.pasme.transpiler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Writes a Make dependency file, as GCC does with -MD. The target depends on
+ * the input file and on every file it included, and each included file also
+ * gets an empty rule of its own, so a header that is deleted or renamed won't
+ * break the build. For example:
+ *
+ * <pre>
+ * build/boot.o: src/boot.asm \
+ *  ../Libs/comm/drive.h \
+ *  ../Libs/comm/strings.h
+ *
+ * ../Libs/comm/drive.h:
+ *
+ * ../Libs/comm/strings.h:
+ * </pre>
+ *
+ * Paths are written relative to the working directory when possible, which
+ * is where make runs Pasme from.
+ * <br>
+ * <br>Last edit: 18/10/2026
+ *
+ * @author André Morales
+ */
+public class DependencyFile {
+	private final Path file;
+	private final String target;
+	
+	/**
+	 * @param file Where to write the dependency file.
+	 * @param target Target of the rule, usually the file the Makefile rule builds.
+	 */
+	public DependencyFile(Path file, String target) {
+		this.file = file;
+		this.target = target;
+	}
+	
+	/**
+	 * Writes the dependencies of the last transpilation or cache hit of a
+	 * transpiler. The file is only rewritten if its contents change.
+	 */
+	public void write(Transpiler tr) {
+		var input = new StringBuilder();
+		var includes = new StringBuilder();
+		var phonies = new StringBuilder();
+		
+		for (var source : tr.getSourceFiles()) {
+			var path = escape(relativize(source.path()));
+			
+			// The input file comes first, even though it's the last one fully read
+			if (source.include() == null) {
+				input.append(' ').append(path);
+			} else {
+				includes.append(" \\\n ").append(path);
+				phonies.append('\n').append(path).append(":\n");
+			}
+		}
+		
+		var contents = escape(target) + ":" + input + includes + "\n" + phonies;
+		var bytes = contents.getBytes(StandardCharsets.UTF_8);
+		
+		try {
+			if (Files.isRegularFile(file) && Arrays.equals(Files.readAllBytes(file), bytes)) return;
+			
+			var parent = file.toAbsolutePath().getParent();
+			if (parent != null) Files.createDirectories(parent);
+			Files.write(file, bytes);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** Path relative to the working directory, or the absolute one if there's no way to get there. */
+	private static String relativize(Path path) {
+		var workingDir = Path.of("").toAbsolutePath();
+		
+		String str;
+		try {
+			str = workingDir.relativize(path).toString();
+		} catch (IllegalArgumentException ex) {
+			// On another drive
+			str = path.toString();
+		}
+		return str.replace('\\', '/');
+	}
+	
+	/** Escapes the characters make would give another meaning to. */
+	private static String escape(String path) {
+		var sb = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			switch (c) {
+				case ' ', '#' -> sb.append('\\').append(c);
+				case '$' -> sb.append("$$");
+				default -> sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package com.andre.pasme.transpiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Included files shared by several transpilers, so headers included by many
+ * inputs are read and hashed only once. Each file is loaded the first time
+ * any transpiler asks for it and never changes after that, which makes it
+ * safe to share the cache between transpilers running on different threads.
+ * <br><br>
+ * Files are never loaded again, so a cache should only live as long as a
+ * single batch of transpilations.
+ * <br>
+ * <br>Last edit: 18/10/2026
+ *
+ * @author André Morales
+ */
+public class IncludeCache {
+	private final ConcurrentHashMap<Path, CachedFile> files = new ConcurrentHashMap<>();
+	
+	/**
+	 * Gets a file, loading it if no transpiler asked for it before.
+	 *
+	 * @param path Absolute and normalized path of the file.
+	 */
+	public CachedFile get(Path path) throws IOException {
+		try {
+			return files.computeIfAbsent(path, IncludeCache::load);
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+	
+	/** How many files were loaded so far. */
+	public int size() {
+		return files.size();
+	}
+	
+	private static CachedFile load(Path path) {
+		try {
+			var bytes = Files.readAllBytes(path);
+			var hash = HexFormat.of().formatHex(MessageDigest.getInstance(SourceFile.HASH_ALGORITHM).digest(bytes));
+			
+			// Split the same way the preprocessor splits the files it streams
+			var reader = new BufferedReader(new StringReader(new String(bytes, StandardCharsets.UTF_8)));
+			return new CachedFile(reader.lines().toList(), hash);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * The contents of an included file.
+	 *
+	 * @param lines Lines of the file, unmodifiable.
+	 * @param hash Hash of the file contents, as in {@link SourceFile#hash()}.
+	 */
+	public record CachedFile(List<String> lines, String hash) {}
+}
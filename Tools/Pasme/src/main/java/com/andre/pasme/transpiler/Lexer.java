@@ -0,0 +1,307 @@
+package com.andre.pasme.transpiler;
+
+import java.util.Arrays;
+
+/**
+ * Splits each line of source into tokens in a single pass. Tokens are only
+ * offsets into the line, nothing is copied while tokenizing, and the token
+ * buffers are reused from one line to the next.
+ * <br><br>
+ * Statements separated by '|' end with an {@link Kind#END} token each. A
+ * statement starting with a keyword has it as its first token, followed by
+ * the rest of the statement as plain text. Style brackets are left out of the
+ * tokens, and block comments become line comments, so they may span several
+ * lines.
+ * <br>
+ * <br>Last edit: 18/10/2026
+ *
+ * @author André Morales
+ */
+public class Lexer {
+	public enum Kind {
+		/** Source emitted as it is. */
+		TEXT,
+		/**
+		 * A $name reference. The token covers the name, without the $. It may
+		 * contain style brackets, and other $ references if the whole name isn't
+		 * a known one.
+		 */
+		NAME,
+		/** A ."" or .'' constant string. The token covers the string with its quotes. */
+		RODATA,
+		/** Start of a block comment, emitted as a ';'. */
+		COMMENT,
+		/** End of a statement. */
+		END,
+		
+		// Keywords, only recognized at the start of a statement
+		VAR("var "),
+		FARG("farg "),
+		LVAR("lvar "),
+		ENTERFN("ENTERFN"),
+		LEAVEFN("LEAVEFN"),
+		CLSTACK("CLSTACK");
+		
+		final String keyword;
+		
+		Kind() {
+			this(null);
+		}
+		
+		Kind(String keyword) {
+			this.keyword = keyword;
+		}
+	}
+	
+	private static final Kind[] KEYWORDS = { Kind.VAR, Kind.FARG, Kind.LVAR, Kind.ENTERFN, Kind.LEAVEFN, Kind.CLSTACK };
+	
+	private String source;
+	private int length;
+	
+	private Kind[] kinds = new Kind[32];
+	private int[] starts = new int[32];
+	private int[] ends = new int[32];
+	private int count;
+	
+	/** Whether the end of the last line was inside a block comment. */
+	private boolean inBlockComment = false;
+	
+	/** Whether the current statement is emitted as plain text, after a keyword or a comment. */
+	private boolean plain;
+	
+	/** Tokenizes a line, replacing the tokens of the previous one. */
+	public void tokenize(String line) {
+		source = line;
+		length = line.length();
+		count = 0;
+		
+		int i = 0;
+		if (inBlockComment) {
+			add(Kind.COMMENT, 0, 0);
+			plain = true;
+		} else {
+			i = beginStatement(0);
+		}
+		
+		int run = i;
+		while (i < length) {
+			// Everything up to the end of the comment is emitted as is
+			if (inBlockComment) {
+				int close = source.indexOf("*/", i);
+				if (close == -1) {
+					i = length;
+					break;
+				}
+				
+				add(Kind.TEXT, run, close);
+				inBlockComment = false;
+				i = close + 2;
+				run = i;
+				continue;
+			}
+			
+			char c = source.charAt(i);
+			char nc = (i + 1 < length) ? source.charAt(i + 1) : 0;
+			
+			switch (c) {
+				// Style brackets: do not emit.
+				case '{', '}' -> {
+					add(Kind.TEXT, run, i);
+					run = ++i;
+				}
+				
+				// Quoted string, emitted as is
+				case '\'', '"' -> i = skipQuoted(i);
+				
+				// Statement splitter: do not emit
+				case '|' -> {
+					add(Kind.TEXT, run, i);
+					add(Kind.END, i, i);
+					i = beginStatement(i + 1);
+					run = i;
+				}
+				
+				// Line comment: the rest of the line is emitted as is
+				case ';' -> i = length;
+				
+				case '/' -> {
+					if (nc != '*') {
+						i++;
+						continue;
+					}
+					
+					add(Kind.TEXT, run, i);
+					add(Kind.COMMENT, i, i + 2);
+					inBlockComment = true;
+					plain = true;
+					i += 2;
+					run = i;
+				}
+				
+				case '.' -> {
+					if (plain || !Str.isQuote(nc)) {
+						i++;
+						continue;
+					}
+					
+					add(Kind.TEXT, run, i);
+					int end = skipQuoted(i + 1);
+					add(Kind.RODATA, i + 1, end);
+					i = end;
+					run = i;
+				}
+				
+				case '$' -> {
+					int end = (plain) ? i : scanName(i + 1);
+					if (end == i) {
+						i++;
+						continue;
+					}
+					
+					add(Kind.TEXT, run, i);
+					add(Kind.NAME, i + 1, end);
+					i = end;
+					run = i;
+				}
+				
+				default -> i++;
+			}
+		}
+		
+		add(Kind.TEXT, run, i);
+		add(Kind.END, length, length);
+	}
+	
+	/** How many tokens the line has. */
+	public int count() {
+		return count;
+	}
+	
+	public Kind kind(int token) {
+		return kinds[token];
+	}
+	
+	/** Offset of the first character of the token in the line. */
+	public int start(int token) {
+		return starts[token];
+	}
+	
+	/** Offset after the last character of the token in the line. */
+	public int end(int token) {
+		return ends[token];
+	}
+	
+	/** Forgets any block comment left open, so another file can be tokenized. */
+	public void reset() {
+		inBlockComment = false;
+	}
+	
+	/** Offset of the first character of a string that isn't whitespace, as in {@link String#trim()}. */
+	public static int skipWhitespace(String str, int from) {
+		while (from < str.length() && str.charAt(from) <= ' ') from++;
+		return from;
+	}
+	
+	/**
+	 * Looks for a keyword at the start of a statement. Keywords may be preceded
+	 * by whitespace and style brackets, which are tokenized as usual.
+	 *
+	 * @return Where tokenizing goes on from.
+	 */
+	private int beginStatement(int i) {
+		plain = false;
+		
+		int j = i;
+		while (j < length && (source.charAt(j) <= ' ' || source.charAt(j) == '{' || source.charAt(j) == '}')) j++;
+		
+		for (var keyword : KEYWORDS) {
+			if (source.startsWith(keyword.keyword, j)) {
+				// The whitespace before it is kept, in case the statement turns out not to be a declaration
+				int run = i;
+				for (int k = i; k < j; k++) {
+					if (source.charAt(k) == '{' || source.charAt(k) == '}') {
+						add(Kind.TEXT, run, k);
+						run = k + 1;
+					}
+				}
+				add(Kind.TEXT, run, j);
+				
+				add(keyword, j, j + keyword.keyword.length());
+				plain = true;
+				return j + keyword.keyword.length();
+			}
+		}
+		return i;
+	}
+	
+	/**
+	 * Scans the name of a $name reference. A name runs until a space, a ',',
+	 * a ']' or the end of the statement, and other whitespace before these is
+	 * left out. Style brackets are dropped from the source before names are
+	 * read, so the token may contain them, as in ${name}. Anything else that
+	 * would start another token means this isn't a name at all.
+	 *
+	 * @param i Offset right after the $.
+	 * @return Offset after the name, or the offset of the $ if there's no name.
+	 */
+	private int scanName(int i) {
+		int end = i;
+		boolean empty = true;
+		while (end < length && isNameChar(end)) {
+			if (!isStyleBracket(end)) empty = false;
+			end++;
+		}
+		
+		int after = end;
+		while (after < length && source.charAt(after) < ' ') after++;
+		
+		if (empty) return i - 1;
+		if (after == length) return end;
+		
+		return switch (source.charAt(after)) {
+			case ' ', ',', ']', '|' -> end;
+			default -> i - 1;
+		};
+	}
+	
+	private boolean isNameChar(int i) {
+		char c = source.charAt(i);
+		char nc = (i + 1 < length) ? source.charAt(i + 1) : 0;
+		
+		return switch (c) {
+			case ' ', ',', ']', '|', ';', '\'', '"' -> false;
+			case '/' -> nc != '*';
+			case '.' -> !Str.isQuote(nc);
+			default -> c > ' ';
+		};
+	}
+	
+	private boolean isStyleBracket(int i) {
+		return source.charAt(i) == '{' || source.charAt(i) == '}';
+	}
+	
+	/**
+	 * @param i Offset of the opening quote.
+	 * @return Offset after the closing quote, or the end of the line if the string isn't closed.
+	 */
+	private int skipQuoted(int i) {
+		int close = source.indexOf(source.charAt(i), i + 1);
+		return (close == -1) ? length : close + 1;
+	}
+	
+	/** Adds a token. Empty text is left out. */
+	private void add(Kind kind, int start, int end) {
+		if (kind == Kind.TEXT && start == end) return;
+		
+		if (count == kinds.length) {
+			kinds = Arrays.copyOf(kinds, count * 2);
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		
+		kinds[count] = kind;
+		starts[count] = start;
+		ends[count] = end;
+		count++;
+	}
+}
@@ -1,151 +1,213 @@
 package com.andre.pasme.transpiler;
 
 import com.andre.pasme.PasmeCLI;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HexFormat;
 import java.util.Stack;
 
 /**
+ * Streams the lines of a source file through the preprocessor. Lines are read
+ * one at a time as the transpiler asks for them, and included files are read
+ * in place through a stack of open readers, so only the files currently being
+ * included are kept open, never the whole program.
+ * <br><br>
+ * Every file is hashed as it is read, and recorded in the transpiler once
+ * fully read. See {@link Transpiler#getSourceFiles()}. If the transpiler has
+ * an {@link IncludeCache}, included files are read from it instead.
  *
  * @author Andre
  */
-public class Preprocessor {
+public class Preprocessor implements Closeable {
 	enum IFBlockState {
 		OUTSIDE, FALSE, TRUE
 	}
 	
-	public static List<Line> readAllLines(File input) throws IOException {
-		var lines = new ArrayList<Line>();
+	private final Transpiler tr;
+	
+	/** Files being read. The innermost include is on top. */
+	private final Deque<Source> sources = new ArrayDeque<>();
+	
+	private boolean ifStackState = true;
+	private final Stack<Boolean> ifStack = new Stack<>();
+	private boolean headerEmitted = false;
+	
+	public Preprocessor(Transpiler tr, File input) {
+		this.tr = tr;
 		
-		var r = new LineNumberReader(new FileReader(input));
-			
-		String str;
-		while ((str = r.readLine()) != null) {
-			int n = r.getLineNumber();
-			lines.add(new Line(str, n));
+		try {
+			sources.push(openSource(null, input.toPath().toAbsolutePath().normalize(), 0));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
 		}
-		
-		return lines;
 	}
 	
-	public static List<Line> pass(Transpiler tr, List<Line> lines) {
-		var emit = new ArrayList<Line>();
-		emit.add(new Line("; -- PASME Version " + PasmeCLI.VERSION_STR, 0));
-		
-		var ifStackState = true;
-		var ifStack = new Stack<Boolean>();
-		
-		for (int i = 0; i < lines.size(); i++) {
-			var line = lines.get(i);
-			var str = line.content;
-			var strTr = str.trim();
-			var lineN = line.number;
-
+	/**
+	 * Reads lines until one of them must be emitted.
+	 *
+	 * @return The next line of the preprocessed program, or null once every
+	 * file has been read.
+	 */
+	public Line next() {
+		if (!headerEmitted) {
+			headerEmitted = true;
+			return new Line("; -- PASME Version " + PasmeCLI.VERSION_STR, 0);
+		}
+		
+		while (!sources.isEmpty()) {
+			var source = sources.peek();
+			
+			String str;
 			try {
-				if (strTr.startsWith("#if ")) {
-					ifStack.push(ifStackState);
-					if (!ifStackState) continue;
-					
-					var def = Str.remainingAfter(str, "#if ");
-					ifStackState = "1".equals(tr.definedConstants.get(def));
+				str = source.readLine();
+				if (str == null) {
+					sources.pop().close();
+					tr.sourceFiles.putIfAbsent(source.path, new SourceFile(source.include, source.path, source.hash()));
 					continue;
 				}
-
-				if (strTr.startsWith("#ifdef ")) {
-					ifStack.push(ifStackState);
-					if (!ifStackState) continue;
-					
-					var def = Str.remainingAfter(str, "#ifdef ");
-					ifStackState = tr.definedConstants.get(def) != null;
-					continue;
-				}
-
-				if (strTr.startsWith("#ifndef ")) {
-					ifStack.push(ifStackState);
-					if (!ifStackState) continue;
-					
-					var def = Str.remainingAfter(str, "#ifndef ");
-					ifStackState = tr.definedConstants.get(def) == null;
-					continue;
-				}
-				
-				// Check if IF block has ended.
-				if (strTr.startsWith("#endif")) {
-					ifStackState = ifStack.pop();
-					continue;
-				}
-
-				// Flip state of IF block if necessary
-				if (strTr.startsWith("#else")) {
-					if (ifStack.lastElement()) {
-						ifStackState = !ifStackState;
-					}
-					continue;
-				}
-
-				// Ignore any lines while inside an IF block that has evaluated to false.
-				if (!ifStackState) continue;
-
-				// If its not a preprocessor statement, check if it contains a preprocessor value.
-				if (!strTr.startsWith("#")) {
-					// The line will be emitted
-					emit.add(line);
-					
-					// Check for starting $# and ending # marker in the statement
-					var bs = str.indexOf("$#");
-					if (bs == -1) continue;			
-
-					var es = str.indexOf("#", bs + 2);
-					if (es == -1) continue;
-					
-					// Obtain the preprocessor constant between $# and #
-					var key = str.substring(bs + 2, es);
-					var value = tr.definedConstants.get(key);
-					if (value == null) continue;
-					
-					// Replace it in the statement
-					line.content = str.replace(str.substring(bs, es+1), value);
-					continue;
-				}
-
-				if (strTr.startsWith("#error ")) {
-					var description = Str.remainingAfter(str, "#error ");
-					throw new TranspilerException("#error says: " + description);
-				}
-
-				if (strTr.startsWith("#define ")) {
-					var def = Str.remainingAfter(str, "#define ").split(" ", 2);
-					tr.definedConstants.put(def[0], def[1]);
-					continue;
-				}
-
-				if (strTr.startsWith("#include ")) {
-					var result = solveInclude(tr, str);
-					var includedLines = result.stream()
-							.map((String v) -> new Line(v, lineN))
-							.toList();
-
-					lines.addAll(i + 1, includedLines);
-
-					line.content = "; -- " + str + "--\n";	
-					emit.add(line);
-				}
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			
+			// Lines of included files are numbered after the #include line of the input file
+			int lineN = (source.includedAt != 0) ? source.includedAt : source.lineNumber();
+			var line = new Line(str, lineN);
+			
+			try {
+				if (process(line)) return line;
 			} catch (Exception ex) {
 				throw new TranspilerException("LINE " + lineN + ": Preprocessing fault.", ex);
 			}
 		}
-		return emit;
+		return null;
 	}
 	
-	static List<String> solveInclude(Transpiler tr, String line){
-		var str = Str.remainingAfter(line, "#include ").trim();
+	/**
+	 * Handles a line, evaluating it if it is a preprocessor statement.
+	 *
+	 * @return Whether the line must be emitted.
+	 */
+	private boolean process(Line line) {
+		var str = line.content;
+		var strTr = str.trim();
+		
+		if (strTr.startsWith("#if ")) {
+			ifStack.push(ifStackState);
+			if (!ifStackState) return false;
+			
+			var def = Str.remainingAfter(str, "#if ");
+			ifStackState = "1".equals(tr.definedConstants.get(def));
+			return false;
+		}
+		
+		if (strTr.startsWith("#ifdef ")) {
+			ifStack.push(ifStackState);
+			if (!ifStackState) return false;
+			
+			var def = Str.remainingAfter(str, "#ifdef ");
+			ifStackState = tr.definedConstants.get(def) != null;
+			return false;
+		}
+		
+		if (strTr.startsWith("#ifndef ")) {
+			ifStack.push(ifStackState);
+			if (!ifStackState) return false;
+			
+			var def = Str.remainingAfter(str, "#ifndef ");
+			ifStackState = tr.definedConstants.get(def) == null;
+			return false;
+		}
+		
+		// Check if IF block has ended.
+		if (strTr.startsWith("#endif")) {
+			ifStackState = ifStack.pop();
+			return false;
+		}
+		
+		// Flip state of IF block if necessary
+		if (strTr.startsWith("#else")) {
+			if (ifStack.lastElement()) {
+				ifStackState = !ifStackState;
+			}
+			return false;
+		}
 		
+		// Ignore any lines while inside an IF block that has evaluated to false.
+		if (!ifStackState) return false;
+		
+		// If its not a preprocessor statement, check if it contains a preprocessor value.
+		if (!strTr.startsWith("#")) {
+			// Check for starting $# and ending # marker in the statement
+			var bs = str.indexOf("$#");
+			if (bs == -1) return true;
+			
+			var es = str.indexOf("#", bs + 2);
+			if (es == -1) return true;
+			
+			// Obtain the preprocessor constant between $# and #
+			var key = str.substring(bs + 2, es);
+			var value = tr.definedConstants.get(key);
+			if (value == null) return true;
+			
+			// Replace it in the statement
+			line.content = str.replace(str.substring(bs, es+1), value);
+			return true;
+		}
+		
+		if (strTr.startsWith("#error ")) {
+			var description = Str.remainingAfter(str, "#error ");
+			throw new TranspilerException("#error says: " + description);
+		}
+		
+		if (strTr.startsWith("#define ")) {
+			var def = Str.remainingAfter(str, "#define ").split(" ", 2);
+			tr.definedConstants.put(def[0], def[1]);
+			return false;
+		}
+		
+		if (strTr.startsWith("#include ")) {
+			var include = Str.remainingAfter(str, "#include ").trim();
+			var path = solveInclude(tr, include);
+			
+			// A file including itself would never end
+			for (var source : sources) {
+				if (source.path.equals(path)) {
+					throw new TranspilerException("Include file '" + path + "' includes itself.");
+				}
+			}
+			
+			try {
+				sources.push(openSource(include, path, line.number));
+			} catch (IOException ex) {
+				throw new TranspilerException("Include file '" + path + "' couldn't be read.", ex);
+			}
+			
+			// The included lines come right after this marker
+			line.content = "; -- " + str + "--\n";
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Finds the file of an #include statement. Files between &lt;&gt; are
+	 * looked up in the include paths, and quoted files next to the input file.
+	 *
+	 * @param str What comes after #include, as in &lt;file&gt; or "file".
+	 * @return Absolute and normalized path of the file.
+	 */
+	static Path solveInclude(Transpiler tr, String str){
 		Path filePath = null;
 		if(str.startsWith("<") && str.endsWith(">")){
 			var path = Str.untilFirstMatch(str, 1, ">");
@@ -162,11 +224,97 @@ public class Preprocessor {
 		} else {
 			throw new TranspilerException("#include statements shoud be either: '#include <file>' or '#include \"file\"'");
 		}
-
-		try {
-			return Files.readAllLines(filePath);
-		} catch(IOException | NullPointerException ex ){
+		
+		if (filePath == null || !Files.isRegularFile(filePath)) {
 			throw new TranspilerException("Include file '" + str + "' not found.");
 		}
+		return filePath.toAbsolutePath().normalize();
+	}
+	
+	/**
+	 * Opens a file for reading, hashing its contents along the way. Included
+	 * files come from the include cache instead, if the transpiler has one.
+	 */
+	private Source openSource(String include, Path path, int includedAt) throws IOException {
+		if (include != null && tr.includeCache != null) {
+			return new Source(include, path, includedAt, tr.includeCache.get(path));
+		}
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(SourceFile.HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+		
+		var stream = new DigestInputStream(Files.newInputStream(path), digest);
+		var reader = new LineNumberReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+		return new Source(include, path, includedAt, reader, digest);
+	}
+	
+	@Override
+	public void close() {
+		try {
+			while (!sources.isEmpty()) {
+				sources.pop().close();
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** A file being read, either streamed from disk or from the include cache. */
+	private static class Source {
+		/** How the file was included, or null for the input file. */
+		final String include;
+		final Path path;
+		
+		/** Number of the #include line of the input file that led to this file, or 0 for the input file itself. */
+		final int includedAt;
+		
+		/** Reader positioned after the last line read, and hash of everything read so far. */
+		LineNumberReader reader;
+		MessageDigest digest;
+		
+		/** Contents of the file if it came from the cache, and how many lines were read. */
+		IncludeCache.CachedFile cached;
+		int linesRead;
+		
+		Source(String include, Path path, int includedAt, LineNumberReader reader, MessageDigest digest) {
+			this.include = include;
+			this.path = path;
+			this.includedAt = includedAt;
+			this.reader = reader;
+			this.digest = digest;
+		}
+		
+		Source(String include, Path path, int includedAt, IncludeCache.CachedFile cached) {
+			this.include = include;
+			this.path = path;
+			this.includedAt = includedAt;
+			this.cached = cached;
+		}
+		
+		/** @return The next line, or null at the end of the file. */
+		String readLine() throws IOException {
+			if (cached == null) return reader.readLine();
+			
+			if (linesRead == cached.lines().size()) return null;
+			return cached.lines().get(linesRead++);
+		}
+		
+		/** Number of the last line read. */
+		int lineNumber() {
+			return (cached == null) ? reader.getLineNumber() : linesRead;
+		}
+		
+		/** Hash of the file contents. Only valid once the whole file was read. */
+		String hash() {
+			return (cached == null) ? HexFormat.of().formatHex(digest.digest()) : cached.hash();
+		}
+		
+		void close() throws IOException {
+			if (reader != null) reader.close();
+		}
 	}
 }
@@ -0,0 +1,20 @@
+package com.andre.pasme.transpiler;
+
+import java.nio.file.Path;
+
+/**
+ * A file read by a transpilation, either the input file or one of the files
+ * it included.
+ * <br>
+ * <br>Last edit: 18/10/2026
+ *
+ * @param include What came after #include, as in &lt;file&gt; or "file", or
+ * null for the input file.
+ * @param path Absolute and normalized path of the file.
+ * @param hash Hash of the file contents as they were read, in hexadecimal.
+ * @author André Morales
+ */
+public record SourceFile(String include, Path path, String hash) {
+	/** Algorithm used for the hash of every file. */
+	public static final String HASH_ALGORITHM = "SHA-256";
+}
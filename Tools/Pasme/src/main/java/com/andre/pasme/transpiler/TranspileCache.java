@@ -0,0 +1,170 @@
+package com.andre.pasme.transpiler;
+
+import com.andre.pasme.PasmeCLI;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Remembers what each output file was transpiled from, so transpiling it again
+ * can be skipped when nothing changed. The cache of an output lives in a
+ * .pasme-cache directory next to it, and holds a key hashed from:
+ * <ul>
+ * <li>The Pasme version.</li>
+ * <li>The command line defines and include paths.</li>
+ * <li>The contents of the input file and of every file it included.</li>
+ * </ul>
+ * Included files are resolved again when checking, so a file shadowing
+ * another in the include paths is noticed too. The hash of the output is kept
+ * as well, so an output edited or deleted by hand is always transpiled again.
+ * <br>
+ * <br>Last edit: 18/10/2026
+ *
+ * @author André Morales
+ */
+public class TranspileCache {
+	public static final String DIRECTORY = ".pasme-cache";
+	
+	private final File outputFile;
+	private final File cacheFile;
+	
+	/** @param outputFile The output file whose cache is used. */
+	public TranspileCache(File outputFile) {
+		this.outputFile = outputFile.getAbsoluteFile();
+		this.cacheFile = new File(new File(this.outputFile.getParentFile(), DIRECTORY), outputFile.getName() + ".properties");
+	}
+	
+	/**
+	 * Checks whether the output file is what transpiling the input with this
+	 * transpiler's defines and include paths would give. If so, the files the
+	 * output was transpiled from are set as the transpiler's source files.
+	 */
+	public boolean isUpToDate(Transpiler tr, File inputFile) {
+		if (!cacheFile.isFile() || !outputFile.isFile()) return false;
+		
+		try {
+			var props = new Properties();
+			try (var reader = new FileReader(cacheFile, StandardCharsets.UTF_8)) {
+				props.load(reader);
+			}
+			
+			if (!PasmeCLI.VERSION_STR.equals(props.getProperty("version"))) return false;
+			
+			// Included files are resolved relative to the input, as when transpiling
+			tr.inputFile = inputFile.toPath();
+			var input = inputFile.toPath().toAbsolutePath().normalize();
+			
+			int count = Integer.parseInt(props.getProperty("sources", "0"));
+			var sources = new ArrayList<SourceFile>(count);
+			for (int i = 0; i < count; i++) {
+				var include = props.getProperty("source." + i + ".include");
+				var path = Path.of(props.getProperty("source." + i + ".path"));
+				
+				var resolved = (include == null) ? input : Preprocessor.solveInclude(tr, include);
+				if (!resolved.equals(path)) return false;
+				
+				var hash = (include != null && tr.includeCache != null) ? tr.includeCache.get(path).hash() : hash(path);
+				sources.add(new SourceFile(include, path, hash));
+			}
+			
+			if (!computeKey(tr, sources).equals(props.getProperty("key"))) return false;
+			if (!hash(outputFile.toPath()).equals(props.getProperty("output"))) return false;
+			
+			tr.sourceFiles.clear();
+			for (var source : sources) {
+				tr.sourceFiles.put(source.path(), source);
+			}
+			return true;
+		} catch (IOException | RuntimeException ex) {
+			// Anything missing or unreadable just means transpiling again
+			return false;
+		}
+	}
+	
+	/** Records the files read by the last transpilation of the output file. */
+	public void store(Transpiler tr) {
+		var sources = tr.getSourceFiles();
+		
+		var props = new Properties();
+		props.setProperty("version", PasmeCLI.VERSION_STR);
+		props.setProperty("key", computeKey(tr, sources));
+		props.setProperty("sources", Integer.toString(sources.size()));
+		
+		int i = 0;
+		for (var source : sources) {
+			if (source.include() != null) props.setProperty("source." + i + ".include", source.include());
+			props.setProperty("source." + i + ".path", source.path().toString());
+			i++;
+		}
+		
+		try {
+			props.setProperty("output", hash(outputFile.toPath()));
+			
+			cacheFile.getParentFile().mkdirs();
+			try (var writer = new FileWriter(cacheFile, StandardCharsets.UTF_8)) {
+				props.store(writer, "Pasme transpile cache of " + outputFile.getName());
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** Hashes the version, the command line settings and the hash of every source file. */
+	private static String computeKey(Transpiler tr, Collection<SourceFile> sources) {
+		var digest = newDigest();
+		update(digest, PasmeCLI.VERSION_STR);
+		
+		// Defines are sorted, as their order doesn't matter
+		for (var define : new TreeMap<>(tr.cmdLineDefines).entrySet()) {
+			update(digest, "-D " + define.getKey() + "=" + define.getValue());
+		}
+		for (var include : tr.includePaths) {
+			update(digest, "-I " + include);
+		}
+		
+		for (var source : sources) {
+			update(digest, String.valueOf(source.include()));
+			update(digest, source.path().toString());
+			update(digest, source.hash());
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	private static void update(MessageDigest digest, String str) {
+		digest.update(str.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte)0);
+	}
+	
+	/** Hashes the contents of a file, the same way the preprocessor does. */
+	private static String hash(Path path) throws IOException {
+		var digest = newDigest();
+		try (InputStream in = Files.newInputStream(path)) {
+			var buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(SourceFile.HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+}
@@ -1,10 +1,15 @@
 package com.andre.pasme.transpiler;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -55,7 +60,17 @@ public class Transpiler {
 	
 	/* General state machine stuff */
 	Path inputFile;
-	boolean onMultiLineComment = false;
+	
+	/** Every file read by the last transpilation, by their path. */
+	LinkedHashMap<Path, SourceFile> sourceFiles = new LinkedHashMap<>();
+	
+	/** Included files shared with other transpilers, or null to always read them from disk. */
+	IncludeCache includeCache;
+	
+	final Lexer lexer = new Lexer();
+	
+	/** Statement being built from the tokens of a line */
+	final StringBuilder statement = new StringBuilder();
 	
 	public Transpiler(){
 		cmdLineDefines = new HashMap<>();
@@ -66,143 +81,223 @@ public class Transpiler {
 		stackArgs = new LinkedHashMap<>();
 	}
 	
-	public void transpile(File inputFile, File outputFile){
+	/**
+	 * Transpiles a file. The output file is only replaced if the result differs
+	 * from what it holds, so its modification time only changes along with its
+	 * contents.
+	 * 
+	 * @return Whether the output file was written.
+	 */
+	public boolean transpile(File inputFile, File outputFile){
 		this.inputFile = inputFile.toPath();
-
+		
+		sourceFiles.clear();
 		rodataStrings.clear();
 		definedConstants = new HashMap<>(cmdLineDefines);
-
-		var lines = readLines(inputFile);
-		lines = Preprocessor.pass(this, lines);
+		lexer.reset();
 		
-		var outLines = new ArrayList<Line>();
+		// The output is streamed into a temporary file, so a failed transpilation
+		// never leaves a partial output behind
+		var tempFile = new File(outputFile.getPath() + ".tmp");
 		
-		for (int li = 0; li < lines.size(); li++) {
-			var line = lines.get(li);
-			var str = line.content;
-			var tstr = str.trim();
-
-			if (tstr.startsWith(RODATA_SECTION_MARKER)) {
-				undumpedRodataSymbols = false;
+		try (var pre = new Preprocessor(this, inputFile); var out = new BufferedWriter(new FileWriter(tempFile))) {
+			var outLines = new ArrayList<Line>();
+			
+			Line line;
+			while ((line = pre.next()) != null) {
+				transpileLine(line, outLines);
 				
-				outLines.add(line);
-				dumpSectionROData(line, outLines);
-				continue;
+				writeLines(outLines, out);
+				outLines.clear();
 			}
 			
-			if (tstr.startsWith(BSS_SECTION_MARKER)) {
-				undumpedBssSymbols = false;
-				
-				outLines.add(line);
-				dumpSectionBSS(line, outLines);
-				continue;
+			if(undumpedBssSymbols) throw new TranspilerException("Global variables were defined but no @bss section defined.");
+			if(undumpedRodataSymbols) throw new TranspilerException("Constant strings were defined but no @rodata section defined.");
+		} catch (IOException ex) {
+			tempFile.delete();
+			throw new RuntimeException(ex);
+		} catch (RuntimeException ex) {
+			tempFile.delete();
+			throw ex;
+		}
+		
+		try {
+			if (outputFile.isFile() && Files.mismatch(tempFile.toPath(), outputFile.toPath()) == -1) {
+				Files.delete(tempFile.toPath());
+				return false;
 			}
 			
-			var statements = splitAndCleanLine(line);
+			Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** Transpiles a line coming out of the preprocessor, adding the resulting lines to the output. */
+	private void transpileLine(Line line, List<Line> outLines) {
+		var str = line.content;
+		int first = Lexer.skipWhitespace(str, 0);
+		
+		if (str.startsWith(RODATA_SECTION_MARKER, first)) {
+			undumpedRodataSymbols = false;
+			
+			outLines.add(line);
+			dumpSectionROData(line, outLines);
+			return;
+		}
+		
+		if (str.startsWith(BSS_SECTION_MARKER, first)) {
+			undumpedBssSymbols = false;
+			
+			outLines.add(line);
+			dumpSectionBSS(line, outLines);
+			return;
+		}
+		
+		// Each statement is built from its tokens and emitted once its END token is reached
+		lexer.tokenize(str);
+		Lexer.Kind keyword = null;
+		int keywordEnd = 0;
+		statement.setLength(0);
+		
+		for (int t = 0; t < lexer.count(); t++) {
+			int start = lexer.start(t);
+			int end = lexer.end(t);
 			
-			for (var stat : statements) {
-				var result = processStatement(stat);
-				if (result != null) {
-					outLines.addAll(result);
+			switch (lexer.kind(t)) {
+				case TEXT -> statement.append(str, start, end);
+				case COMMENT -> statement.append(';');
+				case NAME -> appendName(str, start, end);
+				case RODATA -> {
+					// Strings left open are closed
+					var string = str.substring(start, end);
+					if (end - start < 2 || str.charAt(end - 1) != str.charAt(start)) string += str.charAt(start);
+					
+					rodataStrings.add(string);
+					statement.append("@rodata.string").append(rodataStrings.size());
+					undumpedRodataSymbols = true;
+				}
+				case END -> {
+					if (keyword == null || !processKeyword(keyword, statement.substring(keywordEnd), line, outLines)) {
+						outLines.add(new Line(statement.toString(), line));
+					}
+					
+					keyword = null;
+					statement.setLength(0);
+				}
+				default -> {
+					keyword = lexer.kind(t);
+					statement.append(str, start, end);
+					keywordEnd = statement.length();
 				}
 			}
 		}
-
-		if(undumpedBssSymbols) throw new TranspilerException("Global variables were defined but no @bss section defined.");
-		if(undumpedRodataSymbols) throw new TranspilerException("Constant strings were defined but no @rodata section defined.");
-		
-		writeLines(outLines, outputFile);
 	}
-		
-	/**
-	 * Processes a line of code and turns it into multiple ordered statements. 
-	 * This function also handles folding brackets. */
-	private List<Line> splitAndCleanLine(Line line) {
-		var lines = new ArrayList<Line>();
-
-		char onQuotes = 0;
-		var statement = new StringBuilder();
 	
-		if(onMultiLineComment){	
-			statement.append(';');
+	/**
+	 * Replaces a $name reference with the stack offset or size it stands for.
+	 * Unknown names are kept as they are, though other references inside them
+	 * are still replaced, as in $x$y.
+	 */
+	private void appendName(String str, int start, int end) {
+		var name = str.substring(start, end);
+		if (name.indexOf('{') != -1 || name.indexOf('}') != -1) {
+			name = name.replace("{", "").replace("}", "");
 		}
-		
-		var chars = line.content.toCharArray();
-		for (int i = 0; i < chars.length; i++) {
-			char c = chars[i];
-			char nc = (i < chars.length - 1)?chars[i + 1]:0;
-			
-			if(onMultiLineComment){
-				if(c == '*' && nc == '/'){
-					onMultiLineComment = false;
-					i++;
+		appendName(name);
+	}
+	
+	private void appendName(String name) {
+		switch (name) {
+			case "stack_vars_size" -> statement.append(currentStackVarsSize);
+			case "stack_args_size" -> statement.append(currentStackArgsSize);
+			default -> {
+				var stackVarOff = stackVars.get(name);
+				if (stackVarOff != null) {
+					statement.append("bp - ").append(stackVarOff);
+					return;
+				}
+				
+				var stackArgOff = stackArgs.get(name);
+				if (stackArgOff != null) {
+					statement.append("bp + ").append(stackArgOff);
+					return;
+				}
+				
+				statement.append('$');
+				
+				int next = name.indexOf('$');
+				if (next == -1) {
+					statement.append(name);
 				} else {
-					statement.append(c);
+					statement.append(name, 0, next);
+					appendName(name.substring(next + 1));
 				}
-				continue;
 			}
-			
-			if (onQuotes != 0) {
-				if (onQuotes == c) onQuotes = 0;
-
-				statement.append(c);
-				continue;
+		}
+	}
+	
+	/**
+	 * Processes a statement starting with a keyword.
+	 *
+	 * @param rest Everything in the statement after the keyword.
+	 * @return Whether the statement was processed. Declarations without
+	 * anything after the keyword are left as they are.
+	 */
+	private boolean processKeyword(Lexer.Kind keyword, String rest, Line line, List<Line> outLines) {
+		switch (keyword) {
+			case VAR, FARG, LVAR -> {
+				if (rest.isBlank()) return false;
+				
+				if (keyword == Lexer.Kind.VAR) {
+					bssSymbols.add(getVariable(rest.trim()));
+					undumpedBssSymbols = true;
+				} else if (keyword == Lexer.Kind.FARG) {
+					reserveStackArg(rest.trim());
+				} else {
+					reserveStackVar(rest);
+				}
 			}
 			
-			if(c == '/' && nc == '*'){
-				onMultiLineComment = true;
-				statement.append(";");
-				i++;
-				continue;
+			case ENTERFN -> {
+				outLines.add(new Line("push bp", line));
+				outLines.add(new Line("mov bp, sp", line));
+				if (currentStackVarsSize > 0) {
+					outLines.add(new Line("sub sp, " + currentStackVarsSize, line));
+				}
 			}
 			
-			switch (c) {
-				// Style brackets: do not emit.
-				case '{', '}' -> {}
-				
-				// Quoted string
-				case '\'', '"' -> {
-					onQuotes = c;
-					statement.append(c);
-				}
-				
-				// Statement splitter: do not emit
-				case '|' -> {
-					lines.add(new Line(statement.toString(), line.number));
-					statement = new StringBuilder();
-				}
-				
-				// Line comment: just append the rest of the line and
-				// quit out of the loop
-				case ';' -> {
-					statement.append(line.content.substring(i));
-					i = Integer.MAX_VALUE - 1;
+			case LEAVEFN -> {
+				outLines.add(new Line("mov sp, bp", line));
+				outLines.add(new Line("pop bp", line));
+				if (currentStackArgsSize > 0) {
+					outLines.add(new Line("ret " + currentStackArgsSize, line));
+				} else {
+					outLines.add(new Line("ret" , line));
 				}
 				
-				default -> statement.append(c);
+				clearStack();
 			}
+			
+			case CLSTACK -> clearStack();
+			
+			default -> throw new IllegalStateException(keyword + " is not a keyword.");
 		}
-		
-		lines.add(new Line(statement.toString(), line.number));
-		return lines;
+		return true;
 	}
 	
-	private List<Line> readLines(File file) {
-		try {
-			return Preprocessor.readAllLines(file);
-		} catch (IOException ex) {
-			throw new RuntimeException(ex);
-		}
+	private void clearStack() {
+		stackVars.clear();
+		stackArgs.clear();
+		currentStackVarsSize = 0;
+		currentStackArgsSize = 0;
 	}
 	
-	private void writeLines(List<Line> lines, File outputFile) {
-		try (var out = new FileWriter(outputFile)) {
-			for (var line : lines) {
-				out.write(line.content);
-				if (!line.content.endsWith("\n")) out.write("\n");
-			}
-		} catch (Exception ex) {
-			throw new RuntimeException(ex);
+	private static void writeLines(List<Line> lines, Writer out) throws IOException {
+		for (var line : lines) {
+			out.write(line.content);
+			if (!line.content.endsWith("\n")) out.write("\n");
 		}
 	}
 	
@@ -224,7 +319,7 @@ public class Transpiler {
 			int size = variable.value;
 			
 			var r = "\t" + variable.key + ": ";
-
+			
 			if(size == 0){
 				r += "\n";
 			} else {
@@ -235,130 +330,6 @@ public class Transpiler {
 		}
 	}
 	
-	/** Processes the statement given and outputs a result to be placed in the file.
-	 *  @param stat pure statement after splitting.
-	 *  @param tr_stat trimmed statement to be used for logic. */
-	private List<Line> processStatement(Line line) {
-		var stat = line.content;
-		var tr_stat = line.content.trim();
-		
-		if (tr_stat.startsWith("var ")) {
-			var field = Str.remainingAfter(tr_stat, "var ");
-			var pair = getVariable(field);
-			bssSymbols.add(pair);
-			undumpedBssSymbols = true;
-			return null;
-		}
-		
-		if (tr_stat.startsWith("farg ")) {
-			var field = Str.remainingAfter(tr_stat, "farg ");
-			reserveStackArg(field);
-			return null;
-		}
-		
-		if (tr_stat.startsWith("ENTERFN")) {
-			var emit = new ArrayList<Line>();
-			emit.add(new Line("push bp", line));
-			emit.add(new Line("mov bp, sp", line));
-			if (currentStackVarsSize > 0) {
-				emit.add(new Line("sub sp, " + currentStackVarsSize, line));
-			}
-			return emit;
-		}
-		
-		if (tr_stat.startsWith("LEAVEFN")) {
-			var emit = new ArrayList<Line>();
-			emit.add(new Line("mov sp, bp", line));
-			emit.add(new Line("pop bp", line));
-			if (currentStackArgsSize > 0) {
-				emit.add(new Line("ret " + currentStackArgsSize, line));
-			} else {
-				emit.add(new Line("ret" , line));
-			}
-			
-			stackVars.clear();
-			stackArgs.clear();
-			currentStackVarsSize = 0;
-			currentStackArgsSize = 0;			
-			return emit;
-		}
-		
-		if(tr_stat.startsWith("CLSTACK")){
-			stackVars.clear();
-			stackArgs.clear();
-			currentStackVarsSize = 0;
-			currentStackArgsSize = 0;
-			return null;
-		} 
-		
-		if (tr_stat.startsWith("lvar ")) {
-			var field = Str.remainingAfter(stat, "lvar ");
-			reserveStackVar(field);
-			return null;
-		} 
-	
-		var statementBuffer = new StringBuilder();
-		char[] chars = stat.toCharArray();
-		
-		for (int i = 0; i < chars.length; i++) {
-			char c = chars[i];
-			char nc = ((i + 1 < chars.length) ? chars[i + 1] : '\0');
-			
-			// If we hit a comment, just spit the rest of it and quit out of the loop
-			if (c == ';') {
-				statementBuffer.append(stat.substring(i));
-				break;
-			}
-			
-			if (c == '.') {
-				if (Str.isQuote(nc)) {
-					var quotedStr = Str.untilFirstMatch(stat, i + 2, Character.toString(nc));
-					rodataStrings.add(nc + quotedStr + nc);
-					statementBuffer.append("@rodata.string").append(rodataStrings.size());
-					i += quotedStr.length() + 2;
-					undumpedRodataSymbols = true;
-					continue;
-				}
-			} else if (Str.isQuote(c)) {
-				var quotedStr = Str.untilFirstMatch(stat, i + 1, Character.toString(c));
-				statementBuffer.append(c + quotedStr + c);
-				i += quotedStr.length() + 1;
-				continue;
-			} else if(c == '$'){
-				var varname = Str.untilFirstMatch(stat, i + 1, " ", ",", "]", "}").trim();
-				if(varname.equals("stack_vars_size")){
-					statementBuffer.append(currentStackVarsSize);
-					i += varname.length();
-					continue;
-				} else if(varname.equals("stack_args_size")){
-					statementBuffer.append(currentStackArgsSize);
-					i += varname.length();
-					continue;
-				} else {
-					var stackVarOff = stackVars.get(varname);
-					if(stackVarOff != null){
-						var stackStr = "bp - " + stackVarOff;
-						statementBuffer.append(stackStr);
-						i += varname.length();
-						continue;
-					}
-					
-					var stackArgOff = stackArgs.get(varname);
-					if(stackArgOff != null){
-						var stackStr = "bp + " + stackArgOff;
-						statementBuffer.append(stackStr);
-						i += varname.length();
-						continue;
-					}
-				}
-			}
-			statementBuffer.append(c);
-		}
-		
-		line.content = statementBuffer.toString();
-		return List.of(line);
-	}
-			
 	private static String getConstantString(String str) {
 		if (str.startsWith("\"")) {
 			str = str
@@ -368,7 +339,7 @@ public class Transpiler {
 		}
 		return str + ", 0";
 	}
-
+	
 	private Pair<String, Integer> getVariable(String line){
 		var pair = new Pair<String, Integer>();
 		var sp = line.split(" ", 2);
@@ -399,6 +370,20 @@ public class Transpiler {
 		currentStackArgsSize += pair.value;
 	}
 	
+	/**
+	 * Files read by the last transpilation: the input file and every file it
+	 * included, in the order they were fully read. After a cache hit, these are
+	 * the files the cached output was transpiled from.
+	 */
+	public Collection<SourceFile> getSourceFiles() {
+		return sourceFiles.values();
+	}
+	
+	/** Shares the included files with other transpilers. See {@link IncludeCache}. */
+	public void setIncludeCache(IncludeCache includeCache) {
+		this.includeCache = includeCache;
+	}
+	
 	public void setIncludePaths(List<String> includePaths) {
 		this.includePaths = includePaths;
 	}